@@ -0,0 +1,49 @@
+package tools;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Building a tree, against the number of records and the leaf size (LOG_LEAF_SIZE is 10).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildBenchmark {
+	@Param({ "uniform", "skewed", "duplicates" })
+	public String dataset;
+
+	@Param({ "65536", "262144", "1048576" })
+	public int n;
+
+	@Param({ "7", "10", "13" })
+	public int logLeafSize;
+
+	private int keys[];
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Trace.setLevel(Trace.None);
+		keys = ACETreeBench.dataset(dataset, n, 1);
+	}
+
+	@Benchmark
+	public ACETree build() {
+		return new ACETree(keys, 1, null, logLeafSize);
+	}
+}
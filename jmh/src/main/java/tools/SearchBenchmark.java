@@ -0,0 +1,46 @@
+package tools;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * One search() call - one stab - into a SampleBuffer that is cleared each time, so the sampling loop itself should
+ * not allocate.  Run with -prof gc for the bytes per call.
+ *
+ * A done search is replaced, so its set up is spread over its stabs as it would be in use (see BucketBenchmark for
+ * the set up alone).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+	private ACETreeSearch search;
+	private final SampleBuffer samples = new SampleBuffer();
+
+	@Setup(Level.Trial)
+	public void setUp(TreeState state) {
+		search = new ACETreeSearch(state.tree, state.range);
+	}
+
+	@Benchmark
+	public int search(TreeState state) {
+		if( search.done() )
+			search = new ACETreeSearch(state.tree, state.range);
+		samples.clear();
+		return search.search(samples);
+	}
+}
@@ -0,0 +1,59 @@
+package tools;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tools.ACETree.LeafNode;
+import tools.ACETree.LeafSection;
+
+/*
+ * The parts of a stab, on leaves already in memory - a random leaf per operation, so the score is leaves per
+ * microsecond (a leaf is about 2^LOG_LEAF_SIZE records):
+ *
+ * - combineTuples - stab(), a whole stab of the leaf into the buckets and out.
+ * - filterAndAdd  - only the filter, over every section of the leaf.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StabBenchmark {
+	private ACETreeSearch search;
+	private final SampleBuffer samples = new SampleBuffer();
+	private final SplittableRandom random = new SplittableRandom(2);
+
+	@Setup(Level.Trial)
+	public void setUp(TreeState state) {
+		search = new ACETreeSearch(state.tree, state.range);
+	}
+
+	@Benchmark
+	public int combineTuples(TreeState state) {
+		LeafNode leaf = state.tree.getLeaf(random.nextInt(state.tree.numLeaves));
+		samples.clear();
+		return search.stab(leaf, samples);
+	}
+
+	@Benchmark
+	public int filterAndAdd(TreeState state) {
+		LeafNode leaf = state.tree.getLeaf(random.nextInt(state.tree.numLeaves));
+		samples.clear();
+		for( LeafSection section : leaf.sections )
+			ACETreeSearch.filterAndAdd(state.range, section, samples);
+		return samples.size();
+	}
+}
@@ -0,0 +1,33 @@
+package tools;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * A built tree and a query over it, shared by the search benchmarks - one per dataset.
+ *
+ * The datasets and the query are ACETreeBench's: uniform keys, skewed keys (most of them near 0) and keys with only
+ * 256 distinct values; the query holds about 1% of the keys, from the middle of their sorted order.
+ */
+@State(Scope.Benchmark)
+public class TreeState {
+	static final int SEARCH_SIZE = 1 << 20;
+
+	@Param({ "uniform", "skewed", "duplicates" })
+	public String dataset;
+
+	ACETree tree;
+	Range range;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		/* the build logs a line per tree - keep the output to JMH's */
+		Trace.setLevel(Trace.None);
+		int keys[] = ACETreeBench.dataset(dataset, SEARCH_SIZE, 1);
+		tree = new ACETree(keys, 1, null);
+		range = ACETreeBench.query(keys, 0.01);
+	}
+}
@@ -13,15 +13,30 @@
  * 2. The number of leaf nodes = 2^n
  * 3. The number of sections in each leaf node = height - 1
  *  
+ * Threads:
+ * 
+ * A tree does not change once the constructor returns - all its fields are final and nothing reachable from them is
+ * written after the build, except for the tombstones of delete().  So a built tree can be handed to any number of
+ * threads, each running its own ACETreeSearch.  All the state of a search lives in the ACETreeSearch object, which must
+ * not be shared between threads.
+ * 
+ * Deletes are serialized on the tree and publish each section's tombstones as a new array, so they can run while
+ * searches are going on.  A search sees the deletes made before it reads a section.
  */
 
 package tools;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 
 public class ACETree  {
@@ -49,7 +64,7 @@ public class ACETree  {
 	 * count of left and right children
 	 *  
 	 */
-	class InternalNode implements Node {
+	static class InternalNode implements Node {
 		protected Range r;
 		protected int key_index;
 		protected int key;
@@ -90,7 +105,7 @@ public class ACETree  {
 		}
 		
 
-		private void setLeafIndexes(Node child) {
+		void setLeafIndexes(Node child) {
 			Range leafIndexes = child.getLeafIndexes();
 			
 			if( this.leafStartIndex == -1 || this.leafStartIndex > leafIndexes.begin ) 
@@ -108,17 +123,84 @@ public class ACETree  {
 	 *  It has the data divided into Number of Sections.
 	 *  Each section has a range and the actual leaf node data.
 	 */
-	public class LeafSection {
+	public static class LeafSection {
 		protected Range r;
-		protected ArrayList<Integer> elements;
+		
+		/* 
+		 * the keys are packed in a primitive array sized exactly at build time - no boxing, no slack.
+		 * "fill" is only used while the tree is being built.
+		 */
+		protected int[] elements;
+		private int fill;
+		
+		/* 
+		 * set instead of "elements" when the keys live outside the heap (OffHeapLeafStore) - a view of them that is read
+		 * in place.  The accessors below work on either.
+		 */
+		IntBuffer keys;
+		
+		/*
+		 * tombstones - bit i is set once elements[i] has been deleted.  null until the first delete in the section.
+		 * 
+		 * The bitmap is copy-on-write: a delete publishes a new array, so a search reading "dead" once sees a fixed set.
+		 */
+		volatile long dead[];
+		int deadCount;
 		
 		public LeafSection(Range r) {
 			this.r = r;
-			elements = new ArrayList<Integer>();
+			elements = EMPTY_ELEMENTS;
+			fill = 0;
+		}
+		
+		/* called once we know how many records land in this section - only while the tree is being built or a leaf is read in */
+		void allocate(int count) {
+			elements = count == 0 ? EMPTY_ELEMENTS : new int[count];
+			fill = 0;
+		}
+		
+		void insertRecord(int value) { 
+			assert fill < elements.length;
+			elements[fill++] = value;
+		}
+		
+		int size() {
+			return keys == null ? elements.length : keys.limit();
+		}
+		
+		int key(int i) {
+			return keys == null ? elements[i] : keys.get(i);
+		}
+		
+		/* index of the first key not less than "key" */
+		int lowerBound(int key) {
+			return keys == null ? ACETree.lowerBound(elements, key) : ACETree.lowerBound(keys, key);
+		}
+		
+		/* index of the first key greater than "key" */
+		int upperBound(int key) {
+			return keys == null ? ACETree.upperBound(elements, key) : ACETree.upperBound(keys, key);
+		}
+		
+		/* copies keys [from, to) to dest[destPos ..] - straight out of the view when the keys are off heap */
+		void copyTo(int from, int to, int dest[], int destPos) {
+			if( keys == null )
+				System.arraycopy(elements, from, dest, destPos, to - from);
+			else
+				keys.get(from, dest, destPos, to - from);
+		}
+		
+		/* the keys as an array - "elements" itself, unless they are off heap */
+		int[] toArray() {
+			if( keys == null )
+				return elements;
+			int copy[] = new int[keys.limit()];
+			keys.get(0, copy);
+			return copy;
 		}
 		
-		public void insertRecord(int value) { 
-			elements.add(value);
+		static boolean isDead(long dead[], int i) {
+			return dead != null && (dead[i >>> 6] & (1L << i)) != 0;
 		}
 		
 		public String toString() {
@@ -126,11 +208,12 @@ public class ACETree  {
 			String s = String.format("(%d,%d)", r.begin, r.end );
 			sb.append(s);
 			
-			for ( int i = 0; i < elements.size(); i++) {
+			int size = size();
+			for ( int i = 0; i < size; i++) {
 				if( i == 0 ) {
 					sb.append(" - ");
 				}
-				s = String.format( "%d%s", elements.get(i), i != elements.size() - 1 ? "," : "" );
+				s = String.format( "%d%s", key(i), i != size - 1 ? "," : "" );
 				sb.append(s);
 			}
 			
@@ -153,7 +236,7 @@ public class ACETree  {
 	 * It has an index and an array of sections.  (LeafSection).
 	 * The data is spread across sections.
 	 */
-	class LeafNode implements Node {
+	static class LeafNode implements Node {
 		protected ArrayList<LeafSection> sections;
 		protected int leafIndex;
 		
@@ -165,7 +248,11 @@ public class ACETree  {
 				sections.add(new LeafSection(r));
 		}
 		
-		public void insertRecord(int sectionID, int value) {
+		void allocate(int sectionID, int count) {
+			sections.get(sectionID).allocate(count);
+		}
+		
+		void insertRecord(int sectionID, int value) {
 			sections.get(sectionID).insertRecord(value);
 		}
 		
@@ -211,7 +298,7 @@ public class ACETree  {
 			for( LeafSection section : sections ) {
 				pw.format( "%c{%d-%d|{", firstSection == true ? ' ' : '|', section.r.begin, section.r.end );
 				boolean firstElement = true;
-				for( int element : section.elements ) {
+				for( int element : section.toArray() ) {
 					pw.format( "%c%d", firstElement == true ? ' ' : '|', element);
 					firstElement = false;
 				}
@@ -244,26 +331,60 @@ public class ACETree  {
 	 * it is a little unusual for a Tree structure to hold this.  We need this to assign a record into a Leaf as we may stop the 
 	 * tree navigation midstream based on the section id
 	 */
-	protected ArrayList<LeafNode> leafNodes;
-
+	protected final ArrayList<LeafNode> leafNodes;
+	
+	/* shared by all the empty sections */
+	private static final int[] EMPTY_ELEMENTS = new int[0];
+	
 	/*
-	 * We maintain this data structure with all the Records.
-	 * "value" is the record value.
-	 * We uniformly assign each record to a section.
-	 * We also assign a record to a leaf node randomly.
+	 * where the leaf data is read from during a search.
+	 * 
+	 * null for a tree built in memory - the leafNodes hold the data.  For a tree opened from a file, the leafNodes only
+	 * carry the section ranges and each stab reads its leaf from here.
 	 */
-	class Record {
-		private int value;
-		private int section;
-		private int leafID;
-	}
-	
-	ArrayList<Record> theRecords;
+	protected final LeafStore leafStore;
 	
 	// Note that this is the LOG - so if you want 128, use 7
-	private static int LOG_LEAF_SIZE = 10;		 
-	protected Node root;
-	protected int height;
+	static final int LOG_LEAF_SIZE = 10;		 
+	
+	/* the LOG_LEAF_SIZE this tree was built with - the default, unless the constructor was given one */
+	protected final int logLeafSize;
+	protected final Node root;
+	protected final int height;
+	
+	/*
+	 * Flat copy of the tree used by the search - no object per node, no hashing, no allocation per visit.
+	 * 
+	 * The tree is complete, so we lay it out in heap order: the root is node 1 and the children of node i are 2i and 2i+1.
+	 * The internal nodes are 1 .. numLeaves-1 and the leaves follow them - leaf j is node numLeaves + j.
+	 * 
+	 * nodeKey, nodeCountLeft and nodeCountRight are only meaningful for internal nodes; the data range and the leaf span 
+	 * are kept for every node.
+	 */
+	protected final int numLeaves;
+	protected final int nodeKey[];
+	protected final int nodeCountLeft[];
+	protected final int nodeCountRight[];
+	protected final int nodeBegin[];
+	protected final int nodeEnd[];
+	protected final int nodeLeafStart[];
+	protected final int nodeLeafEnd[];
+	
+	/* the seed the build was started with */
+	protected final long seed;
+	
+	/* the number of records - deleted or not */
+	protected final int size;
+	
+	/* deletes - guarded by the tree's lock */
+	private int deadCount;
+	private double maxDeadRatio;
+	
+	/* set when we are building with a ForkJoinPool */
+	private final boolean parallel;
+	
+	/* below this many records a subtree is built on the current thread */
+	private static final int PARALLEL_THRESHOLD = 1 << 14;
 
 	/* 
 	 * utility class to calculate the height of the tree given the size 
@@ -285,32 +406,76 @@ public class ACETree  {
 	 * 
 	 * Takes in an array of integers
 	 * 
-	 * - constructs an array of Records
+	 * - sorts a copy of the keys (the caller's array is left alone)
 	 * - constructs the Phase 1 Tree where the internal nodes and the leaves' structure is created
 	 * - assigns the sections to the various records
 	 * - finally assigns the records to specific leaves as well.
 	 */
 	public ACETree(int entries[]) {
-		// construct the Record object out of the integer array passed:
-		theRecords = new ArrayList<Record>();
-		for( int i = 0; i < entries.length; i++ ) {
-			Record rec = new Record();
-			rec.value = entries[i];
-			theRecords.add(rec);
-		}
-		
-		// sort the array and call the internal function:
-		Collections.sort(theRecords, new Comparator<Record>() {
-			public int compare(Record rec1, Record rec2) {
-				return ((Integer)rec1.value).compareTo(rec2.value);
-			}
-		});
+		this(entries, System.nanoTime(), null);
+	}
+	
+	/*
+	 * parallel build - the sort, the phase 1 recursion and the leaf assignment run as fork/join tasks in "pool".
+	 */
+	public ACETree(int entries[], ForkJoinPool pool) {
+		this(entries, System.nanoTime(), pool);
+	}
+	
+	/*
+	 * "seed" drives every random choice of the build, so the same seed gives the same tree whether or not
+	 * we build in parallel.  A null pool means build on the calling thread.
+	 */
+	public ACETree(int entries[], long seed, final ForkJoinPool pool) {
+		this(entries, seed, pool, LOG_LEAF_SIZE);
+	}
+	
+	/*
+	 * same, with leaves of about 2^logLeafSize records instead of the default - fewer, larger leaves mean a shorter tree
+	 * and fewer stabs, more records filtered per stab.
+	 */
+	public ACETree(int entries[], long seed, final ForkJoinPool pool, int logLeafSize) {
+		if( logLeafSize < 0 || logLeafSize > 30 ) 
+			throw new IllegalArgumentException(String.format("log leaf size %d is out of range", logLeafSize));
+		this.logLeafSize = logLeafSize;
+		this.seed = seed;
+		this.parallel = pool != null;
+		this.leafStore = null;
+		
+		/*
+		 * The records are held in three parallel primitive arrays, indexed by the position of the value in sorted order:
+		 * 
+		 * "keys" - the record values, sorted.
+		 * "sections" - we uniformly assign each record to a section.
+		 * "leafIDs" - we also assign a record to a leaf node randomly.
+		 * 
+		 * These are only needed while building - the leaves own the data once they are filled.
+		 */
+		ACETreeEvents.BuildPhase phase = ACETreeEvents.BuildPhase.start("sort", entries.length);
+		final int keys[] = Arrays.copyOf(entries, entries.length);
+		if( parallel ) {
+			/* run the sort inside the pool so that its sub-tasks land there and not on the common pool */
+			pool.submit(new Runnable() {
+				public void run() { Arrays.parallelSort(keys); }
+			}).join();
+		} else {
+			Arrays.sort(keys);
+		}
+		phase.finish();
 		
-		this.height = ACETree.getCeilingLog2(theRecords.size()) - ACETree.LOG_LEAF_SIZE;
-		System.out.printf( "size of arr [%d] height [%d]\n", theRecords.size(), this.height);
+		this.size = keys.length;
+		this.height = ACETree.getCeilingLog2(keys.length) - logLeafSize;
+		Trace.event( Trace.Minimal, "size of arr [%d] height [%d]", keys.length, this.height );
 		
-		/* this will hold the allocated leaf nodes - will be useful while assigning leaves for the records */
-		this.leafNodes = new ArrayList<LeafNode>();
+		/* 
+		 * this will hold the allocated leaf nodes - will be useful while assigning leaves for the records.
+		 * the slots are filled in by leaf index, so subtrees can be built in any order.
+		 */
+		int numLeaves = this.height > 1 ? ACETree.twoPowerN(this.height-1) : 1;
+		this.leafNodes = new ArrayList<LeafNode>(Collections.<LeafNode>nCopies(numLeaves, null));
+		
+		/* every subtree gets its own random source, split off its parent's */
+		SplittableRandom random = new SplittableRandom(seed);
 	
 		/* 
 		 * Phase1 construction:
@@ -320,10 +485,24 @@ public class ACETree  {
 		 * - one interesting issue is how we calculate the leaf node range under each Internal Node.
 		 * 
 		 */
-		Range r = new Range(theRecords.get(0).value, theRecords.get(theRecords.size()-1).value);
+		phase = ACETreeEvents.BuildPhase.start("constructPhase1", keys.length);
+		Range r = new Range(keys[0], keys[keys.length-1]);
 		ArrayList<Range> rangeArray = new ArrayList<Range>();
 		rangeArray.add(r);
-		this.root = constructPhase1(1, theRecords, 0, theRecords.size() - 1, rangeArray);
+		Phase1Task phase1 = new Phase1Task(1, keys, 0, keys.length - 1, rangeArray, 0);
+		this.root = parallel ? pool.invoke(phase1) : phase1.compute();
+		
+		/* the flat copy of the skeleton for the search */
+		this.numLeaves = numLeaves;
+		this.nodeKey = new int[numLeaves];
+		this.nodeCountLeft = new int[numLeaves];
+		this.nodeCountRight = new int[numLeaves];
+		this.nodeBegin = new int[2 * numLeaves];
+		this.nodeEnd = new int[2 * numLeaves];
+		this.nodeLeafStart = new int[2 * numLeaves];
+		this.nodeLeafEnd = new int[2 * numLeaves];
+		flatten(root, 1);
+		phase.finish();
 		
 		/* 
 		 * Phase 2 construction
@@ -333,86 +512,473 @@ public class ACETree  {
 		 */
 		
 		/* Assign random section numbers */
-		assignSections(this.height, this.root, theRecords);
+		phase = ACETreeEvents.BuildPhase.start("assignSections", keys.length);
+		int sections[] = new int[keys.length];
+		assignSections(this.height, this.root, sections, random.split());
+		phase.finish();
 		
 		/* Assign leaf nodes for each of the records */
-		assignLeaves(this.root, theRecords);
+		int leafIDs[] = new int[keys.length];
+		phase = ACETreeEvents.BuildPhase.start("assignLeaves", keys.length);
+		assignLeaves(this.root, keys, sections, leafIDs, random.split(), pool);
+		phase.finish();
+		
+		if( Trace.isEnabled(Trace.Verbose) ) {
+			for( int i = 0; i < keys.length; i++ )
+				Trace.event( Trace.Verbose, "key %d: section %d leaf %d", keys[i], sections[i], leafIDs[i] );
+		}
+	}
+	
+	/*
+	 * a tree whose skeleton was read from a file rather than built - "leafNodes" carry only the section ranges and the 
+	 * data is in "leafStore".
+	 */
+	ACETree(int height, int logLeafSize, long seed, Node root, ArrayList<LeafNode> leafNodes, LeafStore leafStore) {
+		this.height = height;
+		this.logLeafSize = logLeafSize;
+		this.seed = seed;
+		this.parallel = false;
+		this.root = root;
+		this.leafNodes = leafNodes;
+		this.leafStore = leafStore;
+		
+		this.numLeaves = leafNodes.size();
+		this.nodeKey = new int[numLeaves];
+		this.nodeCountLeft = new int[numLeaves];
+		this.nodeCountRight = new int[numLeaves];
+		this.nodeBegin = new int[2 * numLeaves];
+		this.nodeEnd = new int[2 * numLeaves];
+		this.nodeLeafStart = new int[2 * numLeaves];
+		this.nodeLeafEnd = new int[2 * numLeaves];
+		flatten(root, 1);
+		
+		/* the root's counts add up to all the records - unless the root is the only leaf */
+		if( numLeaves > 1 ) {
+			this.size = nodeCountLeft[1] + nodeCountRight[1];
+		} else {
+			int count = 0;
+			for( LeafSection section : getLeaf(0).sections )
+				count += section.size();
+			this.size = count;
+		}
+	}
+	
+	/*
+	 * fills in the flat node arrays from the node objects.  Called once the skeleton is complete.
+	 */
+	private void flatten(Node n, int id) {
+		Range r = n.getDataRange();
+		nodeBegin[id] = r.begin;
+		nodeEnd[id] = r.end;
+		
+		Range leafIndexes = n.getLeafIndexes();
+		nodeLeafStart[id] = leafIndexes.begin;
+		nodeLeafEnd[id] = leafIndexes.end;
+		
+		if( n instanceof InternalNode ) {
+			InternalNode in = (InternalNode)n;
+			nodeKey[id] = in.key;
+			nodeCountLeft[id] = in.countLeft;
+			nodeCountRight[id] = in.countRight;
+			
+			flatten(in.left, 2 * id);
+			flatten(in.right, 2 * id + 1);
+		} else {
+			assert id == numLeaves + ((LeafNode)n).leafIndex;
+		}
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/*
+	 * Deletes.
+	 * 
+	 * A deleted record stays in its section and gets a bit set in the section's tombstones - the search skips it.  The
+	 * space only comes back when the tree is rebuilt, see MutableACETree, which does so once a leaf's deadRatio goes
+	 * over a threshold.
+	 * 
+	 * A record with section "s" is in section s of one of the leaves under the node at depth s whose range holds it, so
+	 * we look there - and the keys of a section are sorted, so each section is a binary search.
+	 * 
+	 * delete(key) deletes one record with that key (there may be duplicates) and returns false if there is none left.
+	 * delete(range) deletes all the records in the range and returns how many.
+	 */
+	public boolean delete(int key) {
+		return delete(key, key, 1) == 1;
+	}
+	
+	public int delete(Range range) {
+		return delete(range.begin, range.end, Integer.MAX_VALUE);
+	}
+	
+	private synchronized int delete(int begin, int end, int limit) {
+		int deleted = 0;
+		for( int depth = 0; depth < height && deleted < limit; depth++ ) {
+			int first = ACETree.twoPowerN(depth);
+			for( int node = first; node < 2 * first && deleted < limit; node++ ) {
+				if( nodeBegin[node] > end || nodeEnd[node] < begin ) 
+					continue;
+				for( int leaf = nodeLeafStart[node]; leaf <= nodeLeafEnd[node] && deleted < limit; leaf++ ) 
+					deleted += deleteInSection(leaf, depth, begin, end, limit - deleted);
+			}
+		}
+		return deleted;
+	}
+	
+	private int deleteInSection(int leafIndex, int sectionIndex, int begin, int end, int limit) {
+		/* the tombstones are kept on leafNodes - for a file backed tree these are the skeleton, the keys come from the file */
+		LeafNode holder = leafNodes.get(leafIndex);
+		LeafSection section = holder.sections.get(sectionIndex);
+		LeafSection keys = leafStore == null ? section : getLeaf(leafIndex).sections.get(sectionIndex);
+		int size = keys.size();
 		
-		for( Record rec : theRecords )
-			Util.log( Util.Verbose, "%3d", rec.section);
-		Util.log( Util.Verbose, "\n" );
-		for( Record rec : theRecords )
-			Util.log( Util.Verbose, "%3d", rec.leafID);
-		Util.log( Util.Verbose, "\n" );
-		for( Record rec : theRecords )
-			Util.log( Util.Verbose, "%3d", rec.value);
-		Util.log( Util.Verbose, "\n");
+		long dead[] = section.dead;
+		long updated[] = null;
+		int deleted = 0;
+		for( int i = keys.lowerBound(begin); i < size && keys.key(i) <= end && deleted < limit; i++ ) {
+			if( LeafSection.isDead(dead, i) ) 
+				continue;
+			if( updated == null ) 
+				updated = dead != null ? dead.clone() : new long[(size + 63) >>> 6];
+			updated[i >>> 6] |= 1L << i;
+			deleted++;
+		}
 		
+		if( deleted > 0 ) {
+			section.deadCount += deleted;
+			deadCount += deleted;
+			section.dead = updated;
+			maxDeadRatio = Math.max(maxDeadRatio, deadRatio(holder));
+		}
+		return deleted;
+	}
+	
+	/* index of the first entry of "keys" not less than "key" */
+	static int lowerBound(int keys[], int key) {
+		int begin = 0, end = keys.length;
+		while( begin < end ) {
+			int mid = (begin + end) >>> 1;
+			if( keys[mid] < key ) 
+				begin = mid + 1;
+			else
+				end = mid;
+		}
+		return begin;
+	}
+	
+	/* index of the first entry of "keys" greater than "key" */
+	static int upperBound(int keys[], int key) {
+		int begin = 0, end = keys.length;
+		while( begin < end ) {
+			int mid = (begin + end) >>> 1;
+			if( keys[mid] <= key ) 
+				begin = mid + 1;
+			else
+				end = mid;
+		}
+		return begin;
+	}
+	
+	/* the same two over a view of keys held off heap - absolute reads, the view's position is left alone */
+	static int lowerBound(IntBuffer keys, int key) {
+		int begin = 0, end = keys.limit();
+		while( begin < end ) {
+			int mid = (begin + end) >>> 1;
+			if( keys.get(mid) < key ) 
+				begin = mid + 1;
+			else
+				end = mid;
+		}
+		return begin;
+	}
+	
+	static int upperBound(IntBuffer keys, int key) {
+		int begin = 0, end = keys.limit();
+		while( begin < end ) {
+			int mid = (begin + end) >>> 1;
+			if( keys.get(mid) <= key ) 
+				begin = mid + 1;
+			else
+				end = mid;
+		}
+		return begin;
+	}
+	
+	/* the share of all the records that is deleted */
+	public synchronized double deadRatio() {
+		return size == 0 ? 0 : (double)deadCount / size;
+	}
+	
+	/* the share of the records of a leaf that is deleted */
+	public synchronized double deadRatio(int leafIndex) {
+		return deadRatio(leafNodes.get(leafIndex));
+	}
+	
+	/* the largest deadRatio(leafIndex) over all the leaves */
+	public synchronized double maxDeadRatio() {
+		return maxDeadRatio;
+	}
+	
+	public synchronized int getDeadCount() {
+		return deadCount;
+	}
+	
+	private double deadRatio(LeafNode holder) {
+		int dead = 0, total = 0;
+		LeafNode leaf = leafStore == null ? holder : getLeaf(holder.leafIndex);
+		for( int i = 0; i < holder.sections.size(); i++ ) {
+			dead += holder.sections.get(i).deadCount;
+			total += leaf.sections.get(i).size();
+		}
+		return total == 0 ? 0 : (double)dead / total;
+	}
+	
+	/*
+	 * the tombstones of every section as of now, by leaf and section - later deletes do not show up in them.
+	 */
+	synchronized long[][][] captureTombstones() {
+		long tombstones[][][] = new long[numLeaves][][];
+		for( int i = 0; i < numLeaves; i++ ) {
+			ArrayList<LeafSection> sections = leafNodes.get(i).sections;
+			tombstones[i] = new long[sections.size()][];
+			for( int j = 0; j < sections.size(); j++ ) 
+				tombstones[i][j] = sections.get(j).dead;
+		}
+		return tombstones;
+	}
+	
+	/*
+	 * puts back tombstones as captureTombstones() gave them (null for a section with none), and the maxDeadRatio() they
+	 * went with - for ACETreeFile.open(), which has no leaf read to work the ratio out from.
+	 */
+	synchronized void restoreTombstones(long tombstones[][][], double maxDeadRatio) {
+		for( int i = 0; i < numLeaves; i++ ) {
+			ArrayList<LeafSection> sections = leafNodes.get(i).sections;
+			for( int j = 0; j < sections.size(); j++ ) {
+				long dead[] = tombstones[i][j];
+				if( dead == null ) 
+					continue;
+				LeafSection section = sections.get(j);
+				int count = 0;
+				for( long word : dead ) 
+					count += Long.bitCount(word);
+				deadCount += count - section.deadCount;
+				section.deadCount = count;
+				section.dead = dead;
+			}
+		}
+		this.maxDeadRatio = maxDeadRatio;
+	}
+	
+	/*
+	 * about how many records fall in "range" - from the counts of the skeleton, so no leaf is read.  Subtrees inside the
+	 * range count in full, the leaves straddling one of its ends in proportion to how much of their range overlaps.
+	 */
+	double estimateCount(Range range) {
+		return estimateCount(range, 1, size);
+	}
+	
+	private double estimateCount(Range range, int node, int count) {
+		long begin = nodeBegin[node], end = nodeEnd[node];
+		if( count == 0 || end < begin || !range.overlaps(nodeBegin[node], nodeEnd[node]) ) 
+			return 0;
+		if( range.begin <= begin && range.end >= end ) 
+			return count;
 		
+		if( isLeaf(node) ) {
+			long lo = Math.max(begin, range.begin), hi = Math.min(end, range.end);
+			return count * (double)(hi - lo + 1) / (end - begin + 1);
+		}
+		return estimateCount(range, 2 * node, nodeCountLeft[node]) + estimateCount(range, 2 * node + 1, nodeCountRight[node]);
+	}
+	
+	/* true if "id" is a leaf in the flat layout */
+	protected boolean isLeaf(int id) {
+		return id >= numLeaves;
+	}
+	
+	/*
+	 * returns the leaf with its data.  
+	 * 
+	 * For a file backed tree this reads the leaf's page - the search calls this exactly once per stab.
+	 */
+	LeafNode getLeaf(int leafIndex) {
+		if( leafStore == null ) 
+			return leafNodes.get(leafIndex);
+		return leafStore.readLeaf(leafIndex);
+	}
+	
+	/* getLeaf() for a stab - hand the leaf back to unpinLeaf() once done with it, see LeafStore.pinLeaf */
+	LeafNode pinLeaf(int leafIndex) {
+		if( leafStore == null ) 
+			return leafNodes.get(leafIndex);
+		return leafStore.pinLeaf(leafIndex);
+	}
+	
+	void unpinLeaf(LeafNode leaf) {
+		if( leafStore != null ) 
+			leafStore.unpinLeaf(leaf);
+	}
+	
+	/* releases the file behind the tree, if any */
+	public void close() throws IOException {
+		if( leafStore != null ) 
+			leafStore.close();
 	}
 	
 	/*
 	 * used during phase2 construction of the tree
+	 * 
+	 * Two passes over the tree, each of which can run in parallel:
+	 * 1. choose a leaf for every record and count the records per leaf/section.
+	 * 2. size each section exactly and copy the values in.
 	 */
-	private void assignLeaves(Node n, ArrayList<Record> records) {
-		for( Record rec : records ) 
-			assignLeafForRecord(n, rec, 0);
+	private void assignLeaves(Node n, int keys[], int sections[], int leafIDs[], SplittableRandom random, ForkJoinPool pool) {
+		int counts[][] = new int[leafNodes.size()][];
+		for( int i = 0; i < counts.length; i++ ) 
+			counts[i] = new int[leafNodes.get(i).sections.size()];
+		
+		AssignLeavesTask choose = new AssignLeavesTask(n, 0, 0, keys.length - 1, keys, sections, leafIDs, counts, random);
+		if( parallel ) pool.invoke(choose); else choose.compute();
+		
+		for( int i = 0; i < counts.length; i++ ) {
+			for( int j = 0; j < counts[i].length; j++ )
+				leafNodes.get(i).allocate(j, counts[i][j]);
+		}
+		
+		AssignLeavesTask fill = new AssignLeavesTask(n, 0, 0, keys.length - 1, keys, sections, leafIDs, null, null);
+		if( parallel ) pool.invoke(fill); else fill.compute();
 	}
 	
 	/*
 	 * used during phase2 construction of the tree
 	 * 
-	 * recursive - does "section" comparisons before assigning a leaf.
+	 * A record with section "s" does "s" comparisons before it gets a random leaf under the node it has reached.
+	 * Since the keys are sorted, the records reaching a node are a contiguous run [lo, hi] - so instead of walking
+	 * the tree once per record, we walk it once and split the run at each node:
+	 * 
+	 * - the records in the run whose section equals the depth of the node stop here and pick a leaf under it.
+	 * - the rest are split on the key (value <= key goes left) and handed to the children.
+	 * 
+	 * A record stopping at depth "d" only ever touches section "d" of leaves under this node, so the two subtrees
+	 * never write to the same counter or section and can be processed independently.
+	 * 
+	 * With "counts" set this is the first pass (choose leaves, count).  Without it, this is the second pass (copy the values).
 	 */
-	private void assignLeafForRecord(Node n, Record rec, int currentComparisonCount) {
-		/* 
-		 * we will do r.section node navigations.
-		 * after this, we will choose a random leaf for this record.
-		 */
-		if( currentComparisonCount >= rec.section ) {
-			/* we are done now - choose a leaf */
+	class AssignLeavesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private Node n;
+		private int depth;
+		private int lo;
+		private int hi;
+		private int keys[];
+		private int sections[];
+		private int leafIDs[];
+		private int counts[][];
+		private SplittableRandom random;
+		
+		AssignLeavesTask(Node n, int depth, int lo, int hi, int keys[], int sections[], int leafIDs[], int counts[][], SplittableRandom random) {
+			this.n = n;
+			this.depth = depth;
+			this.lo = lo;
+			this.hi = hi;
+			this.keys = keys;
+			this.sections = sections;
+			this.leafIDs = leafIDs;
+			this.counts = counts;
+			this.random = random;
+		}
+		
+		@Override
+		protected void compute() {
+			if( lo > hi ) 
+				return;
+			
+			/* split before we use our own source so that the tree of random sources does not depend on the schedule */
+			SplittableRandom leftRandom = null, rightRandom = null;
+			if( random != null && n instanceof InternalNode ) {
+				leftRandom = random.split();
+				rightRandom = random.split();
+			}
+			
+			/* the records that stop at this node */
 			Range r = n.getLeafIndexes();
 			int rangeSize = r.end - r.begin + 1;
-			rec.leafID = r.begin + (int)(rangeSize * Math.random());
+			for( int i = lo; i <= hi; i++ ) {
+				if( sections[i] != depth ) 
+					continue;
+				
+				if( counts != null ) {
+					leafIDs[i] = r.begin + random.nextInt(rangeSize);
+					counts[leafIDs[i]][depth]++;
+				} else {
+					leafNodes.get(leafIDs[i]).insertRecord(depth, keys[i]);
+				}
+			}
 			
-			/* tbd: we need to have an array of leaf nodes to make the assignment of the record into the leaf easy */
-			leafNodes.get(rec.leafID).insertRecord(rec.section, rec.value);
+			if( !(n instanceof InternalNode) ) 
+				return;
 			
-		} else {
-			/* need to do some more comparisons - ensure that we have not hit the leaf node! */
-			assert( n instanceof InternalNode );
+			/* everything else goes down - find the first record that goes right */
 			InternalNode in = (InternalNode)n;
-			assignLeafForRecord( rec.value <= in.key ? in.left : in.right, rec, currentComparisonCount+1);
+			int split = upperBound(keys, lo, hi, in.key);
+			
+			AssignLeavesTask left = new AssignLeavesTask(in.left, depth+1, lo, split-1, keys, sections, leafIDs, counts, leftRandom);
+			AssignLeavesTask right = new AssignLeavesTask(in.right, depth+1, split, hi, keys, sections, leafIDs, counts, rightRandom);
+			if( parallel && hi - lo + 1 >= PARALLEL_THRESHOLD ) {
+				ForkJoinTask.invokeAll(left, right);
+			} else {
+				left.compute();
+				right.compute();
+			}
+		}
+	}
+	
+	/* index of the first entry in keys[lo..hi] greater than "key" (hi+1 if there is none) */
+	private static int upperBound(int keys[], int lo, int hi, int key) {
+		int begin = lo, end = hi + 1;
+		while( begin < end ) {
+			int mid = (begin + end) >>> 1;
+			if( keys[mid] <= key ) 
+				begin = mid + 1;
+			else
+				end = mid;
 		}
+		return begin;
 	}
 	
 	/*
 	 * We have 0, 1, .. h - 1 sections.
 	 * Each record is assigned a section
 	 * We need to ensure that this is uniform e.g. if h=4 and numRecords=100, we have 25 even assignments of 0, 1, 2, and 3.
+	 * 
+	 * This stays on one thread: the per-section quotas are global to all the records.
 	 */
-	private void assignSections(int height, Node node, ArrayList<Record> records) {
+	private void assignSections(int height, Node node, int recordSections[], SplittableRandom random) {
 		/* "height" is the number of sections we want to create */
 		int sections[] = new int[height];
 		for( int i = 0; i < sections.length; i++ ) 
-			sections[i] = records.size() / height;
+			sections[i] = recordSections.length / height;
 
 		/* now assign any reminders: */
-		int remainder = records.size() % height;
+		int remainder = recordSections.length % height;
 		for( int i = 0; i < remainder; i++ )
 			sections[i]++;
 		
-		for( int i = 0; i < records.size(); i++ ) {
+		for( int i = 0; i < recordSections.length; i++ ) {
 			int randomSection = -1;
 			while(true) {
-				randomSection = (int)(height * Math.random());
+				randomSection = random.nextInt(height);
 				if( sections[randomSection] > 0 ) {
 					sections[randomSection]--;
 					break;
 				}
 			}
 			
-			records.get(i).section = randomSection;
+			recordSections[i] = randomSection;
 		}		
 	}
 	
@@ -426,13 +992,42 @@ public class ACETree  {
 	 * 
 	 * See Figure 2 in the paper to understand deeper.
 	 * 
+	 * "firstLeaf" is the index of the left-most leaf under this node - the subtree at height "h" has 2^(height-h) leaves,
+	 * so the leaf indexes do not depend on the order in which the subtrees are built.
+	 * 
+	 * The two children are built as separate tasks when we are building in parallel and there is enough work.
 	 */
-	private Node constructPhase1(int currentHeight, ArrayList<Record> records, int start, int end, ArrayList<Range> rangeArray) {
+	class Phase1Task extends RecursiveTask<Node> {
+		private static final long serialVersionUID = 1L;
+		
+		private int currentHeight;
+		private int records[];
+		private int start;
+		private int end;
+		private ArrayList<Range> rangeArray;
+		private int firstLeaf;
+		
+		Phase1Task(int currentHeight, int records[], int start, int end, ArrayList<Range> rangeArray, int firstLeaf) {
+			this.currentHeight = currentHeight;
+			this.records = records;
+			this.start = start;
+			this.end = end;
+			this.rangeArray = rangeArray;
+			this.firstLeaf = firstLeaf;
+		}
+		
+		@Override
+		protected Node compute() {
+			return constructPhase1(currentHeight, records, start, end, rangeArray, firstLeaf);
+		}
+	}
+	
+	private Node constructPhase1(int currentHeight, int records[], int start, int end, ArrayList<Range> rangeArray, int firstLeaf) {
 		
 		/* check if we have reached the limit of heights */
 		if( currentHeight >= this.height ) {
 			/* create leaf node */
-			return createLeafNode(rangeArray);
+			return createLeafNode(firstLeaf, rangeArray);
 		}
 		
 		InternalNode n = new InternalNode();
@@ -443,7 +1038,7 @@ public class ACETree  {
 		
 		/* middle index: */
 		n.key_index = start + (end-start)/2;
-		n.key = records.get( n.key_index ).value;
+		n.key = records[n.key_index];
 
 		/* count for left and right */
 		n.countLeft = n.key_index -start+1;
@@ -455,44 +1050,58 @@ public class ACETree  {
 		/* In order for the range not to have gaps, we will use the end of the left range and add 1 to it */
 		int left_begin = -1;
 		if( start != 0 ) {
-			left_begin = records.get(start-1).value + 1;
+			left_begin = records[start-1] + 1;
 		} else {
-			left_begin = records.get(start).value;
+			left_begin = records[start];
 		}
-		
-		Range r = new Range(/* records.get(start).value */ left_begin, records.get(n.key_index).value);
-		rangeArray.add(r);
-		n.left = constructPhase1(currentHeight+1, records, start, n.key_index, rangeArray);
-		rangeArray.remove(rangeArray.size()-1);
-		n.setLeafIndexes(n.left);
-		
+		Range leftRange = new Range(/* records[start] */ left_begin, records[n.key_index]);
+		int leftFirstLeaf = firstLeaf;
 
 		/* right child */
 		/* In order for the range not to have gaps, we will use the end of the left range and add 1 to it */
-		int right_begin = records.get(n.key_index).value + 1;
+		int right_begin = records[n.key_index] + 1;
+		Range rightRange = new Range(/* records[n.key_index+1] */ right_begin, records[end]);
+		int rightFirstLeaf = firstLeaf + ACETree.twoPowerN(this.height-currentHeight-1);
 		
-		r = new Range(/* records.get(n.key_index+1).value */ right_begin, records.get(end).value);
-		rangeArray.add(r);
-		n.right = constructPhase1(currentHeight+1, records, n.key_index + 1, end, rangeArray);
-		rangeArray.remove(rangeArray.size()-1);		
+		if( parallel && end - start + 1 >= PARALLEL_THRESHOLD ) {
+			/* the tasks run concurrently, so each gets its own copy of the range stack */
+			ArrayList<Range> leftArray = new ArrayList<Range>(rangeArray);
+			leftArray.add(leftRange);
+			Phase1Task left = new Phase1Task(currentHeight+1, records, start, n.key_index, leftArray, leftFirstLeaf);
+			
+			ArrayList<Range> rightArray = new ArrayList<Range>(rangeArray);
+			rightArray.add(rightRange);
+			Phase1Task right = new Phase1Task(currentHeight+1, records, n.key_index + 1, end, rightArray, rightFirstLeaf);
+			
+			ForkJoinTask.invokeAll(left, right);
+			n.left = left.join();
+			n.right = right.join();
+		} else {
+			rangeArray.add(leftRange);
+			n.left = constructPhase1(currentHeight+1, records, start, n.key_index, rangeArray, leftFirstLeaf);
+			rangeArray.remove(rangeArray.size()-1);
+			
+			rangeArray.add(rightRange);
+			n.right = constructPhase1(currentHeight+1, records, n.key_index + 1, end, rangeArray, rightFirstLeaf);
+			rangeArray.remove(rangeArray.size()-1);		
+		}
+		n.setLeafIndexes(n.left);
 		n.setLeafIndexes(n.right);
 		
 		return n;
 	}
 	
 	/*
-	 * gets the running ID from the main class.
+	 * the leaf index is handed down by the phase 1 recursion.
 	 * 
 	 * note that we keep track of all the LeafNodes that are created
 	 */
-	private LeafNode createLeafNode(ArrayList<Range> rangeArray) {
-		
-		int leafID = leafNodes.size();
+	private LeafNode createLeafNode(int leafID, ArrayList<Range> rangeArray) {
 		
 		LeafNode leafNode = new LeafNode(leafID, rangeArray);
 		
 		/* remember it */
-		leafNodes.add(leafNode);
+		leafNodes.set(leafID, leafNode);
 		
 		return leafNode;
 	}
@@ -0,0 +1,188 @@
+package tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.IntConsumer;
+
+import tools.ACETree.LeafNode;
+
+/*
+ * Runs many range queries over one tree as a shared scan.
+ *
+ * Each query is an ordinary ACETreeSearch with its own shuttle and buckets, and the searches are advanced in rounds,
+ * one stab each per round.  What we share is the leaf reads.  Overlapping queries go through their leaves in different
+ * orders, so two of them rarely want the same leaf in the same round - instead a leaf that is read is kept (pinned)
+ * until the last search that is going to stab it has done so.  Then every leaf is read once, however many of the
+ * queries want it and whenever they get to it.
+ *
+ * That works because the shuttle only looks at the skeleton, not at the leaves: the constructor runs each shuttle to
+ * the end and keeps the order of its stabs, so for every leaf we know which rounds it is wanted in.  The searches stab
+ * their leaves in that same order, so they give the same samples as they would on their own.
+ *
+ * The leaves kept in the meantime can be a good part of those the queries share.  "maxCachedLeaves" bounds them: when
+ * it is over, the leaf whose next stab is furthest off is let go (the best choice, since we know the future), and read
+ * again when its turn comes.  Leaves wanted in the current round are never let go, so a round may go over the bound.
+ *
+ * Not thread safe - like ACETreeSearch, one batch belongs to one thread.
+ */
+public class ACETreeBatchSearch {
+	private final ACETree tree;
+	private final ACETreeSearch searches[];
+
+	/* the leaf of every stab of search i, in order - -1 for a stab that comes back empty */
+	private final int stabOrder[][];
+	private int round;
+	private final int numRounds;
+
+	/*
+	 * the rounds each leaf is wanted in, in order: leaf l's are useRounds[useStart[l] .. useStart[l+1]), and the ones
+	 * before nextUse[l] are behind us.
+	 */
+	private final int useStart[];
+	private final int useRounds[];
+	private final int nextUse[];
+
+	/* the leaves read and not let go yet - and the same by how far off their next round is, furthest first */
+	private final LeafNode cached[];
+	private int numCached;
+	private final int maxCachedLeaves;
+	private final PriorityQueue<Long> byNextUse = new PriorityQueue<Long>(11, Collections.<Long>reverseOrder());
+
+	/* counters: stabs that reached a leaf, and leaves actually read */
+	private long stabs;
+	private long leavesRead;
+
+	public ACETreeBatchSearch(ACETree tree, List<Range> queryRanges) {
+		this(tree, queryRanges, Integer.MAX_VALUE);
+	}
+
+	public ACETreeBatchSearch(ACETree tree, List<Range> queryRanges, int maxCachedLeaves) {
+		if( maxCachedLeaves < 1 )
+			throw new IllegalArgumentException("maxCachedLeaves must be at least 1: " + maxCachedLeaves);
+		this.tree = tree;
+		this.maxCachedLeaves = maxCachedLeaves;
+		this.searches = new ACETreeSearch[queryRanges.size()];
+		this.stabOrder = new int[searches.length][];
+
+		/* every stab of every search, and how many times each leaf is wanted */
+		int rounds = 0;
+		int uses[] = new int[tree.numLeaves];
+		SampleBuffer order = new SampleBuffer();
+		for( int i = 0; i < searches.length; i++ ) {
+			searches[i] = new ACETreeSearch(tree, queryRanges.get(i));
+			order.clear();
+			while( !searches[i].done() ) {
+				int leafIndex = searches[i].nextStab();
+				order.accept(leafIndex);
+				if( leafIndex != -1 )
+					uses[leafIndex]++;
+			}
+			stabOrder[i] = order.toArray();
+			rounds = Math.max(rounds, stabOrder[i].length);
+		}
+		this.numRounds = rounds;
+
+		/* then the rounds of each leaf - going through the rounds in order keeps them sorted */
+		this.useStart = new int[tree.numLeaves + 1];
+		for( int l = 0; l < tree.numLeaves; l++ )
+			useStart[l + 1] = useStart[l] + uses[l];
+		this.useRounds = new int[useStart[tree.numLeaves]];
+		this.nextUse = Arrays.copyOf(useStart, tree.numLeaves);
+		for( int r = 0; r < numRounds; r++ ) {
+			for( int i = 0; i < searches.length; i++ ) {
+				if( r < stabOrder[i].length && stabOrder[i][r] != -1 )
+					useRounds[nextUse[stabOrder[i][r]]++] = r;
+			}
+		}
+		System.arraycopy(useStart, 0, nextUse, 0, tree.numLeaves);
+		this.cached = new LeafNode[tree.numLeaves];
+	}
+
+	/*
+	 * One round.  Every search that is not done does one stab.
+	 *
+	 * Returns the samples of each search, in the order of the query ranges (empty for the searches that are done or whose
+	 * stab came back empty).
+	 */
+	public ArrayList<ArrayList<Integer>> search() {
+		ArrayList<ArrayList<Integer>> results = new ArrayList<ArrayList<Integer>>(searches.length);
+		for( int i = 0; i < searches.length; i++ )
+			results.add(new ArrayList<Integer>());
+		if( done() )
+			return results;
+
+		long readBefore = leavesRead;
+		int roundStabs = 0;
+		for( int i = 0; i < searches.length; i++ ) {
+			if( round >= stabOrder[i].length || stabOrder[i][round] == -1 )
+				continue;
+
+			int leafIndex = stabOrder[i][round];
+			LeafNode leaf = cached[leafIndex];
+			if( leaf == null ) {
+				leaf = tree.pinLeaf(leafIndex);
+				cached[leafIndex] = leaf;
+				numCached++;
+				leavesRead++;
+			}
+
+			final ArrayList<Integer> result = results.get(i);
+			searches[i].stab(leaf, new IntConsumer() {
+				public void accept(int value) { result.add(value); }
+			});
+			roundStabs++;
+
+			/* this round's use of the leaf is done - let it go if that was the last, or note when the next one is */
+			if( ++nextUse[leafIndex] == useStart[leafIndex + 1] )
+				release(leafIndex);
+			else if( useRounds[nextUse[leafIndex]] > round )
+				byNextUse.add(((long)useRounds[nextUse[leafIndex]] << 32) | leafIndex);
+		}
+		stabs += roundStabs;
+
+		/* over the bound - let go of the leaves wanted furthest off, as long as that is after this round */
+		while( numCached > maxCachedLeaves && !byNextUse.isEmpty() ) {
+			long entry = byNextUse.poll();
+			int leafIndex = (int)entry;
+			int when = (int)(entry >>> 32);
+			if( cached[leafIndex] == null || nextUse[leafIndex] == useStart[leafIndex + 1] || useRounds[nextUse[leafIndex]] != when )
+				continue;
+			if( when <= round )
+				break;
+			release(leafIndex);
+		}
+
+		round++;
+		Trace.event( Trace.Verbose, "batch round: %d stabs, %d leaves read, %d kept", roundStabs, leavesRead - readBefore, numCached );
+		return results;
+	}
+
+	private void release(int leafIndex) {
+		tree.unpinLeaf(cached[leafIndex]);
+		cached[leafIndex] = null;
+		numCached--;
+	}
+
+	/* all the queries are done */
+	public boolean done() {
+		return round >= numRounds;
+	}
+
+	/*
+	 * the search of the i-th query range - e.g. to look at its metrics.  Its shuttle has already been run to the end
+	 * (see above), so it says it is done; the batch is the one to ask.
+	 */
+	public ACETreeSearch getSearch(int i) {
+		return searches[i];
+	}
+
+	public long getStabs() { return stabs; }
+
+	public long getLeavesRead() { return leavesRead; }
+
+	/* leaves read and not let go yet */
+	public int getCachedLeaves() { return numCached; }
+}
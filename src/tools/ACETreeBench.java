@@ -0,0 +1,235 @@
+package tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.function.IntConsumer;
+
+import tools.ACETree.LeafNode;
+import tools.ACETree.LeafSection;
+
+/*
+ * Micro benchmarks of the build and of one stab, broken down into its parts.
+ *
+ * - build      - building a tree, for several sizes and leaf sizes (LOG_LEAF_SIZE).
+ * - search     - one search() call, i.e. one stab.
+ * - stab       - combineTuples on a leaf that is already in memory.
+ * - filter     - filterAndAdd over all the sections of a leaf, into a SampleBuffer.
+ * - buckets    - setting up a search, which is mostly building its buckets.
+ *
+ * Each runs over uniform, skewed and duplicate heavy keys.  A benchmark is run for WARMUP_ITERATIONS that are thrown
+ * away and then MEASURED_ITERATIONS, each at least ITERATION_MILLIS long; we report the median time per operation, the
+ * bytes the benchmark thread allocated per operation, and the records handled per operation.  The output is CSV:
+ *
+ *     benchmark,dataset,n,logLeafSize,ns/op,bytes/op,items/op
+ *
+ * usage: ACETreeBench [benchmark ...]     (all of them by default)
+ *
+ * This is the quick look, with nothing but the JDK.  The same benchmarks are under JMH in jmh/ (mvn -B package there),
+ * with forks, warmup control and -prof gc - use those for numbers to compare.  They take their datasets and query from
+ * here.
+ */
+public class ACETreeBench {
+	private static final int MAX_KEY = 1 << 24;
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int MEASURED_ITERATIONS = 5;
+	private static final long ITERATION_MILLIS = 200;
+
+	private static final int BUILD_SIZES[] = { 1 << 16, 1 << 18, 1 << 20 };
+	private static final int BUILD_LOG_LEAF_SIZES[] = { 7, 10, 13 };
+	private static final int SEARCH_SIZE = 1 << 20;
+
+	private static final String DATASETS[] = { "uniform", "skewed", "duplicates" };
+
+	/* one operation of a benchmark - returns the number of records it handled */
+	interface Op {
+		long run();
+	}
+
+	/* everything the benchmarks produce ends up here, so that the JIT cannot drop the work */
+	private static long blackhole;
+	private static final IntConsumer SINK = new IntConsumer() {
+		public void accept(int value) { blackhole += value; }
+	};
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	/* the keys of a dataset */
+	static int[] dataset(String name, int n, long seed) {
+		SplittableRandom random = new SplittableRandom(seed);
+		int keys[] = new int[n];
+		for( int i = 0; i < n; i++ ) {
+			if( name.equals("uniform") )
+				keys[i] = random.nextInt(MAX_KEY);
+			else if( name.equals("skewed") )
+				keys[i] = (int)(MAX_KEY * Math.pow(random.nextDouble(), 8));	/* most of the keys near 0 */
+			else if( name.equals("duplicates") )
+				keys[i] = random.nextInt(256) * (MAX_KEY / 256);
+			else
+				throw new IllegalArgumentException("unknown dataset " + name);
+		}
+		return keys;
+	}
+
+	/* a query holding about "fraction" of the keys, from the middle of their sorted order */
+	static Range query(int keys[], double fraction) {
+		int sorted[] = Arrays.copyOf(keys, keys.length);
+		Arrays.sort(sorted);
+		int from = sorted.length / 2;
+		int to = Math.min(sorted.length - 1, from + (int)(fraction * sorted.length));
+		return new Range(sorted[from], sorted[to]);
+	}
+
+	/*
+	 * runs "op" as described above and prints a line.
+	 */
+	static void measure(String benchmark, String dataset, int n, int logLeafSize, Op op) {
+		double nsPerOp[] = new double[MEASURED_ITERATIONS];
+		double bytesPerOp[] = new double[MEASURED_ITERATIONS];
+		double itemsPerOp = 0;
+
+		for( int iteration = -WARMUP_ITERATIONS; iteration < MEASURED_ITERATIONS; iteration++ ) {
+			long ops = 0, items = 0;
+			long bytesBefore = allocatedBytes();
+			long start = System.nanoTime();
+			long deadline = start + ITERATION_MILLIS * 1000000L;
+			long now;
+			do {
+				items += op.run();
+				ops++;
+				now = System.nanoTime();
+			} while( now < deadline );
+			long bytes = allocatedBytes() - bytesBefore;
+
+			if( iteration >= 0 ) {
+				nsPerOp[iteration] = (double)(now - start) / ops;
+				bytesPerOp[iteration] = bytesBefore < 0 ? -1 : (double)bytes / ops;
+				itemsPerOp = (double)items / ops;
+			}
+		}
+
+		System.out.printf( "%s,%s,%d,%d,%.1f,%.1f,%.1f\n", benchmark, dataset, n, logLeafSize, median(nsPerOp), median(bytesPerOp), itemsPerOp );
+	}
+
+	private static double median(double values[]) {
+		double sorted[] = Arrays.copyOf(values, values.length);
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	/* bytes allocated so far by this thread - -1 if the JVM does not tell */
+	@SuppressWarnings("deprecation")
+	private static long allocatedBytes() {
+		if( threads instanceof com.sun.management.ThreadMXBean )
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	static void benchBuild(String dataset) {
+		for( final int n : BUILD_SIZES ) {
+			final int keys[] = dataset(dataset, n, 1);
+			for( final int logLeafSize : BUILD_LOG_LEAF_SIZES ) {
+				measure("build", dataset, n, logLeafSize, new Op() {
+					public long run() {
+						ACETree tree = new ACETree(keys, 1, null, logLeafSize);
+						return tree.size();
+					}
+				});
+			}
+		}
+	}
+
+	static void benchSearch(String dataset, final ACETree tree, final Range range) {
+		measure("search", dataset, tree.size(), tree.logLeafSize, new Op() {
+			private ACETreeSearch search = new ACETreeSearch(tree, range);
+			public long run() {
+				/* a done search is replaced - its set up is spread over its stabs, as it would be in use */
+				if( search.done() )
+					search = new ACETreeSearch(tree, range);
+				return search.search(SINK);
+			}
+		});
+	}
+
+	static void benchStab(String dataset, final ACETree tree, final Range range) {
+		measure("stab", dataset, tree.size(), tree.logLeafSize, new Op() {
+			private final SplittableRandom random = new SplittableRandom(2);
+			private final ACETreeSearch search = new ACETreeSearch(tree, range);
+			public long run() {
+				LeafNode leaf = tree.getLeaf(random.nextInt(tree.numLeaves));
+				search.stab(leaf, SINK);
+				return leafSize(leaf);
+			}
+		});
+	}
+
+	static void benchFilter(String dataset, final ACETree tree, final Range range) {
+		measure("filter", dataset, tree.size(), tree.logLeafSize, new Op() {
+			private final SplittableRandom random = new SplittableRandom(3);
+			private final SampleBuffer buffer = new SampleBuffer();
+			public long run() {
+				LeafNode leaf = tree.getLeaf(random.nextInt(tree.numLeaves));
+				buffer.clear();
+				for( LeafSection section : leaf.sections )
+					ACETreeSearch.filterAndAdd(range, section, buffer);
+				blackhole += buffer.size();
+				return leafSize(leaf);
+			}
+		});
+	}
+
+	static void benchBuckets(String dataset, final ACETree tree, final Range range) {
+		measure("buckets", dataset, tree.size(), tree.logLeafSize, new Op() {
+			public long run() {
+				new ACETreeSearch(tree, range);
+				/* the buckets have 1 + 2 + ... + numLeaves ranges */
+				return 2 * tree.numLeaves - 1;
+			}
+		});
+	}
+
+	private static int leafSize(LeafNode leaf) {
+		int size = 0;
+		for( LeafSection section : leaf.sections )
+			size += section.size();
+		return size;
+	}
+
+	private static boolean selected(String args[], String benchmark) {
+		if( args.length == 0 )
+			return true;
+		for( String arg : args ) {
+			if( arg.equals(benchmark) )
+				return true;
+		}
+		return false;
+	}
+
+	public static void main(String args[]) {
+		/* the build logs a line per tree - keep stdout to the CSV */
+		int level = Trace.getLevel();
+		Trace.setLevel(Trace.None);
+
+		System.out.printf( "benchmark,dataset,n,logLeafSize,ns/op,bytes/op,items/op\n" );
+		for( String dataset : DATASETS ) {
+			if( selected(args, "build") )
+				benchBuild(dataset);
+
+			int keys[] = dataset(dataset, SEARCH_SIZE, 1);
+			ACETree tree = new ACETree(keys, 1, null);
+			Range range = query(keys, 0.01);
+			if( selected(args, "search") )
+				benchSearch(dataset, tree, range);
+			if( selected(args, "stab") )
+				benchStab(dataset, tree, range);
+			if( selected(args, "filter") )
+				benchFilter(dataset, tree, range);
+			if( selected(args, "buckets") )
+				benchBuckets(dataset, tree, range);
+		}
+
+		Trace.setLevel(level);
+		System.err.printf( "(blackhole %d)\n", blackhole );
+	}
+}
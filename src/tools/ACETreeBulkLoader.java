@@ -0,0 +1,546 @@
+package tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.zip.CRC32C;
+
+/*
+ * Builds an ACE Tree file (see ACETreeFile) from a file of keys, without ever holding the keys in memory.
+ *
+ * The input is a file of big-endian 4 byte keys - what DataOutputStream.writeInt writes.  Memory use is bounded by
+ * "memoryBytes" plus a few ints per leaf of the tree, and a random source per node.
+ *
+ * 1. run generation - the input is read in chunks that fit the budget, and each chunk is sorted and written to a run.
+ * 2. the runs are merged into one sorted stream.  The Phase 1 splits only depend on the number of keys (the medians are
+ *    at fixed positions), so as the sorted keys go by we pick up the keys at the splits, give each key its section and
+ *    its leaf as ACETree does, and write it tagged with (leaf, section) to a second set of runs.  The random choices
+ *    are made from the same sources, in the same order, as in ACETree - so the same seed and leaf size give the same
+ *    tree as new ACETree(keys, seed, null, logLeafSize), leaf for leaf.
+ * 3. those runs are merged into (leaf, section, key) order - the order of the leaf pages.  So the tree file is written
+ *    front to back in one sequential pass: room for the header, then one page per leaf.  The header goes in last,
+ *    once the checksums of the pages are known.
+ *
+ * Open the result with ACETreeFile.open().  The file format indexes records with ints, so a tree holds at most
+ * Integer.MAX_VALUE keys.
+ */
+public class ACETreeBulkLoader {
+	/* the most runs we read at once - more than that are merged in several levels */
+	private static final int MAX_FAN_IN = 64;
+	private static final int MIN_BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+	private final File input;
+	private final File output;
+	private final File tempDir;
+	private final long seed;
+	private final int logLeafSize;
+
+	/* half the budget sorts runs, the other half buffers the runs being merged */
+	private final int runLength;
+	private final int bufferSize;
+
+	/* the shape of the tree */
+	private int numKeys;
+	private int height;
+	private int numLeaves;
+
+	/*
+	 * Phase 1 in terms of the leaves: the position of the last key of each leaf in sorted order, and the key there.
+	 * Every split key and every range end of the skeleton is one of these - see nodeBegin(), nodeEnd() and writeNode().
+	 */
+	private int leafEndPosition[];
+	private int leafEndKey[];
+	private int firstKey;
+
+	/* the number of keys in each leaf - the largest decides the page size */
+	private int leafTotals[];
+
+	private ACETreeBulkLoader(File input, File output, long memoryBytes, long seed, int logLeafSize) {
+		if( logLeafSize < 0 || logLeafSize > 30 )
+			throw new IllegalArgumentException(String.format("log leaf size %d is out of range", logLeafSize));
+		this.input = input;
+		this.output = output;
+		this.tempDir = output.getAbsoluteFile().getParentFile();
+		this.seed = seed;
+		this.logLeafSize = logLeafSize;
+		this.runLength = (int)Math.max(1024, Math.min(Integer.MAX_VALUE - 8, memoryBytes / 2 / 8));
+		this.bufferSize = (int)Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, memoryBytes / 2 / (MAX_FAN_IN + 1)));
+	}
+
+	public static void load(File input, File output, long memoryBytes) throws IOException {
+		load(input, output, memoryBytes, System.nanoTime());
+	}
+
+	/*
+	 * writes the tree of the keys in "input" to "output".  "seed" drives the random choices as in ACETree.
+	 */
+	public static void load(File input, File output, long memoryBytes, long seed) throws IOException {
+		load(input, output, memoryBytes, seed, ACETree.LOG_LEAF_SIZE);
+	}
+
+	/* same, with leaves of about 2^logLeafSize records - see ACETree(int[], long, ForkJoinPool, int) */
+	public static void load(File input, File output, long memoryBytes, long seed, int logLeafSize) throws IOException {
+		new ACETreeBulkLoader(input, output, memoryBytes, seed, logLeafSize).load();
+	}
+
+	private void load() throws IOException {
+		long inputBytes = input.length();
+		if( inputBytes % 4 != 0 )
+			throw new IOException(String.format("%s is not a file of 4 byte keys", input));
+		if( inputBytes == 0 )
+			throw new IOException(String.format("%s has no keys", input));
+		if( inputBytes / 4 > Integer.MAX_VALUE )
+			throw new IOException(String.format("%d keys are more than a tree file can index", inputBytes / 4));
+
+		this.numKeys = (int)(inputBytes / 4);
+		this.height = Math.max(1, ACETree.getCeilingLog2(numKeys) - logLeafSize);
+		this.numLeaves = ACETree.twoPowerN(height - 1);
+		Trace.event( Trace.Verbose, "bulk load: %d keys, height %d, %d leaves", numKeys, height, numLeaves );
+
+		List<File> keyRuns = null, taggedRuns = null;
+		try {
+			keyRuns = sortRuns();
+			taggedRuns = assign(keyRuns);
+			writeTree(taggedRuns);
+		} finally {
+			deleteAll(keyRuns);
+			deleteAll(taggedRuns);
+		}
+	}
+
+	/* 1. sorted runs of the input keys */
+	private List<File> sortRuns() throws IOException {
+		RunWriter runs = new RunWriter(4);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(input), bufferSize));
+		try {
+			for( int i = 0; i < numKeys; i++ )
+				runs.add(in.readInt());
+		} finally {
+			in.close();
+		}
+		return runs.finish();
+	}
+
+	/*
+	 * 2. one pass over the sorted keys - the split keys, and a (leaf, section) for every key.
+	 *
+	 * The sections are drawn as in ACETree.assignSections.  A key with section "s" goes down "s" levels: it goes left
+	 * while it is at or before the split position, or equal to the split key (so duplicates of a split key go left, as
+	 * in the in-memory build) - the split key has always gone by when we need it.  Then it picks a random leaf under
+	 * the node it has reached - drawn from that node's random source, split off its parent's as in
+	 * ACETree.AssignLeavesTask.  The keys stopping at a node come by in sorted order there as well.
+	 */
+	private List<File> assign(List<File> keyRuns) throws IOException {
+		leafEndPosition = new int[numLeaves];
+		leafEndKey = new int[numLeaves];
+		leafTotals = new int[numLeaves];
+		computeLeafEnds(1, 0, 0, numKeys - 1);
+
+		int quota[] = new int[height];
+		for( int s = 0; s < height; s++ )
+			quota[s] = numKeys / height + (s < numKeys % height ? 1 : 0);
+
+		SplittableRandom random = new SplittableRandom(seed);
+		SplittableRandom sectionRandom = random.split();
+		SplittableRandom nodeRandom[] = new SplittableRandom[2 * numLeaves];
+		nodeRandom[1] = random.split();
+		for( int node = 1; node < numLeaves; node++ ) {
+			nodeRandom[2 * node] = nodeRandom[node].split();
+			nodeRandom[2 * node + 1] = nodeRandom[node].split();
+		}
+
+		RunWriter tagged = new RunWriter(8);
+		List<File> sortedRuns = reduce(keyRuns, 4);
+		MergeReader keys = new MergeReader(sortedRuns, 4);
+		try {
+			int nextLeafEnd = 0;
+			for( int i = 0; i < numKeys; i++ ) {
+				int key = (int)keys.next();
+				if( i == 0 )
+					firstKey = key;
+				if( nextLeafEnd < numLeaves && leafEndPosition[nextLeafEnd] == i )
+					leafEndKey[nextLeafEnd++] = key;
+
+				int section;
+				do {
+					section = sectionRandom.nextInt(height);
+				} while( quota[section] == 0 );
+				quota[section]--;
+
+				int node = 1;
+				for( int depth = 0; depth < section; depth++ ) {
+					int leftLast = lastLeaf(2 * node, depth + 1);
+					node = i <= leafEndPosition[leftLast] || key == leafEndKey[leftLast] ? 2 * node : 2 * node + 1;
+				}
+
+				int leaf = firstLeaf(node, section) + nodeRandom[node].nextInt(ACETree.twoPowerN(height - 1 - section));
+				leafTotals[leaf]++;
+				tagged.add(((long)(leaf * height + section) << 32) | ((key ^ Integer.MIN_VALUE) & 0xffffffffL));
+			}
+		} finally {
+			keys.close();
+			deleteAll(sortedRuns);
+		}
+		return tagged.finish();
+	}
+
+	/* the median splits of ACETree.constructPhase1, by position */
+	private void computeLeafEnds(int node, int depth, int start, int end) {
+		if( node >= numLeaves ) {
+			leafEndPosition[node - numLeaves] = end;
+			return;
+		}
+		int keyIndex = start + (end - start) / 2;
+		computeLeafEnds(2 * node, depth + 1, start, keyIndex);
+		computeLeafEnds(2 * node + 1, depth + 1, keyIndex + 1, end);
+	}
+
+	/* 3. the tree file - the pages in leaf order, then the header in front of them */
+	private void writeTree(List<File> taggedRuns) throws IOException {
+		int largest = 0;
+		for( int total : leafTotals )
+			largest = Math.max(largest, total);
+		int pageSize = ACETreeFile.roundUp(ACETreeFile.PAGE_FIXED_SIZE + height * ACETreeFile.PAGE_SECTION_SIZE + 4 * largest, ACETreeFile.PAGE_ALIGNMENT);
+
+		int headerBytes = ACETreeFile.HEADER_FIXED_SIZE + (numLeaves - 1) * ACETreeFile.INTERNAL_NODE_SIZE + numLeaves * ACETreeFile.LEAF_NODE_SIZE
+				+ numLeaves * 4 + 8 + 4 + 4;
+		long leafOffset = ACETreeFile.roundUp(headerBytes, ACETreeFile.PAGE_ALIGNMENT);
+
+		List<File> sortedRuns = reduce(taggedRuns, 8);
+		MergeReader records = new MergeReader(sortedRuns, 8);
+		int pageChecksums[] = new int[numLeaves];
+		CRC32C crc = new CRC32C();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), bufferSize));
+		try {
+			/* zeros where the header goes - a file that is never finished has no magic */
+			for( long i = 0; i < leafOffset; i++ )
+				out.writeByte(0);
+
+			ByteBuffer page = ByteBuffer.allocate(pageSize);
+			int counts[] = new int[height];
+			int keysStart = ACETreeFile.PAGE_FIXED_SIZE + height * ACETreeFile.PAGE_SECTION_SIZE;
+			for( int leaf = 0; leaf < numLeaves; leaf++ ) {
+				Arrays.fill(page.array(), (byte)0);
+				Arrays.fill(counts, 0);
+
+				/* the records come sorted on (leaf, section, key) - exactly how the page lays them out */
+				int offset = keysStart;
+				while( records.hasNext() && (int)(records.peek() >>> 32) / height == leaf ) {
+					long record = records.next();
+					counts[(int)(record >>> 32) % height]++;
+					page.putInt(offset, (int)record ^ Integer.MIN_VALUE);
+					offset += 4;
+				}
+
+				page.putInt(0, leaf);
+				page.putInt(4, height);
+				int sectionOffset = ACETreeFile.PAGE_FIXED_SIZE;
+				for( int s = 0; s < height; s++ ) {
+					int node = (numLeaves + leaf) >> (height - 1 - s);
+					page.putInt(sectionOffset, nodeBegin(node, s));
+					page.putInt(sectionOffset + 4, nodeEnd(node, s));
+					page.putInt(sectionOffset + 8, counts[s]);
+					sectionOffset += ACETreeFile.PAGE_SECTION_SIZE;
+				}
+				crc.reset();
+				crc.update(page.array());
+				pageChecksums[leaf] = (int)crc.getValue();
+				out.write(page.array());
+			}
+			if( records.hasNext() )
+				throw new IllegalStateException("records left over after the last leaf");
+		} finally {
+			records.close();
+			deleteAll(sortedRuns);
+			out.close();
+		}
+
+		ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream(headerBytes);
+		DataOutputStream header = new DataOutputStream(headerBuffer);
+		header.writeInt(ACETreeFile.MAGIC);
+		header.writeInt(ACETreeFile.VERSION);
+		header.writeInt(logLeafSize);
+		header.writeInt(height);
+		header.writeInt(numLeaves);
+		header.writeInt(pageSize);
+		header.writeLong(leafOffset);
+		header.writeInt(ACETreeFile.ENCODING_PLAIN);
+		header.writeLong(seed);
+		header.writeInt(8 + 4);
+		writeNode(header, 1, 0);
+		for( int checksum : pageChecksums )
+			header.writeInt(checksum);
+
+		/* a new tree has nothing deleted - no dead ratio, no sections with tombstones */
+		header.writeDouble(0);
+		header.writeInt(0);
+		crc.reset();
+		crc.update(headerBuffer.toByteArray());
+		header.writeInt((int)crc.getValue());
+		assert header.size() == headerBytes;
+
+		RandomAccessFile raf = new RandomAccessFile(output, "rw");
+		try {
+			raf.write(headerBuffer.toByteArray());
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/* the nodes in pre-order, as ACETreeFile writes them */
+	private void writeNode(DataOutputStream out, int node, int depth) throws IOException {
+		if( node >= numLeaves ) {
+			out.writeInt(ACETreeFile.NODE_LEAF);
+			out.writeInt(node - numLeaves);
+			out.writeInt(nodeBegin(node, depth));
+			out.writeInt(nodeEnd(node, depth));
+			return;
+		}
+
+		int first = firstLeaf(node, depth);
+		int start = first == 0 ? 0 : leafEndPosition[first - 1] + 1;
+		int keyIndex = leafEndPosition[lastLeaf(2 * node, depth + 1)];
+		int end = leafEndPosition[lastLeaf(node, depth)];
+
+		out.writeInt(ACETreeFile.NODE_INTERNAL);
+		out.writeInt(nodeBegin(node, depth));
+		out.writeInt(nodeEnd(node, depth));
+		out.writeInt(leafEndKey[lastLeaf(2 * node, depth + 1)]);
+		out.writeInt(keyIndex);
+		out.writeInt(keyIndex - start + 1);
+		out.writeInt(end - keyIndex);
+		writeNode(out, 2 * node, depth + 1);
+		writeNode(out, 2 * node + 1, depth + 1);
+	}
+
+	/* as in constructPhase1 - a range starts just past the key before it, so that the ranges have no gaps */
+	private int nodeBegin(int node, int depth) {
+		int first = firstLeaf(node, depth);
+		return first == 0 ? firstKey : leafEndKey[first - 1] + 1;
+	}
+
+	private int nodeEnd(int node, int depth) {
+		return leafEndKey[lastLeaf(node, depth)];
+	}
+
+	private int firstLeaf(int node, int depth) {
+		return (node << (height - 1 - depth)) - numLeaves;
+	}
+
+	private int lastLeaf(int node, int depth) {
+		return ((node + 1) << (height - 1 - depth)) - 1 - numLeaves;
+	}
+
+	/* merges runs in groups until few enough are left to read at once */
+	private List<File> reduce(List<File> runs, int width) throws IOException {
+		while( runs.size() > MAX_FAN_IN ) {
+			List<File> merged = new ArrayList<File>();
+			for( int i = 0; i < runs.size(); i += MAX_FAN_IN ) {
+				List<File> group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+				File f = newRunFile();
+				MergeReader in = new MergeReader(group, width);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), bufferSize));
+				try {
+					while( in.hasNext() )
+						write(out, in.next(), width);
+				} finally {
+					in.close();
+					out.close();
+				}
+				merged.add(f);
+			}
+			deleteAll(runs);
+			runs = merged;
+		}
+		return runs;
+	}
+
+	private File newRunFile() throws IOException {
+		File f = File.createTempFile("acetree-run", ".tmp", tempDir);
+		f.deleteOnExit();
+		return f;
+	}
+
+	private static void write(DataOutputStream out, long value, int width) throws IOException {
+		if( width == 4 )
+			out.writeInt((int)value);
+		else
+			out.writeLong(value);
+	}
+
+	private static void deleteAll(List<File> files) {
+		if( files == null )
+			return;
+		for( File f : files )
+			f.delete();
+	}
+
+	/*
+	 * collects values into a buffer of "runLength" and writes it out sorted whenever it fills up.  "width" is the
+	 * number of bytes written per value - 4 for keys, 8 for tagged records.
+	 */
+	private class RunWriter {
+		private final int width;
+		private final long buffer[];
+		private int count;
+		private final List<File> runs = new ArrayList<File>();
+
+		RunWriter(int width) {
+			this.width = width;
+			this.buffer = new long[Math.min(runLength, numKeys)];
+		}
+
+		void add(long value) throws IOException {
+			if( count == buffer.length )
+				flush();
+			buffer[count++] = value;
+		}
+
+		List<File> finish() throws IOException {
+			flush();
+			return runs;
+		}
+
+		private void flush() throws IOException {
+			if( count == 0 )
+				return;
+			Arrays.sort(buffer, 0, count);
+
+			File f = newRunFile();
+			runs.add(f);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), bufferSize));
+			try {
+				for( int i = 0; i < count; i++ )
+					write(out, buffer[i], width);
+			} finally {
+				out.close();
+			}
+			Trace.event( Trace.Verbose, "bulk load: run %d of %d values", runs.size(), count );
+			count = 0;
+		}
+	}
+
+	/*
+	 * the sorted merge of some runs - a binary heap of the runs, ordered on their current value.
+	 */
+	private class MergeReader {
+		private final int width;
+		private final DataInputStream in[];
+		private final long head[];
+		private final int heap[];
+		private int heapSize;
+
+		MergeReader(List<File> runs, int width) throws IOException {
+			this.width = width;
+			this.in = new DataInputStream[runs.size()];
+			this.head = new long[runs.size()];
+			this.heap = new int[runs.size()];
+			try {
+				for( int i = 0; i < in.length; i++ ) {
+					in[i] = new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(i)), bufferSize));
+					if( advance(i) )
+						push(i);
+				}
+			} catch(IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		boolean hasNext() {
+			return heapSize > 0;
+		}
+
+		long peek() {
+			return head[heap[0]];
+		}
+
+		long next() throws IOException {
+			int run = heap[0];
+			long value = head[run];
+			if( advance(run) ) {
+				siftDown(0);
+			} else {
+				heap[0] = heap[--heapSize];
+				siftDown(0);
+			}
+			return value;
+		}
+
+		/* reads the next value of a run into head[] - false at its end */
+		private boolean advance(int run) throws IOException {
+			try {
+				head[run] = width == 4 ? in[run].readInt() : in[run].readLong();
+				return true;
+			} catch(EOFException e) {
+				return false;
+			}
+		}
+
+		private void push(int run) {
+			int i = heapSize++;
+			heap[i] = run;
+			while( i > 0 && head[heap[(i - 1) / 2]] > head[heap[i]] ) {
+				swap(i, (i - 1) / 2);
+				i = (i - 1) / 2;
+			}
+		}
+
+		private void siftDown(int i) {
+			while( true ) {
+				int smallest = i, left = 2 * i + 1, right = left + 1;
+				if( left < heapSize && head[heap[left]] < head[heap[smallest]] )
+					smallest = left;
+				if( right < heapSize && head[heap[right]] < head[heap[smallest]] )
+					smallest = right;
+				if( smallest == i )
+					return;
+				swap(i, smallest);
+				i = smallest;
+			}
+		}
+
+		private void swap(int i, int j) {
+			int t = heap[i];
+			heap[i] = heap[j];
+			heap[j] = t;
+		}
+
+		void close() throws IOException {
+			for( DataInputStream s : in ) {
+				if( s != null )
+					s.close();
+			}
+		}
+	}
+
+	/*
+	 * ACETreeBulkLoader <keys file> <tree file> [memory MB] [log leaf size]
+	 */
+	public static void main(String args[]) throws IOException {
+		if( args.length < 2 ) {
+			System.err.println("usage: ACETreeBulkLoader <keys file> <tree file> [memory MB] [log leaf size]");
+			System.exit(1);
+		}
+		long memoryBytes = (args.length > 2 ? Long.parseLong(args[2]) : 64) << 20;
+		int logLeafSize = args.length > 3 ? Integer.parseInt(args[3]) : ACETree.LOG_LEAF_SIZE;
+		long start = System.nanoTime();
+		load(new File(args[0]), new File(args[1]), memoryBytes, System.nanoTime(), logLeafSize);
+		System.out.printf("built %s in %.1f s\n", args[1], (System.nanoTime() - start) / 1e9);
+	}
+}
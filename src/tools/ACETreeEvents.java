@@ -0,0 +1,147 @@
+package tools;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+
+/*
+ * Java Flight Recorder events for the build and the search, so that a recording shows sampling latency next to the GC
+ * and I/O that caused it.
+ *
+ * - BuildPhase   - one per phase of ACETree construction: sort, constructPhase1, assignSections, assignLeaves.
+ * - Stab         - one per stab of ACETreeSearch, from combineTuples: the leaf, the sections it touched, the samples.
+ * - BucketFlush  - one per bucket flush: the samples it let out, and how many of them had been spilled.
+ *
+ * All are enabled by default with a threshold of 0 and no stack trace.  The stab and flush events are only created
+ * while a recording is running ("recording") - otherwise a stab costs a volatile read, and allocates nothing even
+ * before the JIT gets to it.
+ */
+final class ACETreeEvents {
+	private ACETreeEvents() {}
+
+	/* set while any recording is running - kept up to date by a listener on the FlightRecorder */
+	static volatile boolean recording;
+
+	static {
+		FlightRecorder.addListener(new FlightRecorderListener() {
+			public void recorderInitialized(FlightRecorder recorder) {
+				update(recorder);
+			}
+
+			public void recordingStateChanged(Recording r) {
+				update(FlightRecorder.getFlightRecorder());
+			}
+		});
+	}
+
+	private static void update(FlightRecorder recorder) {
+		boolean running = false;
+		for( Recording r : recorder.getRecordings() ) {
+			if( r.getState() == RecordingState.RUNNING )
+				running = true;
+		}
+		recording = running;
+	}
+
+	@Name("tools.ACETree.BuildPhase")
+	@Label("ACE Tree Build Phase")
+	@Category({ "ACE Tree" })
+	@StackTrace(false)
+	static class BuildPhase extends Event {
+		@Label("Phase")
+		String phase;
+
+		@Label("Records")
+		int records;
+
+		static BuildPhase start(String phase, int records) {
+			BuildPhase event = new BuildPhase();
+			event.phase = phase;
+			event.records = records;
+			event.begin();
+			return event;
+		}
+
+		void finish() {
+			end();
+			if( shouldCommit() )
+				commit();
+		}
+	}
+
+	@Name("tools.ACETreeSearch.Stab")
+	@Label("ACE Tree Stab")
+	@Category({ "ACE Tree" })
+	@StackTrace(false)
+	static class Stab extends Event {
+		@Label("Leaf Index")
+		int leafIndex;
+
+		@Label("Sections Touched")
+		@Description("Sections that encapsulated or overlapped the query")
+		int sectionsTouched;
+
+		@Label("Samples")
+		int samples;
+
+		/* null when nothing is recording */
+		static Stab start() {
+			if( !recording )
+				return null;
+			Stab event = new Stab();
+			event.begin();
+			return event;
+		}
+
+		void finish(int leafIndex, int sectionsTouched, int samples) {
+			end();
+			if( shouldCommit() ) {
+				this.leafIndex = leafIndex;
+				this.sectionsTouched = sectionsTouched;
+				this.samples = samples;
+				commit();
+			}
+		}
+	}
+
+	@Name("tools.ACETreeSearch.BucketFlush")
+	@Label("ACE Tree Bucket Flush")
+	@Category({ "ACE Tree" })
+	@StackTrace(false)
+	static class BucketFlush extends Event {
+		@Label("Bucket")
+		int bucketID;
+
+		@Label("Records Spilled")
+		long spilled;
+
+		@Label("Samples")
+		int samples;
+
+		/* null when nothing is recording */
+		static BucketFlush start() {
+			if( !recording )
+				return null;
+			BucketFlush event = new BucketFlush();
+			event.begin();
+			return event;
+		}
+
+		void finish(int bucketID, long spilled, int samples) {
+			end();
+			if( shouldCommit() ) {
+				this.bucketID = bucketID;
+				this.spilled = spilled;
+				this.samples = samples;
+				commit();
+			}
+		}
+	}
+}
@@ -0,0 +1,537 @@
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.zip.CRC32C;
+
+import tools.ACETree.InternalNode;
+import tools.ACETree.LeafNode;
+import tools.ACETree.LeafSection;
+import tools.ACETree.Node;
+
+/*
+ * Persistent, paged layout of an ACE Tree - also the snapshot of a built tree that a service restarts from, instead of
+ * sorting and building all over again.
+ *
+ * The point of the ACE Tree is that each stab reads a single leaf.  On disk, we make each leaf a fixed size page
+ * so a stab is exactly one page read, and keep everything else in a small header that is loaded up front.
+ *
+ * The file has two regions:
+ *
+ * 1. header (padded to PAGE_ALIGNMENT):
+ * 		magic, version, LOG_LEAF_SIZE, height, number of leaves, page size, offset of the leaf region (long), encoding,
+ * 		seed (long), bytes of tombstones
+ * 		the nodes in pre-order:
+ * 			internal node -> NODE_INTERNAL, range begin, range end, key, key_index, countLeft, countRight
+ * 			leaf node -> NODE_LEAF, leaf index, range begin, range end
+ * 		the CRC32C of each leaf page
+ * 		the tombstones -> the tree's maxDeadRatio (double), number of sections with deletes, then for each: leaf index,
+ * 			section index, number of words, the words of its bitmap (longs, see LeafSection.dead)
+ * 		the CRC32C of the header up to here
+ *
+ * 2. leaves - leaf i is at (leaf region offset + i * page size).  The page size is the largest leaf rounded up to
+ *    PAGE_ALIGNMENT, so every page starts on an aligned boundary.  Each page has:
+ * 		leaf index, number of sections
+ * 		for each section -> range begin, range end, count
+ * 		the keys of all the sections, one section after the other
+ *
+ *    How the keys are stored is the encoding of the file:
+ *    	ENCODING_PLAIN - an int per key.
+ *    	ENCODING_PACKED - each section's keys as offsets from its range begin, bit packed (PackedKeys) - a section
+ *    		whose range spans 2^12 values takes 12 bits per key instead of 32.  Smaller pages, so a stab reads less.
+ *
+ * The pages hold every record, deleted or not, and the tombstones go in the header - so the tree opens with the deletes
+ * it was written with, and the sections and counts of the skeleton are the same as in the tree that was written.
+ *
+ * Version 1 files have no encoding in the header and are plain; versions 1 and 2 have no seed and no checksums.  The
+ * tree they open to has seed 0, so its searches shuffle differently from the tree that was written.  Files before
+ * version 4 have no tombstones - they open with nothing deleted.
+ *
+ * write() writes to a temporary file next to the target and moves it over the target once it is on disk, so a crash
+ * leaves the old file or the new one, never part of either - and a tree opened from the old file goes on reading it.
+ *
+ * Opening a file gives back an ACETree whose internal nodes and section ranges are on the heap and whose leaves are
+ * read from a memory mapping of the leaf region - so it takes the time to read the header, not the tree.  The header
+ * checksum is checked then.  A page is checked the first time it is read, so a damaged page fails the stab that
+ * reads it instead of giving wrong samples; verify() checks them all up front.
+ */
+public class ACETreeFile implements LeafStore {
+	protected static final int MAGIC = 0x41434554;		/* "ACET" */
+	protected static final int VERSION = 4;
+	protected static final int PAGE_ALIGNMENT = 4096;
+
+	static final int NODE_LEAF = 0;
+	static final int NODE_INTERNAL = 1;
+
+	static final int ENCODING_PLAIN = 0;
+	static final int ENCODING_PACKED = 1;
+
+	/* bytes taken by the fixed part of the header, a node and the fixed part of a leaf page */
+	static final int HEADER_FIXED_SIZE = 8 * 4 + 2 * 8;
+	private static final int HEADER_FIXED_SIZE_V3 = 7 * 4 + 2 * 8;
+	private static final int HEADER_FIXED_SIZE_V2 = 7 * 4 + 8;
+	private static final int HEADER_FIXED_SIZE_V1 = 6 * 4 + 8;
+	static final int INTERNAL_NODE_SIZE = 7 * 4;
+	static final int LEAF_NODE_SIZE = 4 * 4;
+	static final int PAGE_FIXED_SIZE = 2 * 4;
+	static final int PAGE_SECTION_SIZE = 3 * 4;
+	static final int TOMBSTONE_SECTION_SIZE = 3 * 4;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private ACETree tree;
+	
+	/* the leaves of the tree without their data - readLeaf() takes the section ranges from here */
+	private ArrayList<LeafNode> skeleton;
+
+	/* a single mapping is limited to 2GB - so the leaf region is mapped in chunks of whole pages */
+	private MappedByteBuffer maps[];
+	private int pagesPerMap;
+	private int pageSize;
+	private int encoding;
+
+	/* the CRC32C of each page, null for files before version 3 - and which pages have been checked against it */
+	private int pageChecksums[];
+	private boolean pageVerified[];
+
+	private ACETreeFile(RandomAccessFile file) {
+		this.file = file;
+		this.channel = file.getChannel();
+	}
+
+	/*
+	 * writes "tree" to "f" - the tree may be in memory or itself opened from a file.
+	 */
+	public static void write(ACETree tree, File f) throws IOException {
+		write(tree, f, false);
+	}
+
+	/* same, with the keys bit packed if "packed" - see ENCODING_PACKED */
+	public static void write(ACETree tree, File f, boolean packed) throws IOException {
+		int numLeaves = tree.leafNodes.size();
+		int encoding = packed ? ENCODING_PACKED : ENCODING_PLAIN;
+
+		/* size the pages - the largest leaf decides */
+		int largest = 0;
+		for( int i = 0; i < numLeaves; i++ )
+			largest = Math.max(largest, pageBytes(tree.getLeaf(i), encoding));
+		int pageSize = roundUp(largest, PAGE_ALIGNMENT);
+
+		/* the deletes as of now - a later delete on the tree does not make it into the file */
+		long tombstones[][][] = tree.captureTombstones();
+		double maxDeadRatio = tree.maxDeadRatio();
+		int tombstoneBytes = 8 + 4;
+		for( long leafTombstones[][] : tombstones ) {
+			for( long dead[] : leafTombstones ) {
+				if( dead != null )
+					tombstoneBytes += TOMBSTONE_SECTION_SIZE + 8 * dead.length;
+			}
+		}
+
+		int headerBytes = HEADER_FIXED_SIZE + (numLeaves - 1) * INTERNAL_NODE_SIZE + numLeaves * LEAF_NODE_SIZE + numLeaves * 4 + tombstoneBytes + 4;
+		long leafOffset = roundUp(headerBytes, PAGE_ALIGNMENT);
+
+		File target = f.getAbsoluteFile();
+		File temp = File.createTempFile("." + target.getName() + "-", ".tmp", target.getParentFile());
+		boolean moved = false;
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+
+			/* the pages first, and the header with their checksums once they are on disk - a torn write fails open() */
+			int pageChecksums[] = new int[numLeaves];
+			CRC32C crc = new CRC32C();
+			ByteBuffer page = ByteBuffer.allocate(pageSize);
+			for( int i = 0; i < numLeaves; i++ ) {
+				page.clear();
+				writeLeaf(page, tree.getLeaf(i), encoding);
+
+				/* pad the page out so that the file is a whole number of pages */
+				while( page.hasRemaining() )
+					page.put((byte)0);
+				page.flip();
+				crc.reset();
+				crc.update(page.duplicate());
+				pageChecksums[i] = (int)crc.getValue();
+				writeFully(channel, page, leafOffset + (long)i * pageSize);
+			}
+			channel.force(true);
+
+			ByteBuffer header = ByteBuffer.allocate(headerBytes);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(tree.logLeafSize);
+			header.putInt(tree.height);
+			header.putInt(numLeaves);
+			header.putInt(pageSize);
+			header.putLong(leafOffset);
+			header.putInt(encoding);
+			header.putLong(tree.seed);
+			header.putInt(tombstoneBytes);
+			writeNode(header, tree.root);
+			for( int checksum : pageChecksums )
+				header.putInt(checksum);
+			writeTombstones(header, tombstones, maxDeadRatio);
+			crc.reset();
+			crc.update(header.array(), 0, header.position());
+			header.putInt((int)crc.getValue());
+			assert !header.hasRemaining();
+			header.flip();
+			writeFully(channel, header, 0);
+
+			channel.force(true);
+			raf.close();
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		} finally {
+			raf.close();
+			if( !moved )
+				temp.delete();
+		}
+	}
+
+	private static void writeTombstones(ByteBuffer header, long tombstones[][][], double maxDeadRatio) {
+		int sections = 0;
+		for( long leafTombstones[][] : tombstones ) {
+			for( long dead[] : leafTombstones ) {
+				if( dead != null )
+					sections++;
+			}
+		}
+		header.putDouble(maxDeadRatio);
+		header.putInt(sections);
+		for( int i = 0; i < tombstones.length; i++ ) {
+			for( int s = 0; s < tombstones[i].length; s++ ) {
+				long dead[] = tombstones[i][s];
+				if( dead == null )
+					continue;
+				header.putInt(i);
+				header.putInt(s);
+				header.putInt(dead.length);
+				for( long word : dead )
+					header.putLong(word);
+			}
+		}
+	}
+
+	/*
+	 * opens a file written by write().  Only the header is read here - the leaves are read one page per stab.
+	 * Throws IOException if the file is not an ACE tree file, is of an unknown version, or its header is damaged.
+	 */
+	public static ACETree open(File f) throws IOException {
+		ACETreeFile store = new ACETreeFile(new RandomAccessFile(f, "r"));
+		try {
+			store.load();
+		} catch(IOException e) {
+			store.close();
+			throw e;
+		} catch(RuntimeException e) {
+			store.close();
+			throw e;
+		}
+		return store.tree;
+	}
+
+	private void load() throws IOException {
+		if( channel.size() < HEADER_FIXED_SIZE )
+			throw new IOException("not an ACE tree file");
+		ByteBuffer fixed = ByteBuffer.allocate(HEADER_FIXED_SIZE);
+		readFully(channel, fixed, 0);
+		fixed.flip();
+
+		if( fixed.getInt() != MAGIC )
+			throw new IOException("not an ACE tree file");
+		int version = fixed.getInt();
+		if( version < 1 || version > VERSION )
+			throw new IOException(String.format("unsupported ACE tree file version %d", version));
+		int logLeafSize = fixed.getInt();
+		int height = fixed.getInt();
+		int numLeaves = fixed.getInt();
+		this.pageSize = fixed.getInt();
+		long leafOffset = fixed.getLong();
+		this.encoding = version == 1 ? ENCODING_PLAIN : fixed.getInt();
+		if( encoding != ENCODING_PLAIN && encoding != ENCODING_PACKED )
+			throw new IOException(String.format("unknown ACE tree file encoding %d", encoding));
+		long seed = version >= 3 ? fixed.getLong() : 0;
+		int tombstoneBytes = version >= 4 ? fixed.getInt() : 0;
+		int fixedSize = version == 1 ? HEADER_FIXED_SIZE_V1 : version == 2 ? HEADER_FIXED_SIZE_V2 : version == 3 ? HEADER_FIXED_SIZE_V3 : HEADER_FIXED_SIZE;
+		if( numLeaves < 1 || pageSize < PAGE_ALIGNMENT || pageSize % PAGE_ALIGNMENT != 0 || leafOffset < fixedSize || tombstoneBytes < 0 )
+			throw new IOException(String.format("corrupt ACE tree header: %d leaves, page size %d", numLeaves, pageSize));
+		if( channel.size() < leafOffset + (long)numLeaves * pageSize )
+			throw new IOException(String.format("ACE tree file is truncated: %d bytes", channel.size()));
+
+		/* the nodes, and from version 3 the checksums */
+		long headerBytes = fixedSize + (long)(numLeaves - 1) * INTERNAL_NODE_SIZE + (long)numLeaves * LEAF_NODE_SIZE;
+		if( version >= 3 )
+			headerBytes += numLeaves * 4L + tombstoneBytes + 4;
+		if( headerBytes > leafOffset )
+			throw new IOException(String.format("corrupt ACE tree header: %d bytes of it before a leaf region at %d", headerBytes, leafOffset));
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerBytes);
+		if( version >= 3 ) {
+			CRC32C crc = new CRC32C();
+			crc.update(header.duplicate().limit((int)headerBytes - 4));
+			if( header.getInt((int)headerBytes - 4) != (int)crc.getValue() )
+				throw new IOException("ACE tree file header does not match its checksum");
+		}
+		header.position(fixedSize);
+
+		this.skeleton = new ArrayList<LeafNode>(Collections.<LeafNode>nCopies(numLeaves, null));
+		Node root = readNode(header, new ArrayList<Range>());
+		if( version >= 3 ) {
+			this.pageChecksums = new int[numLeaves];
+			for( int i = 0; i < numLeaves; i++ )
+				pageChecksums[i] = header.getInt();
+			this.pageVerified = new boolean[numLeaves];
+		}
+		int tombstoneStart = header.position();
+
+		/* and map the leaves */
+		this.pagesPerMap = Integer.MAX_VALUE / pageSize;
+		int numMaps = (numLeaves + pagesPerMap - 1) / pagesPerMap;
+		this.maps = new MappedByteBuffer[numMaps];
+		for( int i = 0; i < numMaps; i++ ) {
+			int pages = Math.min(pagesPerMap, numLeaves - i * pagesPerMap);
+			long offset = leafOffset + (long)i * pagesPerMap * pageSize;
+			maps[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long)pages * pageSize);
+		}
+
+		/* the store is complete before the tree can see it - and the deletes go on the tree before anyone else can */
+		this.tree = new ACETree(height, logLeafSize, seed, root, skeleton, this);
+		if( version >= 4 ) {
+			header.position(tombstoneStart);
+			readTombstones(header, tombstoneStart + tombstoneBytes);
+		}
+	}
+
+	/* no leaf is read - the section sizes are not needed, and maxDeadRatio comes from the header */
+	private void readTombstones(ByteBuffer header, int end) throws IOException {
+		if( header.position() + 8 + 4 > end )
+			throw new IOException("corrupt ACE tree header: tombstones run past their region");
+		double maxDeadRatio = header.getDouble();
+		int sections = header.getInt();
+		long tombstones[][][] = new long[skeleton.size()][][];
+		for( int i = 0; i < tombstones.length; i++ )
+			tombstones[i] = new long[skeleton.get(i).sections.size()][];
+		for( int t = 0; t < sections; t++ ) {
+			if( header.position() + TOMBSTONE_SECTION_SIZE > end )
+				throw new IOException("corrupt ACE tree header: tombstones run past their region");
+			int leafIndex = header.getInt();
+			int sectionIndex = header.getInt();
+			int words = header.getInt();
+			if( leafIndex < 0 || leafIndex >= skeleton.size() || sectionIndex < 0 || sectionIndex >= skeleton.get(leafIndex).sections.size() ||
+					words < 0 || header.position() + 8L * words > end )
+				throw new IOException(String.format("corrupt ACE tree header: tombstones of leaf %d section %d", leafIndex, sectionIndex));
+			long dead[] = new long[words];
+			for( int w = 0; w < words; w++ )
+				dead[w] = header.getLong();
+			tombstones[leafIndex][sectionIndex] = dead;
+		}
+		if( header.position() != end )
+			throw new IOException("corrupt ACE tree header: tombstones do not fill their region");
+		tree.restoreTombstones(tombstones, maxDeadRatio);
+	}
+
+	/*
+	 * rebuilds the skeleton - the same way constructPhase1 does, each leaf gets the ranges of the nodes on its path as
+	 * its section ranges.
+	 */
+	private Node readNode(ByteBuffer header, ArrayList<Range> rangeArray) throws IOException {
+		int type = header.getInt();
+
+		if( type == NODE_LEAF ) {
+			int leafIndex = header.getInt();
+			Range r = new Range(header.getInt(), header.getInt());
+
+			rangeArray.add(r);
+			LeafNode leaf = new LeafNode(leafIndex, rangeArray);
+			rangeArray.remove(rangeArray.size()-1);
+
+			skeleton.set(leafIndex, leaf);
+			return leaf;
+		}
+
+		if( type != NODE_INTERNAL )
+			throw new IOException(String.format("corrupt ACE tree header: node type %d", type));
+
+		InternalNode n = new InternalNode();
+		n.r.begin = header.getInt();
+		n.r.end = header.getInt();
+		n.key = header.getInt();
+		n.key_index = header.getInt();
+		n.countLeft = header.getInt();
+		n.countRight = header.getInt();
+
+		rangeArray.add(n.r);
+		n.left = readNode(header, rangeArray);
+		n.right = readNode(header, rangeArray);
+		rangeArray.remove(rangeArray.size()-1);
+
+		n.setLeafIndexes(n.left);
+		n.setLeafIndexes(n.right);
+		return n;
+	}
+
+	/*
+	 * one stab, one page.
+	 * 
+	 * Safe to call from many threads at once - we only use absolute reads, which leave the buffer's position alone, and
+	 * every call builds its own LeafNode.
+	 */
+	@Override
+	public LeafNode readLeaf(int leafIndex) {
+		MappedByteBuffer map = maps[leafIndex / pagesPerMap];
+		int offset = (leafIndex % pagesPerMap) * pageSize;
+		if( pageChecksums != null && !pageVerified[leafIndex] )
+			verifyPage(map, offset, leafIndex);
+
+		LeafNode skeletonLeaf = skeleton.get(leafIndex);
+		int numSections = skeletonLeaf.sections.size();
+		if( map.getInt(offset) != leafIndex || map.getInt(offset + 4) != numSections )
+			throw new IllegalStateException(String.format("corrupt leaf page %d", leafIndex));
+
+		ArrayList<Range> rangeArray = new ArrayList<Range>(numSections);
+		for( LeafSection section : skeletonLeaf.sections )
+			rangeArray.add(section.r);
+		LeafNode leaf = new LeafNode(leafIndex, rangeArray);
+
+		int sectionOffset = offset + PAGE_FIXED_SIZE;
+		int keyOffset = sectionOffset + numSections * PAGE_SECTION_SIZE;
+		for( int s = 0; s < numSections; s++ ) {
+			int begin = map.getInt(sectionOffset);
+			int end = map.getInt(sectionOffset + 4);
+			int count = map.getInt(sectionOffset + 8);
+			leaf.allocate(s, count);
+			LeafSection section = leaf.sections.get(s);
+			
+			/* the tree keeps the tombstones on the skeleton - open() put back the ones in the header */
+			section.dead = skeletonLeaf.sections.get(s).dead;
+			if( encoding == ENCODING_PACKED ) {
+				int width = PackedKeys.width(begin, end);
+				PackedKeys.unpack(map, keyOffset, count, begin, width, section.elements);
+				keyOffset += 8 * PackedKeys.words(count, width);
+			} else {
+				for( int i = 0; i < count; i++ ) {
+					leaf.insertRecord(s, map.getInt(keyOffset));
+					keyOffset += 4;
+				}
+			}
+			sectionOffset += PAGE_SECTION_SIZE;
+		}
+
+		return leaf;
+	}
+
+	/*
+	 * The flags are written without a lock - two threads reading the same page for the first time may both check it,
+	 * which does no harm.
+	 */
+	private void verifyPage(MappedByteBuffer map, int offset, int leafIndex) {
+		CRC32C crc = new CRC32C();
+		crc.update(map.slice(offset, pageSize));
+		if( (int)crc.getValue() != pageChecksums[leafIndex] )
+			throw new IllegalStateException(String.format("leaf page %d does not match its checksum", leafIndex));
+		pageVerified[leafIndex] = true;
+	}
+
+	/*
+	 * reads every page of "f" and checks it against its checksum - the check open() leaves to the first read of each
+	 * page.  Throws IOException naming the first page that does not match.
+	 */
+	public static void verify(File f) throws IOException {
+		ACETree tree = open(f);
+		try {
+			ACETreeFile store = (ACETreeFile)tree.leafStore;
+			for( int i = 0; i < tree.numLeaves; i++ ) 
+				store.readLeaf(i);
+		} catch(IllegalStateException e) {
+			throw new IOException(e.getMessage(), e);
+		} finally {
+			tree.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		/* the mappings go away once they are collected */
+		file.close();
+	}
+
+	private static void writeNode(ByteBuffer header, Node node) {
+		if( node instanceof InternalNode ) {
+			InternalNode in = (InternalNode)node;
+			header.putInt(NODE_INTERNAL);
+			header.putInt(in.r.begin);
+			header.putInt(in.r.end);
+			header.putInt(in.key);
+			header.putInt(in.key_index);
+			header.putInt(in.countLeft);
+			header.putInt(in.countRight);
+			writeNode(header, in.left);
+			writeNode(header, in.right);
+		} else {
+			LeafNode leaf = (LeafNode)node;
+			Range r = leaf.getDataRange();
+			header.putInt(NODE_LEAF);
+			header.putInt(leaf.leafIndex);
+			header.putInt(r.begin);
+			header.putInt(r.end);
+		}
+	}
+
+	private static void writeLeaf(ByteBuffer page, LeafNode leaf, int encoding) {
+		page.putInt(leaf.leafIndex);
+		page.putInt(leaf.sections.size());
+		for( LeafSection section : leaf.sections ) {
+			page.putInt(section.r.begin);
+			page.putInt(section.r.end);
+			page.putInt(section.size());
+		}
+		for( LeafSection section : leaf.sections ) {
+			if( encoding == ENCODING_PACKED ) {
+				int width = PackedKeys.width(section.r.begin, section.r.end);
+				int written = PackedKeys.pack(section.toArray(), section.r.begin, width, page, page.position());
+				page.position(page.position() + written);
+			} else {
+				for( int element : section.toArray() )
+					page.putInt(element);
+			}
+		}
+	}
+
+	private static int pageBytes(LeafNode leaf, int encoding) {
+		int bytes = PAGE_FIXED_SIZE + leaf.sections.size() * PAGE_SECTION_SIZE;
+		for( LeafSection section : leaf.sections ) {
+			if( encoding == ENCODING_PACKED )
+				bytes += 8 * PackedKeys.words(section.size(), PackedKeys.width(section.r.begin, section.r.end));
+			else
+				bytes += 4 * section.size();
+		}
+		return bytes;
+	}
+
+	static int roundUp(int n, int alignment) {
+		return (n + alignment - 1) / alignment * alignment;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while( buf.hasRemaining() )
+			position += channel.write(buf, position);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while( buf.hasRemaining() ) {
+			int n = channel.read(buf, position);
+			if( n < 0 )
+				throw new IOException("unexpected end of ACE tree file");
+			position += n;
+		}
+	}
+}
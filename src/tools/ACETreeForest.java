@@ -0,0 +1,248 @@
+package tools;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.function.IntConsumer;
+
+/*
+ * Many ACE trees, each over one range of the keys - for data that does not fit one tree, or one process.
+ *
+ * The forest splits the key space at "splits": shard i holds the keys in [splits[i-1], splits[i]), the first shard
+ * everything below splits[0] and the last everything from the last split up.  Built from an array, the splits are at
+ * quantiles of the keys so the shards come out about the same size; built from shards, the caller says where they are.
+ *
+ * A search over the forest (ACETreeForest.Search) is a stream of samples that stays uniform over all the records in
+ * the query range, whichever shards they live in.  The ACETreeSearch of each shard is uniform over the shard; the
+ * forest merges them a sample at a time, each from a shard drawn at random, weighted by how many of its records in the
+ * range have yet to come out - the shard's estimateCount less what it has handed out so far.  So a prefix of the merged
+ * stream holds each shard's records in proportion to its share of the range, the same way the delta of a
+ * MutableACETree keeps up with its base.  A shard is stabbed when a draw lands on it and the samples of its last stab
+ * have all gone out.  (Drawing a shard per stab would not do: a stab of a shard the range only clips gives fewer
+ * samples than one of a shard wholly inside it.)
+ *
+ * Shards that the query range does not reach are never searched.  Only the two shards holding its ends have an
+ * estimate that is not exact (the others are wholly in or out); once a shard runs out early, the rest just come out of
+ * the others.
+ */
+public class ACETreeForest {
+	private final ACETreeShard shards[];
+	private final int splits[];
+	private final long seed;
+
+	/*
+	 * "shards" are in key order, shard i over [splits[i-1], splits[i]) - so there is one split fewer than shards.
+	 * "seed" decides which shard each stab goes to.
+	 */
+	public ACETreeForest(ACETreeShard shards[], int splits[], long seed) {
+		if( shards.length == 0 || splits.length != shards.length - 1 )
+			throw new IllegalArgumentException(String.format("%d shards need %d splits, not %d", shards.length, Math.max(shards.length - 1, 0), splits.length));
+		for( int i = 1; i < splits.length; i++ ) {
+			if( splits[i] <= splits[i-1] )
+				throw new IllegalArgumentException(String.format("splits must increase: %d after %d", splits[i], splits[i-1]));
+		}
+		this.shards = shards.clone();
+		this.splits = splits.clone();
+		this.seed = seed;
+	}
+
+	/*
+	 * builds "numShards" local shards from "entries", split at its quantiles.  Equal keys all go to one shard, and each
+	 * shard needs more than a leaf's worth of records (an ACETree of height at least 1) - so with few distinct keys, or
+	 * few keys, there may be fewer shards.
+	 */
+	public static ACETreeForest build(int entries[], int numShards, long seed) {
+		if( numShards < 1 )
+			throw new IllegalArgumentException("numShards must be at least 1: " + numShards);
+
+		int keys[] = entries.clone();
+		Arrays.parallelSort(keys);
+
+		/* a split at each quantile - moved up past the run of equal keys it lands in */
+		int minShardSize = (1 << ACETree.LOG_LEAF_SIZE) + 1;
+		int splitIndexes[] = new int[numShards - 1];
+		int numSplits = 0;
+		for( int i = 1; i < numShards; i++ ) {
+			int index = (int)((long)keys.length * i / numShards);
+			if( index == 0 )
+				continue;
+			while( index < keys.length && keys[index] == keys[index - 1] )
+				index++;
+			int previous = numSplits == 0 ? 0 : splitIndexes[numSplits - 1];
+			if( index - previous >= minShardSize && keys.length - index >= minShardSize )
+				splitIndexes[numSplits++] = index;
+		}
+
+		ACETreeShard shards[] = new ACETreeShard[numSplits + 1];
+		int splits[] = new int[numSplits];
+		int from = 0;
+		for( int i = 0; i <= numSplits; i++ ) {
+			int to = i < numSplits ? splitIndexes[i] : keys.length;
+			if( i < numSplits )
+				splits[i] = keys[to];
+			shards[i] = ACETreeShard.local(new ACETree(Arrays.copyOfRange(keys, from, to), seed + i, null));
+			Trace.event( Trace.Verbose, "shard %d: %d records", i, to - from );
+			from = to;
+		}
+		return new ACETreeForest(shards, splits, seed);
+	}
+
+	public int getNumShards() {
+		return shards.length;
+	}
+
+	public ACETreeShard getShard(int i) {
+		return shards[i];
+	}
+
+	/* the range of keys shard i is over */
+	public Range getShardRange(int i) {
+		return new Range(i == 0 ? Integer.MIN_VALUE : splits[i - 1], i == splits.length ? Integer.MAX_VALUE : splits[i] - 1);
+	}
+
+	public Search search(Range queryRange) {
+		return new Search(queryRange);
+	}
+
+	/* closes every shard */
+	public void close() throws IOException {
+		IOException failure = null;
+		for( ACETreeShard shard : shards ) {
+			try {
+				shard.close();
+			} catch(IOException e) {
+				failure = e;
+			}
+		}
+		if( failure != null )
+			throw failure;
+	}
+
+	/*
+	 * A search over the forest - a search on each shard the query reaches, the samples of its last stab not yet handed
+	 * out, and the draw that picks which shard the next sample comes from.
+	 * Like ACETreeSearch: call search() until done(), and close() if dropped before then.
+	 */
+	public class Search {
+		private final ACETreeShard.Search searches[];
+		private final SampleBuffer pending[];
+		private final int position[];
+		private final double remaining[];
+		private final SplittableRandom random;
+		private long stabs;
+
+		Search(Range queryRange) {
+			/* the same forest and query give the same samples in the same order */
+			this.random = new SplittableRandom(seed ^ (((long)queryRange.begin << 32) | (queryRange.end & 0xffffffffL)));
+			this.searches = new ACETreeShard.Search[shards.length];
+			this.pending = new SampleBuffer[shards.length];
+			this.position = new int[shards.length];
+			this.remaining = new double[shards.length];
+			try {
+				for( int i = 0; i < shards.length; i++ ) {
+					if( !queryRange.overlaps(getShardRange(i)) )
+						continue;
+					remaining[i] = shards[i].estimateCount(queryRange);
+					if( remaining[i] > 0 ) {
+						searches[i] = shards[i].open(queryRange);
+						pending[i] = new SampleBuffer();
+					}
+				}
+			} catch(RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/*
+		 * hands samples to "sink" until a draw lands on a shard that needs a second stab - so one call is at most one
+		 * stab, as with ACETreeSearch.  Returns the number of samples pushed.
+		 */
+		public int search(IntConsumer sink) {
+			int added = 0;
+			boolean stabbed = false;
+			while( true ) {
+				int shard = nextShard();
+				if( shard == -1 )
+					break;
+
+				if( position[shard] == pending[shard].size() ) {
+					if( stabbed )
+						break;
+					stab(shard);
+					stabbed = true;
+					continue;
+				}
+				sink.accept(pending[shard].get(position[shard]++));
+				remaining[shard] = Math.max(0, remaining[shard] - 1);
+				added++;
+			}
+			return added;
+		}
+
+		private void stab(int shard) {
+			pending[shard].clear();
+			position[shard] = 0;
+			if( searches[shard] == null )
+				return;
+			searches[shard].search(pending[shard]);
+			stabs++;
+			if( searches[shard].done() ) {
+				searches[shard].close();
+				searches[shard] = null;
+			}
+		}
+
+		/* a shard that still has samples to give - its search is not done, or its last stab not handed out */
+		private boolean live(int shard) {
+			return searches[shard] != null || (pending[shard] != null && position[shard] < pending[shard].size());
+		}
+
+		/*
+		 * a live shard drawn with weight "remaining".  If the estimates have run out before the shards have, the shards
+		 * left are drained one after the other.
+		 */
+		private int nextShard() {
+			double total = 0;
+			int last = -1;
+			for( int i = 0; i < searches.length; i++ ) {
+				if( live(i) ) {
+					total += remaining[i];
+					last = i;
+				}
+			}
+			if( last == -1 || total == 0 )
+				return last;
+
+			double r = random.nextDouble() * total;
+			for( int i = 0; i < searches.length; i++ ) {
+				if( !live(i) )
+					continue;
+				r -= remaining[i];
+				if( r < 0 )
+					return i;
+			}
+			return last;
+		}
+
+		public boolean done() {
+			for( int i = 0; i < searches.length; i++ ) {
+				if( live(i) )
+					return false;
+			}
+			return true;
+		}
+
+		public long getStabs() {
+			return stabs;
+		}
+
+		public void close() {
+			for( int i = 0; i < searches.length; i++ ) {
+				if( searches[i] != null )
+					searches[i].close();
+				searches[i] = null;
+			}
+		}
+	}
+}
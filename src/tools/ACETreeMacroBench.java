@@ -0,0 +1,293 @@
+package tools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.SplittableRandom;
+import java.util.function.IntConsumer;
+
+/*
+ * How fast do the samples of a range query arrive?  That is the whole point of the ACE Tree, so this measures it end
+ * to end, against the two usual ways of getting a random sample of a range from disk:
+ *
+ * - acetree   - an ACETreeSearch over the tree written to a file (ACETreeFile), one leaf page per stab.
+ * - scan      - a sequential scan of the records stored in random order.  Every record in the range that goes by is a
+ *               sample, in random order because the file is.
+ * - index     - the records sorted on disk.  Binary search for the range, then read random positions inside it; a
+ *               position already returned is rejected.
+ *
+ * For each method and query selectivity we print the samples returned so far against the elapsed time and against
+ * the number of leaves read - for scan a leaf is a block of as many records as an ACE leaf holds, for index every
+ * probe is a read.  A row is printed each time the sample count passes 1, 2, 5, 10, 20, 50 ... and at the end:
+ *
+ *     method,selectivity,samples,elapsed_ms,leaves_read
+ *
+ * Every method stops once it has all the records in the range, or after the time limit.  The files are in the page
+ * cache after the first touch, so elapsed time is the in-memory cost - the leaves read stands in for the I/O.  They go in
+ * a fresh directory of their own, so runs side by side do not share them, and are deleted at the end or on exit.
+ *
+ * usage: ACETreeMacroBench [numRecords] [seconds per run]
+ */
+public class ACETreeMacroBench {
+	private static final int MAX_KEY = 1 << 30;
+	private static final double SELECTIVITIES[] = { 0.0001, 0.001, 0.01, 0.1 };
+
+	private final File dir;
+	private final File treeFile;
+	private final File scanFile;
+	private final File sortedFile;
+	private final long limitNanos;
+
+	/* records per scan block - the average leaf */
+	private final int blockRecords;
+
+	private static long blackhole;
+
+	/*
+	 * prints a row when the sample count passes the next checkpoint
+	 */
+	static class Progress {
+		private final String method;
+		private final double selectivity;
+		private final long start = System.nanoTime();
+		private long samples;
+		private long leavesRead;
+		private long nextReport = 1;
+
+		Progress(String method, double selectivity) {
+			this.method = method;
+			this.selectivity = selectivity;
+		}
+
+		void add(int newSamples, int newLeaves) {
+			samples += newSamples;
+			leavesRead += newLeaves;
+			if( samples >= nextReport ) {
+				print();
+				while( nextReport <= samples )
+					nextReport = nextCheckpoint(nextReport);
+			}
+		}
+
+		long elapsed() {
+			return System.nanoTime() - start;
+		}
+
+		void finish() {
+			print();
+		}
+
+		private void print() {
+			System.out.printf( "%s,%s,%d,%.3f,%d\n", method, selectivity, samples, elapsed() / 1e6, leavesRead );
+		}
+
+		/* 1, 2, 5, 10, 20, 50 ... */
+		private static long nextCheckpoint(long n) {
+			long decade = 1;
+			while( decade * 10 <= n )
+				decade *= 10;
+			long digit = n / decade;
+			return digit < 2 ? 2 * decade : digit < 5 ? 5 * decade : 10 * decade;
+		}
+	}
+
+	/* the files go in a new directory under "parent" */
+	public ACETreeMacroBench(int keys[], File parent, long limitNanos) throws IOException {
+		this.limitNanos = limitNanos;
+		this.dir = Files.createTempDirectory(parent.toPath(), "acetree-macro").toFile();
+		dir.deleteOnExit();
+
+		ACETree tree = new ACETree(keys, 1, null);
+		this.blockRecords = Math.max(1, keys.length / tree.numLeaves);
+		this.treeFile = newFile("macro.ace");
+		ACETreeFile.write(tree, treeFile);
+
+		/* the scan file is the keys in random order */
+		int shuffled[] = Arrays.copyOf(keys, keys.length);
+		SplittableRandom random = new SplittableRandom(2);
+		for( int i = shuffled.length - 1; i > 0; i-- ) {
+			int j = random.nextInt(i + 1);
+			int swap = shuffled[i];
+			shuffled[i] = shuffled[j];
+			shuffled[j] = swap;
+		}
+		this.scanFile = newFile("macro.scan");
+		writeKeys(shuffled, scanFile);
+
+		int sorted[] = Arrays.copyOf(keys, keys.length);
+		Arrays.sort(sorted);
+		this.sortedFile = newFile("macro.sorted");
+		writeKeys(sorted, sortedFile);
+	}
+
+	/* registered after the directory, so deleted before it on exit */
+	private File newFile(String name) {
+		File f = new File(dir, name);
+		f.deleteOnExit();
+		return f;
+	}
+
+	public void runACETree(Range range, double selectivity) throws IOException {
+		ACETree tree = ACETreeFile.open(treeFile);
+		try {
+			IntConsumer sink = new IntConsumer() {
+				public void accept(int value) { blackhole += value; }
+			};
+			Progress progress = new Progress("acetree", selectivity);
+			ACETreeSearch search = new ACETreeSearch(tree, range);
+			while( !search.done() && progress.elapsed() < limitNanos ) {
+				int leafIndex = search.nextStab();
+				if( leafIndex != -1 )
+					progress.add(search.stab(tree.getLeaf(leafIndex), sink), 1);
+			}
+			progress.finish();
+		} finally {
+			tree.close();
+		}
+	}
+
+	public void runScan(Range range, double selectivity) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(scanFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer block = ByteBuffer.allocateDirect(4 * blockRecords);
+			IntBuffer ints = block.asIntBuffer();
+			int chunk[] = new int[blockRecords];
+
+			Progress progress = new Progress("scan", selectivity);
+			long position = 0;
+			while( progress.elapsed() < limitNanos ) {
+				block.clear();
+				while( block.hasRemaining() ) {
+					int n = channel.read(block, position);
+					if( n < 0 )
+						break;
+					position += n;
+				}
+				int count = block.position() / 4;
+				if( count == 0 )
+					break;
+
+				ints.clear();
+				ints.get(chunk, 0, count);
+				int samples = 0;
+				for( int i = 0; i < count; i++ ) {
+					if( range.includes(chunk[i]) ) {
+						blackhole += chunk[i];
+						samples++;
+					}
+				}
+				progress.add(samples, 1);
+			}
+			progress.finish();
+		} finally {
+			file.close();
+		}
+	}
+
+	public void runIndex(Range range, double selectivity) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(sortedFile, "r");
+		try {
+			IntBuffer sorted = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()).asIntBuffer();
+			Progress progress = new Progress("index", selectivity);
+
+			/* the range's positions - each probe of the binary search is a read */
+			int probes[] = new int[1];
+			int lo = lowerBound(sorted, range.begin, probes);
+			int hi = lowerBound(sorted, range.end + 1, probes);
+			progress.add(0, probes[0]);
+
+			int count = hi - lo;
+			BitSet returned = new BitSet(count);
+			SplittableRandom random = new SplittableRandom(3);
+			int samples = 0;
+			while( samples < count && progress.elapsed() < limitNanos ) {
+				int i = random.nextInt(count);
+				int key = sorted.get(lo + i);
+				if( returned.get(i) ) {
+					progress.add(0, 1);
+					continue;
+				}
+				returned.set(i);
+				blackhole += key;
+				samples++;
+				progress.add(1, 1);
+			}
+			progress.finish();
+		} finally {
+			file.close();
+		}
+	}
+
+	/* a range over "selectivity" of the key space, at a random place - the keys are uniform, so it holds about that share of them */
+	public Range query(double selectivity, SplittableRandom random) {
+		long width = (long)(selectivity * MAX_KEY);
+		int begin = random.nextInt((int)(MAX_KEY - width));
+		return new Range(begin, (int)(begin + width));
+	}
+
+	public void delete() {
+		treeFile.delete();
+		scanFile.delete();
+		sortedFile.delete();
+		dir.delete();
+	}
+
+	private static int lowerBound(IntBuffer sorted, long key, int probes[]) {
+		int begin = 0, end = sorted.limit();
+		while( begin < end ) {
+			int mid = (begin + end) >>> 1;
+			probes[0]++;
+			if( sorted.get(mid) < key )
+				begin = mid + 1;
+			else
+				end = mid;
+		}
+		return begin;
+	}
+
+	private static void writeKeys(int keys[], File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+		try {
+			for( int key : keys )
+				out.writeInt(key);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void main(String args[]) throws IOException {
+		int numRecords = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		Trace.setLevel(Trace.None);
+		SplittableRandom random = new SplittableRandom(42);
+		int keys[] = new int[numRecords];
+		for( int i = 0; i < numRecords; i++ )
+			keys[i] = random.nextInt(MAX_KEY);
+
+		File dir = new File(System.getProperty("java.io.tmpdir"));
+		ACETreeMacroBench bench = new ACETreeMacroBench(keys, dir, seconds * 1000000000L);
+		try {
+			System.out.printf( "method,selectivity,samples,elapsed_ms,leaves_read\n" );
+			for( double selectivity : SELECTIVITIES ) {
+				Range range = bench.query(selectivity, random);
+				bench.runACETree(range, selectivity);
+				bench.runScan(range, selectivity);
+				bench.runIndex(range, selectivity);
+			}
+		} finally {
+			bench.delete();
+		}
+		System.err.printf( "(blackhole %d)\n", blackhole );
+	}
+}
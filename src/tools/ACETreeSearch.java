@@ -1,34 +1,39 @@
 package tools;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.SplittableRandom;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
-import tools.ACETree.InternalNode;
 import tools.ACETree.LeafSection;
 import tools.ACETree.LeafNode;
-import tools.ACETree.Node;
 import tools.Range;
 
+/*
+ * One range sampling session over a tree.
+ * 
+ * All the mutable state of the search (the visited nodes, the buckets) lives here, the tree is only read.  Any number
+ * of searches can run over the same tree at the same time, one per thread - a single search is not thread safe.
+ */
 public class ACETreeSearch {
-	/* 
-	 * searching data structures:
-	 */
-	class NodeSearchInfo {
-		private static final int LEFT = 1;
-		private static final int RIGHT = 2;
-		private int next = LEFT;;
-		private boolean done = false;
-		
-		public NodeSearchInfo() {
-			next = LEFT;
-			done = false;
-		}
-	};
+	/* which leaf each stab goes to */
+	private final Shuttle shuttle;
 	
-	private HashMap<Node, NodeSearchInfo> searchNodes;
-	
-	private ACETree tree;
-	private Range queryRange;
+	private final ACETree tree;
+	private final Range queryRange;
 	
 	class BucketRange {
 		protected static final int BUCKETRANGE_INVALID = -1;
@@ -57,7 +62,13 @@ public class ACETreeSearch {
 	 * 
 	 */
 	class Bucket {
-		protected ArrayList<Integer> elements;
+		protected int[] elements;
+		protected int numElements;
+		
+		/* elements pushed out to a temp file once the search went over its buffer budget */
+		private File spillFile;
+		private FileChannel spillChannel;
+		private long numSpilled;
 		protected ArrayList<BucketRange> bucketRanges;
 		protected int totalNeeded;
 		protected int totalObtained;
@@ -67,7 +78,8 @@ public class ACETreeSearch {
 		 * bucketID is the same as the sectionID
 		 */
 		public Bucket(int bucketID, int height, ArrayList<LeafNode> leafNodes, Range queryRange) {
-			elements = new ArrayList<Integer>();
+			elements = new int[INITIAL_BUCKET_SIZE];
+			numElements = 0;
 			bucketRanges = new ArrayList<BucketRange>();
 			totalNeeded = 0;
 			totalObtained = 0;
@@ -194,67 +206,278 @@ public class ACETreeSearch {
 				bucketRange.type = BucketRange.BUCKETRANGE_SET;
 			}
 			
-			/* regardless, add the elements to this bucket */
-			for( int element : leafSection.elements ) 
-				this.elements.add(element);
+			/* 
+			 * regardless, add the elements to this bucket - only the ones in the query range, which is all the flush
+			 * would keep anyway.  The section is sorted, so that is one run of it (see runBegin). 
+			 */
+			int from = runBegin(queryRange, leafSection);
+			int to = runEnd(queryRange, leafSection);
+			int needed = this.numElements + (to - from);
+			if( needed > this.elements.length ) 
+				this.elements = Arrays.copyOf(this.elements, Math.max(needed, 2 * this.elements.length));
+			
+			int before = this.numElements;
+			long dead[] = leafSection.dead;
+			if( dead != null ) {
+				/* deleted records never go in */
+				for( int i = from; i < to; i++ ) {
+					if( !LeafSection.isDead(dead, i) )
+						this.elements[this.numElements++] = leafSection.key(i);
+				}
+			} else {
+				leafSection.copyTo(from, to, this.elements, this.numElements);
+				this.numElements = needed;
+			}
+			bufferedBytes += 4L * (this.numElements - before);
+			if( metrics != null )
+				metrics.bytesBuffered.add(4L * (this.numElements - before));
+			
+			/* still over - move this bucket's elements out to disk */
+			if( overBudget(0) ) 
+				spill();
 			
 			/* we can now return the elements in this bucket */
 			return this.totalObtained == this.totalNeeded ? true : false;
 		}
 		
 		/*
-		 * we move the elements to the result after filtering.
+		 * we move the elements to the result - addLeaf only took in the ones in the query range, so there is nothing
+		 * left to filter.
 		 * 
 		 * then, reset the bucket. 
 		 */
-		void flushElements(Range queryRange, ArrayList<Integer> result) {
-			/* add the elements */
-			ACETreeSearch.filterAndAdd(queryRange, this.elements, result);
+		int flushElements(SampleBuffer result) {
+			SearchMetrics metrics = ACETreeSearch.this.metrics;
+			long start = metrics != null ? System.nanoTime() : 0;
+			long spilled = this.numSpilled;
+			ACETreeEvents.BucketFlush event = ACETreeEvents.BucketFlush.start();
+			
+			/* add the elements - the ones on disk first */
+			int added = 0;
+			if( this.numSpilled > 0 ) 
+				added += readSpilled(result);
+			result.addAll(this.elements, 0, this.numElements);
+			added += this.numElements;
 			
-			/* reset the bucket */
-			elements = new ArrayList<Integer>();
+			/* reset the bucket - the array is kept around for the next round */
+			bufferedBytes -= 4L * this.numElements;
+			this.numElements = 0;
 			this.totalObtained = 0;
 			for( BucketRange bucketRange : this.bucketRanges ) {
 				if( bucketRange.type == BucketRange.BUCKETRANGE_SET )
 					bucketRange.type = BucketRange.BUCKETRANGE_UNSET;
 			}
+			
+			if( metrics != null ) {
+				metrics.bucketFlushes.increment();
+				metrics.recordsAccepted.add(added);
+				metrics.flushElementsNanos.record(System.nanoTime() - start);
+			}
+			if( event != null )
+				event.finish(bucketID, spilled, added);
+			return added;
+		}
+		
+		/*
+		 * appends the buffered elements to this bucket's spill file and empties the buffer.
+		 */
+		private void spill() {
+			try {
+				if( spillChannel == null ) {
+					spillFile = File.createTempFile("acetree-bucket", ".spill");
+					spillFile.deleteOnExit();
+					spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+				}
+				
+				ByteBuffer buf = spillBuffer();
+				for( int i = 0; i < this.numElements; ) {
+					buf.clear();
+					for( ; i < this.numElements && buf.hasRemaining(); i++ ) 
+						buf.putInt(this.elements[i]);
+					buf.flip();
+					while( buf.hasRemaining() ) 
+						spillChannel.write(buf, 4L * this.numSpilled + buf.position());
+					this.numSpilled += buf.limit() / 4;
+				}
+			} catch(IOException e) {
+				throw new UncheckedIOException("could not spill bucket " + bucketID, e);
+			}
+			
+			Trace.event( Trace.Verbose, "bucket %d spilled %d elements", bucketID, this.numElements );
+			bufferedBytes -= 4L * this.numElements;
+			spilledBytes += 4L * this.numElements;
+			if( metrics != null )
+				metrics.bytesSpilled.add(4L * this.numElements);
+			this.numElements = 0;
+		}
+		
+		/*
+		 * reads back what was spilled into the result and empties the spill file.
+		 */
+		private int readSpilled(SampleBuffer result) {
+			int added = 0;
+			try {
+				ByteBuffer buf = spillBuffer();
+				int chunk[] = spillChunk;
+				long position = 0;
+				while( position < 4L * this.numSpilled ) {
+					buf.clear();
+					int n = spillChannel.read(buf, position);
+					if( n <= 0 ) 
+						throw new IOException("spill file is short");
+					position += n;
+					buf.flip();
+					
+					int count = buf.remaining() / 4;
+					buf.asIntBuffer().get(chunk, 0, count);
+					result.addAll(chunk, 0, count);
+					added += count;
+					
+					/* keep a partial int for the next read */
+					position -= buf.remaining() % 4;
+				}
+				spillChannel.truncate(0);
+			} catch(IOException e) {
+				throw new UncheckedIOException("could not read back bucket " + bucketID, e);
+			}
+			
+			spilledBytes -= 4L * this.numSpilled;
+			this.numSpilled = 0;
+			return added;
 		}
 		
-		void print() {
-			Util.log( Util.Verbose, "bucketID: %d ranges : %d: totalNeeded: %d totalObtained %d", bucketID, bucketRanges.size(), this.totalNeeded, this.totalObtained );
-			for( BucketRange bucketRange  : bucketRanges ) {
-				Util.log( Util.Verbose, "[%d-%d] (%s) ", bucketRange.r.begin, bucketRange.r.end, bucketRange.getType() );
+		/* bytes held for this bucket - in memory and on disk */
+		long getBufferedBytes() { return 4L * this.numElements; }
+		
+		long getSpilledBytes() { return 4L * this.numSpilled; }
+		
+		void close() {
+			if( spillChannel == null ) 
+				return;
+			try {
+				spillChannel.close();
+			} catch(IOException e) {
+				/* nothing we can do - the file is deleted on exit anyway */
 			}
-			Util.log( Util.Verbose, " elements: " );
-			for( int elem : this.elements) Util.log( Util.Verbose, "[%d]", elem);
-			Util.log( Util.Verbose, "\n");
+			spillFile.delete();
+			spillChannel = null;
+			spillFile = null;
+		}
+		
+		/* the state of the bucket - not its elements, there can be a lot of them */
+		void trace() {
+			Trace.event( Trace.Verbose, "bucket %d: %d of %d ranges, %d elements", bucketID, this.totalObtained, this.totalNeeded, this.numElements );
 		}
 		
 	}
 	ArrayList<Bucket> buckets;
 	
+	private static final int INITIAL_BUCKET_SIZE = 16;
+	
+	/*
+	 * Memory budget for the buckets.
+	 * 
+	 * Buckets hold the records in the query range of the sections they collect until all their ranges are in, which for
+	 * a wide query can be a good part of the data.  Once the elements held in memory go over "bucketBudget" bytes, they
+	 * spill to a temp file until their flush.
+	 */
+	private final long bucketBudget;
+	private long bufferedBytes;
+	private long spilledBytes;
+	
+	/*
+	 * Inserted records, for a search over a MutableACETree.
+	 * 
+	 * The ones in the query range are shuffled up front and handed out a few at a time after each stab, so that the
+	 * share of them that has come out keeps up with the share of the tree's records in the range that has come out
+	 * ("treeEstimate" of them, going by the skeleton).  Whatever is left goes out once the tree is done.
+	 */
+	private final int deltaSamples[];
+	private int deltaEmitted;
+	private final double treeEstimate;
+	private long treeEmitted;
+	
+	/* the samples of the current stab, and the random source that shuffles them - see emitBatch */
+	private final SampleBuffer batch = new SampleBuffer();
+	private final SplittableRandom shuffleRandom;
+	
+	/* where the search counts what it does - null to not count, see SearchMetrics */
+	private SearchMetrics metrics;
+	
+	/* staging buffer for spill reads and writes, shared by the buckets - and the ints of a read, on their way out */
+	private ByteBuffer spillBuffer;
+	private int spillChunk[];
+	private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+	
 	public ACETreeSearch(ACETree aceTree, Range queryRange) {
+		this(aceTree, queryRange, Long.MAX_VALUE);
+	}
+	
+	public ACETreeSearch(ACETree aceTree, Range queryRange, long bucketBudget) {
+		this(aceTree, aceTree.seed, queryRange, bucketBudget, null, null, 0);
+	}
+	
+	/*
+	 * a search over "aceTree" plus the records inserted since it was built - the first "deltaLength" entries of "delta",
+	 * but for the ones marked in "deltaDead" (which can be null).  See MutableACETree.
+	 * 
+	 * "aceTree" is null for a MutableACETree with too few records for a tree - they are all in the delta, and "seed"
+	 * stands in for the tree's.
+	 */
+	ACETreeSearch(ACETree aceTree, long seed, Range queryRange, long bucketBudget, int delta[], AtomicLongArray deltaDead, int deltaLength) {
 		this.tree = aceTree;
 		this.queryRange = queryRange;
+		this.bucketBudget = bucketBudget;
+		
+		/* the inserted records in the range, in random order */
+		int inRange = 0;
+		int deltaSamples[] = new int[deltaLength];
+		for( int i = 0; i < deltaLength; i++ ) {
+			if( queryRange.includes(delta[i]) && !MutableACETree.isDead(deltaDead, i) ) 
+				deltaSamples[inRange++] = delta[i];
+		}
+		
+		/* the same tree and query give the same samples in the same order - the stabs, and the delta among them */
+		long querySeed = seed ^ (((long)queryRange.begin << 32) | (queryRange.end & 0xffffffffL));
+		if( inRange > 1 ) {
+			SplittableRandom random = new SplittableRandom(querySeed).split();
+			for( int i = inRange - 1; i > 0; i-- ) {
+				int j = random.nextInt(i + 1);
+				int swap = deltaSamples[i];
+				deltaSamples[i] = deltaSamples[j];
+				deltaSamples[j] = swap;
+			}
+		}
+		this.deltaSamples = inRange == deltaLength ? deltaSamples : Arrays.copyOf(deltaSamples, inRange);
+		this.treeEstimate = inRange > 0 && tree != null ? tree.estimateCount(queryRange) : 0;
+		this.shuffleRandom = new SplittableRandom(querySeed);
+		this.buckets = new ArrayList<Bucket>();
+		if( aceTree == null ) {
+			this.shuttle = null;
+			return;
+		}
 
 		/* initialize the search nodes */
-		this.searchNodes = new HashMap<Node, NodeSearchInfo> ();
-		initSearchNodes2(tree.root, this.searchNodes);
+		final ACETree t = aceTree;
+		this.shuttle = new Shuttle(t.numLeaves, t.height) {
+			protected boolean overlaps(int node) {
+				return queryRange.overlaps(t.nodeBegin[node], t.nodeEnd[node]);
+			}
+		};
 		
 		/* 
 		 *  Initialize the buckets
 		 * 
 		 *  We add one bucket per each segment in the height of the tree.
 		 */
-		this.buckets = new ArrayList<Bucket>();
 		for( int i = 0; i < this.tree.height; i++ ) {
 			this.buckets.add( new Bucket(i, this.tree.height, this.tree.leafNodes, queryRange));
 		}
 		
-		// print the buckets:
-		Util.log( Util.Verbose, "Buckets:\n" );
-		for( Bucket bucket : buckets ) 
-			bucket.print();
+		if( Trace.isEnabled(Trace.Verbose) ) {
+			for( Bucket bucket : buckets ) 
+				bucket.trace();
+		}
 	}
 
 	/*
@@ -263,111 +486,233 @@ public class ACETreeSearch {
 	 * You can call this repeatedly while checking for done().
 	 */
 	public ArrayList<Integer> search() {
-		ArrayList<Integer> result = new ArrayList<Integer>();
-		shuttle(tree.root, this.queryRange, result);
+		final ArrayList<Integer> result = new ArrayList<Integer>();
+		search(new IntConsumer() {
+			public void accept(int value) { result.add(value); }
+		});
 		return result;
 	}
 	
 	/*
-	 * Terminating condition for the search 
+	 * Same as search(), but the samples are pushed into "sink" as they are accepted, with no boxing and no result list.
+	 * Returns the number of samples pushed.
+	 * 
+	 * Pass a SampleBuffer that you clear between calls (or your own IntConsumer) and a sampling loop over an in-memory
+	 * tree does not allocate once the buckets have grown to their working size.
 	 */
-	public boolean done() { 
-		return isSearchDone(this.tree.root);
+	public int search(IntConsumer sink) {
+		SampleBuffer out = batchFor(sink);
+		int start = out.size();
+		if( !treeDone() ) {
+			int leafIndex = nextStab();
+			if( leafIndex != -1 ) {
+				LeafNode leaf = this.tree.pinLeaf(leafIndex);
+				try {
+					combineTuples(leaf, this.queryRange, out);
+				} finally {
+					this.tree.unpinLeaf(leaf);
+				}
+			}
+		}
+		
+		if( deltaEmitted < deltaSamples.length ) {
+			treeEmitted += out.size() - start;
+			emitDelta(out);
+		}
+		return emitBatch(out, start, sink);
 	}
 	
-	
 	/*
-	 * initializing search data structures 
+	 * The samples of a stab come out of each section in key order (see runBegin) - which records they are is random, 
+	 * but not their order.  So they are collected first and shuffled before they go out: straight in the sink when it 
+	 * is a SampleBuffer, in "batch" otherwise.
 	 */
-	private void initSearchNodes2(Node node, HashMap<Node, NodeSearchInfo> searchNodes) {
-		/* end condition */
-		if( node == null ) 
-			return;
-		
-		/* recurse */
-		searchNodes.put(node,  new NodeSearchInfo());
-		if( node instanceof InternalNode ) {
-			InternalNode in = (InternalNode)node;
-			
-			initSearchNodes2(in.left, searchNodes);
-			initSearchNodes2(in.right, searchNodes);
-		} 
+	private SampleBuffer batchFor(IntConsumer sink) {
+		if( sink instanceof SampleBuffer ) 
+			return (SampleBuffer)sink;
+		batch.clear();
+		return batch;
 	}
 	
-	private boolean isSearchDone(Node in) {
-		NodeSearchInfo searchInfo = this.searchNodes.get(in);
-		assert searchInfo != null;
-		return searchInfo.done;
+	/* shuffles the samples of the stab - out[start ..] - and hands them to the sink if they are not there already */
+	private int emitBatch(SampleBuffer out, int start, IntConsumer sink) {
+		int samples[] = out.array();
+		int n = out.size() - start;
+		for( int i = n - 1; i > 0; i-- ) {
+			int j = shuffleRandom.nextInt(i + 1);
+			int swap = samples[start + i];
+			samples[start + i] = samples[start + j];
+			samples[start + j] = swap;
+		}
+		
+		if( out != sink ) {
+			for( int i = start; i < out.size(); i++ ) 
+				sink.accept(samples[i]);
+		}
+		return n;
 	}
 	
-	private void setSearchDone(Node in ) {
-		NodeSearchInfo searchInfo = this.searchNodes.get(in);
-		assert searchInfo != null;
-		searchInfo.done = true;
+	/* hands out the inserted records that are due - see deltaSamples */
+	private int emitDelta(IntConsumer sink) {
+		int due = deltaSamples.length;
+		if( !treeDone() && treeEstimate >= 1 ) 
+			due = (int)Math.min(deltaSamples.length, Math.round(deltaSamples.length * (treeEmitted / treeEstimate)));
 		
+		int added = 0;
+		for( ; deltaEmitted < due; deltaEmitted++, added++ ) 
+			sink.accept(deltaSamples[deltaEmitted]);
+		return added;
 	}
 	
 	/*
-	 * The "shuttle" name is borrowed from the Algorithm described in the paper.
+	 * The two halves of search() - for ACETreeBatchSearch, which reads each leaf once for all the searches that want it.
 	 * 
-	 * Please see algorithm described - we have tried to be true to it.
+	 * nextStab() moves the search on to the leaf of its next stab and returns it (-1 if this stab comes back empty).
+	 * stab() then combines that leaf's sections into the result.
+	 */
+	int nextStab() {
+		if( metrics == null )
+			return shuttle.next();
+		
+		long start = System.nanoTime();
+		int leafIndex = shuttle.next();
+		metrics.shuttleNanos.record(System.nanoTime() - start);
+		metrics.stabs.increment();
+		if( leafIndex == -1 )
+			metrics.emptyStabs.increment();
+		return leafIndex;
+	}
+	
+	int stab(LeafNode leaf, IntConsumer result) {
+		SampleBuffer out = batchFor(result);
+		int start = out.size();
+		combineTuples(leaf, this.queryRange, out);
+		return emitBatch(out, start, result);
+	}
+	
+	/*
+	 * counts this search's stabs, sections, flushes and records into "metrics" from now on - null stops it.  A metrics
+	 * object can be shared by any number of searches.
+	 */
+	public void setMetrics(SearchMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public SearchMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/*
+	 * bytes held by the bucket of a section - in memory, and spilled to disk.
+	 */
+	public long getBufferedBytes(int sectionIndex) {
+		return buckets.get(sectionIndex).getBufferedBytes();
+	}
+	
+	public long getSpilledBytes(int sectionIndex) {
+		return buckets.get(sectionIndex).getSpilledBytes();
+	}
+	
+	/* all the buckets */
+	public long getBufferedBytes() {
+		return bufferedBytes;
+	}
+	
+	public long getSpilledBytes() {
+		return spilledBytes;
+	}
+	
+	/*
+	 * removes any spill files.  Only needed if the search may have spilled and is dropped before it is done.
+	 */
+	public void close() {
+		for( Bucket bucket : buckets ) 
+			bucket.close();
+	}
+	
+	private boolean overBudget(long extraBytes) {
+		return bufferedBytes + extraBytes > bucketBudget;
+	}
+	
+	private ByteBuffer spillBuffer() {
+		if( spillBuffer == null ) {
+			spillBuffer = ByteBuffer.allocateDirect(SPILL_BUFFER_SIZE);
+			spillChunk = new int[SPILL_BUFFER_SIZE / 4];
+		}
+		return spillBuffer;
+	}
+	
+	/*
+	 * Terminating condition for the search 
+	 */
+	public boolean done() { 
+		return treeDone() && deltaEmitted == deltaSamples.length;
+	}
+	
+	/* every leaf the query reaches has been stabbed - or there is no tree, only a delta */
+	private boolean treeDone() {
+		return shuttle == null || shuttle.done();
+	}
+	
+	/*
+	 * Streaming interface - the samples are handed out one at a time and the next stab only happens once the samples of 
+	 * the previous one have been consumed.  So a stream that stops early (limit, findFirst, short-circuiting match ...)
+	 * stops the search as well.
 	 * 
-	 * Each stab touches one leaf node - we return as soon as we retrieve the data from a single leaf node...
+	 * These share the state of this search with search() - use one or the other.
 	 */
-	private boolean shuttle(Node node, Range range, ArrayList<Integer> result) {
-		if( node instanceof InternalNode ) {
-			InternalNode in = (InternalNode)node;
-			if( isSearchDone( in.left ) && isSearchDone( in.right ) ) {
-				setSearchDone(node);
-			} else if( !isSearchDone(in.right) && isSearchDone(in.left) ) {
-				/* only right is not done */
-				if( shuttle(in.right, range, result) ) 
-					return true;
-			} else if( !isSearchDone(in.left) && isSearchDone(in.right) ) {
-				/* only left is not done */
-				if( shuttle(in.left, range, result) ) 
-					return true;
-			} else {
-				/* both the children are not done: */
-				if( range.overlaps(in.left.getDataRange()) && !range.overlaps(in.right.getDataRange())) {
-					/* overlaps only with left */
-					if( shuttle(in.left, range, result) )
-						return true;
-				} else if( range.overlaps(in.right.getDataRange()) && !range.overlaps(in.left.getDataRange())) {
-					/* overlaps only with right */
-					if( shuttle(in.right, range, result) )
-						return true;
-				} else {
-					/* overlaps both sides or none */
-					NodeSearchInfo searchInfo = this.searchNodes.get(node);
-					if( searchInfo.next == NodeSearchInfo.LEFT ) {
-						if( shuttle(in.left, range, result) )
-							return true;
-						searchInfo.next = NodeSearchInfo.RIGHT;
-					}
-					if( searchInfo.next == NodeSearchInfo.RIGHT ) {
-						if( shuttle(in.right, range, result) ) 
-							return true;
-						searchInfo.next = NodeSearchInfo.LEFT;
-					}
-				}
+	public PrimitiveIterator.OfInt iterator() {
+		return new SampleIterator();
+	}
+	
+	public Spliterator.OfInt spliterator() {
+		/* the order of the samples is the random order of the stabs - there is nothing to split on */
+		return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.NONNULL);
+	}
+	
+	public IntStream stream() {
+		return StreamSupport.intStream(spliterator(), false);
+	}
+	
+	/*
+	 * holds the samples of one stab at a time.  Stabs that come back empty are skipped.
+	 */
+	class SampleIterator implements PrimitiveIterator.OfInt {
+		private SampleBuffer batch = new SampleBuffer();
+		private int position = 0;
+		
+		@Override
+		public boolean hasNext() {
+			while( position >= batch.size() ) {
+				if( done() ) 
+					return false;
+				batch.clear();
+				search(batch);
+				position = 0;
 			}
-		} else {
-			/* one stab done: */
-			combineTuples(node, range, result);
-			setSearchDone(node);
 			return true;
 		}
 		
-		return false;
+		@Override
+		public int nextInt() {
+			if( !hasNext() ) 
+				throw new NoSuchElementException();
+			return batch.get(position++);
+		}
 	}
 	
-	private void combineTuples(Node n, Range queryRange, ArrayList<Integer> result) {
-		assert n instanceof LeafNode;
-		LeafNode leaf = (LeafNode)n;
-		
+	
+	/*
+	 * "leaf" has to carry its data - i.e. come from ACETree.getLeaf(), not the skeleton.
+	 */
+	private int combineTuples(LeafNode leaf, Range queryRange, SampleBuffer result) {
+		SearchMetrics metrics = this.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
+		ACETreeEvents.Stab event = ACETreeEvents.Stab.start();
+		int added = 0;
+		int sectionsTouched = 0;
 		
-		Util.log( Util.Verbose, "combineTuples: leafNode index %d\n", leaf.leafIndex);
+		Trace.event( Trace.Verbose, "combineTuples: leafNode index %d", leaf.leafIndex );
 		
 		/* 
 		 * I have interpreted the logic in a certain way. :-)
@@ -378,47 +723,95 @@ public class ACETreeSearch {
 		 *   if the range in the Bucket index completely surround the range, we can filter and return the elements in this section.
 		 */
 		
-		int sectionIndex = 0;
-		for( LeafSection leafSection : leaf.sections) {
+		for( int sectionIndex = 0; sectionIndex < leaf.sections.size(); sectionIndex++ ) {
+			LeafSection leafSection = leaf.sections.get(sectionIndex);
+			
 			/* check if the query range completely includes the section's range */
 			if( leafSection.r.encapsulates( queryRange )) {
 				/* filter and add entries */
-				Util.log( Util.Verbose, "sectionIndex %d (%d-%d) completely encapsulates query \n", sectionIndex, leafSection.r.begin, leafSection.r.end);
+				Trace.event( Trace.Verbose, "sectionIndex %d (%d-%d) completely encapsulates query", sectionIndex, leafSection.r.begin, leafSection.r.end );
 				
-				filterAndAdd(queryRange, leafSection.elements, result);
+				int accepted = filterAndAdd(queryRange, leafSection, result);
+				added += accepted;
+				sectionsTouched++;
+				if( metrics != null ) {
+					metrics.sectionsEncapsulated.increment();
+					metrics.recordsFiltered.add(leafSection.size());
+					metrics.recordsAccepted.add(accepted);
+				}
 			} else if( queryRange.overlaps(leafSection.r )) {
 				/* extend and add to the current section in the bucket */
 				Bucket b = this.buckets.get(sectionIndex);
+				sectionsTouched++;
 				
-				Util.log( Util.Verbose, "sectionIndex %d (%d-%d) overlaps query \n", sectionIndex, leafSection.r.begin, leafSection.r.end);
-				b.print();
+				Trace.event( Trace.Verbose, "sectionIndex %d (%d-%d) overlaps query", sectionIndex, leafSection.r.begin, leafSection.r.end );
 				
 				/* 
 				 * Add this leaf to the appropriate bucket.
 				 * 
 				 * addLeaf returns TRUE when the section is complete.  In this case, we can merge the elements into the Result Array.
 				 */
-				if( b.addLeaf(this.tree.height, leaf.leafIndex, leafSection) ) {
-					Util.log( Util.Verbose, "Completed the leaf -> Flushing the elements\n");
-					b.flushElements(this.queryRange, result);
+				boolean complete;
+				if( metrics == null ) {
+					complete = b.addLeaf(this.tree.height, leaf.leafIndex, leafSection);
+				} else {
+					metrics.sectionsOverlapped.increment();
+					metrics.recordsFiltered.add(leafSection.size());
+					long addStart = System.nanoTime();
+					complete = b.addLeaf(this.tree.height, leaf.leafIndex, leafSection);
+					metrics.addLeafNanos.record(System.nanoTime() - addStart);
 				}
 				
-				Util.log( Util.Verbose, "bucket -> after adding leaf..\n");
-				b.print();
+				if( complete ) {
+					Trace.event( Trace.Verbose, "bucket %d complete -> flushing %d elements", sectionIndex, b.numElements );
+					added += b.flushElements(result);
+				}
+				b.trace();
 			}
-			
-			sectionIndex++;
 		}
 		
+		if( metrics != null )
+			metrics.combineTuplesNanos.record(System.nanoTime() - start);
+		if( event != null )
+			event.finish(leaf.leafIndex, sectionsTouched, added);
+		return added;
 	}
 	
-	private static void filterAndAdd(Range queryRange, ArrayList<Integer> src, ArrayList<Integer> dest) {
-		Util.log( Util.Verbose, "Filter and add " );
-		for( Integer i : src ) {
-			Util.log( Util.Verbose, "[%d] ", i );
-			if( queryRange.includes(i) ) 
-				dest.add(i);
+	/*
+	 * The keys of a leaf section are sorted (see ACETree), so the ones in the query range are a run of it - 
+	 * [runBegin, runEnd), two binary searches.  When the query holds the whole range of the section there is nothing
+	 * to search for.
+	 */
+	static int runBegin(Range queryRange, LeafSection section) {
+		return queryRange.encapsulates(section.r) ? 0 : section.lowerBound(queryRange.begin);
+	}
+	
+	static int runEnd(Range queryRange, LeafSection section) {
+		return queryRange.encapsulates(section.r) ? section.size() : section.upperBound(queryRange.end);
+	}
+	
+	/*
+	 * the records of "section" in the query range, copied out in one go - only the deleted ones (if any) are looked at 
+	 * one by one.
+	 */
+	static int filterAndAdd(Range queryRange, LeafSection section, SampleBuffer dest) {
+		int from = runBegin(queryRange, section);
+		int to = runEnd(queryRange, section);
+		long dead[] = section.dead;
+		
+		int added = 0;
+		if( dead == null ) {
+			dest.addAll(section, from, to);
+			added = to - from;
+		} else {
+			for( int i = from; i < to; i++ ) {
+				if( !LeafSection.isDead(dead, i) ) {
+					dest.accept(section.key(i));
+					added++;
+				}
+			}
 		}
-		Util.log( Util.Verbose, "\n");
+		Trace.event( Trace.Verbose, "filterAndAdd: %d of %d in range", added, section.size() );
+		return added;
 	}
 }
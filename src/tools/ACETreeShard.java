@@ -0,0 +1,53 @@
+package tools;
+
+import java.io.IOException;
+import java.util.function.IntConsumer;
+
+/*
+ * One shard of an ACETreeForest - an ACE tree over one range of the keys, in this process (local()) or in another one
+ * (RemoteACETreeShard, served by ACETreeShardServer).
+ *
+ * The calls are the ones the forest needs and no more, so that each is one round trip to a remote shard: how many of
+ * the shard's records a query range holds, and a search over the shard that hands out one stab at a time.
+ */
+public interface ACETreeShard {
+	/* about how many of the shard's records fall in "range" - see ACETree.estimateCount */
+	public double estimateCount(Range range);
+
+	/* starts a search over the shard - the same samples, in the same order, as an ACETreeSearch on its tree */
+	public Search open(Range range);
+
+	public void close() throws IOException;
+
+	/* a search over one shard - ACETreeSearch, or a handle on one in another process */
+	public interface Search {
+		/* one stab - pushes its samples into "sink" and returns how many */
+		public int search(IntConsumer sink);
+
+		public boolean done();
+
+		public void close();
+	}
+
+	/* a shard over a tree in this process.  Closing the shard closes the tree. */
+	public static ACETreeShard local(final ACETree tree) {
+		return new ACETreeShard() {
+			public double estimateCount(Range range) {
+				return tree.estimateCount(range);
+			}
+
+			public Search open(Range range) {
+				final ACETreeSearch search = new ACETreeSearch(tree, range);
+				return new Search() {
+					public int search(IntConsumer sink) { return search.search(sink); }
+					public boolean done() { return search.done(); }
+					public void close() { search.close(); }
+				};
+			}
+
+			public void close() throws IOException {
+				tree.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,208 @@
+package tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Serves an ACETreeShard over TCP, for a RemoteACETreeShard in another process (or this one, for testing).
+ *
+ * The protocol is a request and a response at a time on a connection, in DataOutputStream's big endian:
+ * 		OP_ESTIMATE begin end		-> double
+ * 		OP_OPEN begin end			-> search id (int), done (boolean)
+ * 		OP_SEARCH id				-> count (int), the samples (count ints), done (boolean)
+ * 		OP_CLOSE id					-> nothing
+ * Search ids belong to the connection, and its searches are closed with it.  A request the server cannot make sense
+ * of drops the connection.
+ *
+ * Each connection gets a thread of its own.  Nothing is shared between them but the shard, and the searches of a
+ * shard over an ACETree can run side by side (see ACETree).
+ */
+public class ACETreeShardServer {
+	static final int OP_ESTIMATE = 1;
+	static final int OP_OPEN = 2;
+	static final int OP_SEARCH = 3;
+	static final int OP_CLOSE = 4;
+
+	private final ACETreeShard shard;
+	private final ServerSocket serverSocket;
+	private final Thread acceptor;
+	private final ArrayList<Socket> connections = new ArrayList<Socket>();
+	private volatile boolean closed;
+
+	/* listens on the loopback interface, on a port of its own choosing - see getPort() */
+	public ACETreeShardServer(ACETreeShard shard) throws IOException {
+		this(shard, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+	}
+
+	public ACETreeShardServer(ACETreeShard shard, InetSocketAddress address) throws IOException {
+		this.shard = shard;
+		this.serverSocket = new ServerSocket();
+		serverSocket.bind(address);
+
+		this.acceptor = new Thread(new Runnable() {
+			public void run() { accept(); }
+		}, "acetree-shard-server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	private void accept() {
+		while( !closed ) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch(IOException e) {
+				if( !closed )
+					Trace.event( Trace.Verbose, "shard server on port %d stopped accepting", getPort() );
+				return;
+			}
+
+			synchronized( connections ) {
+				if( closed ) {
+					closeQuietly(socket);
+					return;
+				}
+				connections.add(socket);
+			}
+			Thread t = new Thread(new Runnable() {
+				public void run() { serve(socket); }
+			}, "acetree-shard-connection");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private void serve(Socket socket) {
+		HashMap<Integer, ACETreeShard.Search> searches = new HashMap<Integer, ACETreeShard.Search>();
+		SampleBuffer samples = new SampleBuffer();
+		int nextId = 0;
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			while( true ) {
+				int op;
+				try {
+					op = in.readInt();
+				} catch(EOFException e) {
+					return;
+				}
+
+				switch( op ) {
+				case OP_ESTIMATE:
+					out.writeDouble(shard.estimateCount(new Range(in.readInt(), in.readInt())));
+					break;
+				case OP_OPEN: {
+					ACETreeShard.Search search = shard.open(new Range(in.readInt(), in.readInt()));
+					int id = nextId++;
+					searches.put(id, search);
+					out.writeInt(id);
+					out.writeBoolean(search.done());
+					break;
+				}
+				case OP_SEARCH: {
+					ACETreeShard.Search search = lookup(searches, in.readInt());
+					samples.clear();
+					search.search(samples);
+					out.writeInt(samples.size());
+					int array[] = samples.array();
+					for( int i = 0; i < samples.size(); i++ )
+						out.writeInt(array[i]);
+					out.writeBoolean(search.done());
+					break;
+				}
+				case OP_CLOSE: {
+					ACETreeShard.Search search = searches.remove(in.readInt());
+					if( search != null )
+						search.close();
+					break;
+				}
+				default:
+					throw new IOException("unknown shard request " + op);
+				}
+				out.flush();
+			}
+		} catch(SocketException e) {
+			/* closed under us - by the client or by close() */
+		} catch(IOException e) {
+			Trace.event( Trace.Verbose, "shard server on port %d dropped a connection", getPort() );
+		} finally {
+			for( ACETreeShard.Search search : searches.values() )
+				search.close();
+			synchronized( connections ) {
+				connections.remove(socket);
+			}
+			closeQuietly(socket);
+		}
+	}
+
+	private static ACETreeShard.Search lookup(HashMap<Integer, ACETreeShard.Search> searches, int id) throws IOException {
+		ACETreeShard.Search search = searches.get(id);
+		if( search == null )
+			throw new IOException("no shard search " + id);
+		return search;
+	}
+
+	/* stops listening and drops the connections - the shard itself is left open */
+	public void close() throws IOException {
+		closed = true;
+		serverSocket.close();
+		synchronized( connections ) {
+			for( Socket socket : connections )
+				closeQuietly(socket);
+			connections.clear();
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch(IOException e) {
+			/* nothing left to do */
+		}
+	}
+
+	/*
+	 * serves a shard over keys read from a file of big endian ints, one shard per process:
+	 * 	ACETreeShardServer <keys file> <port> [seed]
+	 */
+	public static void main(String args[]) throws IOException, InterruptedException {
+		if( args.length < 2 ) {
+			System.err.println("usage: ACETreeShardServer <keys file> <port> [seed]");
+			System.exit(1);
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])));
+		SampleBuffer keys = new SampleBuffer();
+		try {
+			while( true )
+				keys.accept(in.readInt());
+		} catch(EOFException e) {
+			/* all read */
+		} finally {
+			in.close();
+		}
+
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		ACETree tree = new ACETree(keys.toArray(), seed, null);
+		ACETreeShardServer server = new ACETreeShardServer(ACETreeShard.local(tree),
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[1])));
+		System.out.printf("serving %d records on port %d\n", tree.size(), server.getPort());
+		server.acceptor.join();
+	}
+}
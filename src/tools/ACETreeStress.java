@@ -0,0 +1,121 @@
+package tools;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Multi-threaded stress run over a single shared ACETree.
+ * 
+ * Builds one tree, then for 1, 2, 4 ... up to the number of cores runs that many threads, each doing back to back 
+ * searches over random query ranges for a fixed time.  Every sample returned is checked against its query range.
+ * 
+ * Prints the searches/sec and samples/sec for each thread count, and the speedup over one thread.  With the tree
+ * read-only and all the search state per thread, the speedup should follow the number of threads up to the core count.
+ * 
+ * usage: ACETreeStress [numRecords] [seconds per run]
+ */
+public class ACETreeStress {
+	private static final int MAX_KEY = 1000000;
+	
+	private final ACETree tree;
+	private final long millisPerRun;
+	
+	public ACETreeStress(ACETree tree, long millisPerRun) {
+		this.tree = tree;
+		this.millisPerRun = millisPerRun;
+	}
+	
+	/*
+	 * runs "numThreads" searching threads for millisPerRun - returns {searches, samples}
+	 */
+	public long[] run(int numThreads) throws InterruptedException {
+		final AtomicLong searches = new AtomicLong();
+		final AtomicLong samples = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final long deadline[] = new long[1];
+		
+		Thread threads[] = new Thread[numThreads];
+		for( int t = 0; t < numThreads; t++ ) {
+			final SplittableRandom random = new SplittableRandom(t);
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					long mySearches = 0, mySamples = 0, myErrors = 0;
+					try {
+						start.await();
+					} catch(InterruptedException e) {
+						return;
+					}
+					
+					while( System.currentTimeMillis() < deadline[0] ) {
+						int begin = random.nextInt(MAX_KEY);
+						int end = begin + random.nextInt(MAX_KEY / 10);
+						Range queryRange = new Range(begin, end);
+						
+						ACETreeSearch search = new ACETreeSearch(tree, queryRange);
+						while( !search.done() ) {
+							ArrayList<Integer> result = search.search();
+							for( int i = 0; i < result.size(); i++ ) {
+								if( !queryRange.includes(result.get(i)) )
+									myErrors++;
+							}
+							mySamples += result.size();
+						}
+						mySearches++;
+					}
+					
+					searches.addAndGet(mySearches);
+					samples.addAndGet(mySamples);
+					errors.addAndGet(myErrors);
+				}
+			});
+			threads[t].start();
+		}
+		
+		deadline[0] = System.currentTimeMillis() + millisPerRun;
+		start.countDown();
+		for( Thread thread : threads ) 
+			thread.join();
+		
+		if( errors.get() != 0 )
+			throw new IllegalStateException(String.format("%d samples outside their query range", errors.get()));
+		
+		return new long[] { searches.get(), samples.get() };
+	}
+	
+	public static void main(String args[]) throws InterruptedException {
+		int numRecords = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int cores = Runtime.getRuntime().availableProcessors();
+		
+		SplittableRandom random = new SplittableRandom(42);
+		int entries[] = new int[numRecords];
+		for( int i = 0; i < numRecords; i++ )
+			entries[i] = random.nextInt(MAX_KEY);
+		ACETree tree = new ACETree(entries, 42, null);
+		
+		ACETreeStress stress = new ACETreeStress(tree, seconds * 1000L);
+		
+		/* warm up */
+		stress.run(1);
+		
+		System.out.printf( "threads,searches/sec,samples/sec,speedup\n" );
+		double base = 0;
+		for( int numThreads = 1; ; numThreads *= 2 ) {
+			if( numThreads > cores ) 
+				numThreads = cores;
+			
+			long result[] = stress.run(numThreads);
+			double searchesPerSec = result[0] * 1000.0 / stress.millisPerRun;
+			double samplesPerSec = result[1] * 1000.0 / stress.millisPerRun;
+			if( base == 0 ) 
+				base = samplesPerSec;
+			System.out.printf( "%d,%.1f,%.1f,%.2f\n", numThreads, searchesPerSec, samplesPerSec, samplesPerSec / base );
+			
+			if( numThreads == cores ) 
+				break;
+		}
+	}
+}
@@ -1,10 +1,22 @@
 package tools;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import tools.ACETree.Record;
+import tools.ACETree.LeafNode;
+import tools.ACETree.LeafSection;
 
 public class ACETreeTest {
 	public class Bucket {
@@ -35,7 +47,7 @@ public class ACETreeTest {
 			for( int i : data.d ) {
 				Bucket b = getBucket(i);
 				if( b == null ) {
-					Util.log( Util.None, "null bucket for value = %d\n",  i );
+					System.out.printf( "null bucket for value = %d\n",  i );
 					continue;
 				}
 				b.count++;
@@ -118,14 +130,14 @@ public class ACETreeTest {
 		}
 		
 		public void print() {
-//			Util.log( Util.Minimal, "Name - %s\n", this.name);
-//			Util.log( Util.Minimal, "Total points - %d\n", buckets.getCount());
+//			System.out.printf( "Name - %s\n", this.name);
+//			System.out.printf( "Total points - %d\n", buckets.getCount());
 //			
 //			if( data.d.size() < 100) {
-//				Util.log( Util.Minimal, "%s\n", data);
+//				System.out.printf( "%s\n", data);
 //			}
 //			if( data.d.size() < 1000) {
-//				Util.log( Util.Minimal, "%s\n", buckets);
+//				System.out.printf( "%s\n", buckets);
 //			}
 		}
 		
@@ -143,7 +155,7 @@ public class ACETreeTest {
 				// System.out.printf( "Bucket [%d] Desired Number [%f] Actual [%d] ThisDifference [%f]\n",  bucket_index, desired_number, currBucket.count, thisdiff );
 			}
 			
-			Util.log( Util.None, "Difference = %f\n", diff );
+			System.out.printf( "Difference = %f\n", diff );
 		}
 	}
 	
@@ -199,7 +211,7 @@ public class ACETreeTest {
 			} else if( sampleMethod == ACETreeSample )  {
 				ArrayList<Integer> result = aceTreeSearch.search();
 				
-				Util.log( Util.None, "[%d] Samples returned from the ACETree\n", result.size() );
+				System.out.printf( "[%d] Samples returned from the ACETree\n", result.size() );
 				
 				/* remove this from our bucket */
 				for( int i : result ) {
@@ -264,7 +276,7 @@ public class ACETreeTest {
 			/* Remove the samples from ACETree */
 			ArrayList<Integer> result = aceTreeSearch.search();
 			
-			Util.log( Util.None, "[%d] Samples returned from the ACETree\n", result.size() );
+			System.out.printf( "[%d] Samples returned from the ACETree\n", result.size() );
 			
 			/* remove this from our bucket */
 			for( int i : result ) {
@@ -300,15 +312,15 @@ public class ACETreeTest {
 		
 		Distribution dFirst, dLast;
 
-		Util.log( Util.Minimal, "Size of distributions [%d]\n", distributionsACETree.size() );
+		Trace.event( Trace.Minimal, "Size of distributions [%d]", distributionsACETree.size() );
 
-		Util.log( Util.Minimal, "Comparing ACETree\n" );
+		Trace.event( Trace.Minimal, "Comparing ACETree" );
 		dLast = distributionsACETree.get(  distributionsACETree.size() - 1);
 		dFirst = distributionsACETree.get( 0);
 		dLast.compare( dFirst );
 		
-		Util.log( Util.Minimal, "Comparing Random\n" );
-		Util.log( Util.Minimal, "Size of distributions [%d]\n", distributionsRandom.size() );
+		Trace.event( Trace.Minimal, "Comparing Random" );
+		Trace.event( Trace.Minimal, "Size of distributions [%d]", distributionsRandom.size() );
 		dLast = distributionsRandom.get(  distributionsRandom.size() - 1);
 		dFirst = distributionsRandom.get(0);
 		dLast.compare( dFirst );
@@ -318,10 +330,1130 @@ public class ACETreeTest {
 	
 
 	
-	public static void main(String args[]) {
+	/*
+	 * Checks of the variants of the tree against the plain in-memory one.
+	 * 
+	 * Each builds its keys from a fixed seed, runs the same query on the variant and on an in-memory tree built with
+	 * the same seed, and compares the samples as multisets - a variant has to give the same records, whatever it does
+	 * to get them.  A check prints a line when it passes and throws IllegalStateException when it does not.
+	 */
+	protected static final long CHECK_SEED = 17;
+	
+	/* "n" keys in [0, maxKey) */
+	static int[] checkKeys(int n, int maxKey, long seed) {
+		SplittableRandom random = new SplittableRandom(seed);
+		int keys[] = new int[n];
+		for( int i = 0; i < n; i++ ) 
+			keys[i] = random.nextInt(maxKey);
+		return keys;
+	}
+	
+	/* all the samples of "search", in the order they came */
+	static int[] stream(ACETreeSearch search) {
+		SampleBuffer samples = new SampleBuffer();
+		while( !search.done() ) 
+			search.search(samples);
+		return samples.toArray();
+	}
+	
+	/* all the samples of "search", sorted - so that two of them compare as multisets */
+	static int[] drain(ACETreeSearch search) {
+		SampleBuffer samples = new SampleBuffer();
+		while( !search.done() ) 
+			search.search(samples);
+		int sorted[] = samples.toArray();
+		Arrays.sort(sorted);
+		return sorted;
+	}
+	
+	static void expect(String check, boolean ok, String detail) {
+		if( !ok ) 
+			throw new IllegalStateException(String.format("%s failed: %s", check, detail));
+		System.out.printf( "%s: ok (%s)\n", check, detail );
+	}
+	
+	static void expectSame(String check, int expected[], int actual[]) {
+		expect(check, Arrays.equals(expected, actual), String.format("%d samples, expected %d", actual.length, expected.length));
+	}
+	
+	/*
+	 * a search over its bucket budget spills the buckets to disk and reads them back at the flush - the samples have to
+	 * be the same as with no budget at all.
+	 */
+	public void checkSpill() {
+		int keys[] = checkKeys(200000, 100000, CHECK_SEED);
+		ACETree tree = new ACETree(keys, CHECK_SEED, null);
+		Range range = new Range(10000, 60000);
+		int expected[] = drain(new ACETreeSearch(tree, range));
+		
+		for( long budget : new long[] { 0, 1000, 100000 } ) {
+			ACETreeSearch search = new ACETreeSearch(tree, range, budget);
+			SampleBuffer samples = new SampleBuffer();
+			long spilled = 0;
+			while( !search.done() ) {
+				search.search(samples);
+				spilled = Math.max(spilled, search.getSpilledBytes());
+			}
+			search.close();
+			int actual[] = samples.toArray();
+			Arrays.sort(actual);
+			expect(String.format("spill, budget %d", budget), spilled > 0, String.format("%d bytes spilled at most", spilled));
+			expectSame(String.format("spill, budget %d", budget), expected, actual);
+		}
+	}
+	
+	/*
+	 * the streaming views give the samples of search(), in the same order: the iterator one at a time, the spliterator
+	 * and the IntStream all at once.  A stream cut short by limit() takes the first samples and leaves the search
+	 * unfinished.
+	 */
+	public void checkStreams() {
+		int keys[] = checkKeys(200000, 100000, CHECK_SEED);
+		ACETree tree = new ACETree(keys, CHECK_SEED, null);
+		Range range = new Range(10000, 60000);
+		int expected[] = stream(new ACETreeSearch(tree, range));
+		
+		SampleBuffer iterated = new SampleBuffer();
+		PrimitiveIterator.OfInt iterator = new ACETreeSearch(tree, range).iterator();
+		while( iterator.hasNext() ) 
+			iterated.accept(iterator.nextInt());
+		expectSame("streams, iterator", expected, iterated.toArray());
+		
+		SampleBuffer split = new SampleBuffer();
+		new ACETreeSearch(tree, range).spliterator().forEachRemaining(split);
+		expectSame("streams, spliterator", expected, split.toArray());
+		expectSame("streams, IntStream", expected, new ACETreeSearch(tree, range).stream().toArray());
+		
+		ACETreeSearch cut = new ACETreeSearch(tree, range);
+		int first[] = cut.stream().limit(100).toArray();
+		expect("streams, limit", Arrays.equals(Arrays.copyOf(expected, 100), first) && !cut.done(), 
+				String.format("%d samples taken, search done: %b", first.length, cut.done()));
+	}
+	
+	/*
+	 * search(IntConsumer) gives the samples of search() stab for stab, and returns how many it pushed - on a tree, and
+	 * on a MutableACETree whose delta is pushed along with the base's samples.
+	 */
+	public void checkSink() throws IOException {
+		int keys[] = checkKeys(200000, 100000, CHECK_SEED);
+		Range range = new Range(10000, 60000);
+		ACETree tree = new ACETree(keys, CHECK_SEED, null);
+		MutableACETree mutable = new MutableACETree(keys, CHECK_SEED);
+		try {
+			for( int i = 0; i < 5000; i++ ) 
+				mutable.insert(100000 + i);
+			
+			for( int pass = 0; pass < 2; pass++ ) {
+				String check = pass == 0 ? "sink" : "sink, with a delta";
+				Range query = pass == 0 ? range : new Range(range.begin, 200000);
+				ACETreeSearch boxed = pass == 0 ? new ACETreeSearch(tree, query) : mutable.search(query);
+				ACETreeSearch pushed = pass == 0 ? new ACETreeSearch(tree, query) : mutable.search(query);
+				SampleBuffer buffer = new SampleBuffer();
+				int stabs = 0, differ = 0, samples = 0;
+				while( !boxed.done() && !pushed.done() ) {
+					ArrayList<Integer> expected = boxed.search();
+					buffer.clear();
+					int count = pushed.search(buffer);
+					boolean same = count == buffer.size() && count == expected.size();
+					for( int i = 0; same && i < count; i++ ) 
+						same = expected.get(i) == buffer.get(i);
+					if( !same ) 
+						differ++;
+					samples += count;
+					stabs++;
+				}
+				expect(check, differ == 0 && boxed.done() && pushed.done(), 
+						String.format("%d of %d stabs differ, %d samples", differ, stabs, samples));
+			}
+		} finally {
+			mutable.close();
+		}
+	}
+	
+	/*
+	 * the counters of SearchMetrics add up: a stab per search() call, every sample counted as accepted and no more
+	 * accepted than filtered, every stab timed.  Two searches sharing one count twice what one does, and reset() clears
+	 * it all.
+	 */
+	public void checkMetrics() {
+		int keys[] = checkKeys(200000, 100000, CHECK_SEED);
+		ACETree tree = new ACETree(keys, CHECK_SEED, null);
+		Range range = new Range(10000, 60000);
+		SearchMetrics metrics = new SearchMetrics();
+		
+		ACETreeSearch search = new ACETreeSearch(tree, range);
+		search.setMetrics(metrics);
+		SampleBuffer samples = new SampleBuffer();
+		int calls = 0;
+		while( !search.done() ) {
+			search.search(samples);
+			calls++;
+		}
+		expect("metrics", metrics.getStabs() == calls && metrics.getEmptyStabs() <= calls && metrics.getShuttleNanos().getCount() == calls 
+				&& metrics.getRecordsAccepted() == samples.size() && metrics.getRecordsFiltered() >= samples.size() 
+				&& metrics.getSectionsEncapsulated() + metrics.getSectionsOverlapped() > 0 && metrics.getBucketFlushes() > 0, 
+				String.format("%d calls, %d samples, %d stabs (%d empty), %d accepted of %d filtered", calls, samples.size(), 
+						metrics.getStabs(), metrics.getEmptyStabs(), metrics.getRecordsAccepted(), metrics.getRecordsFiltered()));
+		
+		long stabs = metrics.getStabs(), accepted = metrics.getRecordsAccepted(), filtered = metrics.getRecordsFiltered();
+		ACETreeSearch second = new ACETreeSearch(tree, range);
+		second.setMetrics(metrics);
+		drain(second);
+		expect("metrics, shared", metrics.getStabs() == 2 * stabs && metrics.getRecordsAccepted() == 2 * accepted 
+				&& metrics.getRecordsFiltered() == 2 * filtered, String.format("%d stabs, %d accepted", metrics.getStabs(), metrics.getRecordsAccepted()));
+		
+		metrics.reset();
+		expect("metrics, reset", metrics.getStabs() == 0 && metrics.getRecordsAccepted() == 0 && metrics.getRecordsFiltered() == 0 
+				&& metrics.getBucketFlushes() == 0 && metrics.getShuttleNanos().getCount() == 0, metrics.getStabs() + " stabs");
+	}
+	
+	/* "sorted" without the values "dropped" says to drop - both sorted */
+	static int[] without(int sorted[], int dropped[]) {
+		SampleBuffer kept = new SampleBuffer();
+		for( int value : sorted ) {
+			if( Arrays.binarySearch(dropped, value) < 0 ) 
+				kept.accept(value);
+		}
+		return kept.toArray();
+	}
+	
+	/*
+	 * deleted records never come out: a tree with a range deleted and a few single keys gives the samples of the same
+	 * tree without the deletes, less the deleted records.  The single keys occur once each, so which record goes is
+	 * not in doubt.  Then the same on a tree opened from a file, and on a MutableACETree - base and delta.
+	 */
+	public void checkDeletes() throws IOException, InterruptedException {
+		int keys[] = checkKeys(200000, 100000, CHECK_SEED);
+		Range range = new Range(0, 100000);
+		Range deletedRange = new Range(20000, 29999);
+		int expected[] = drain(new ACETreeSearch(new ACETree(keys, CHECK_SEED, null), range));
+		
+		int counts[] = new int[100000];
+		for( int key : keys ) 
+			counts[key]++;
+		SampleBuffer dropped = new SampleBuffer();
+		for( int key = deletedRange.begin; key <= deletedRange.end; key++ ) 
+			dropped.accept(key);
+		for( int key = 50000; dropped.size() < deletedRange.end - deletedRange.begin + 1 + 100; key++ ) {
+			if( counts[key] == 1 ) 
+				dropped.accept(key);
+		}
+		int singles[] = Arrays.copyOfRange(dropped.toArray(), deletedRange.end - deletedRange.begin + 1, dropped.size());
+		expected = without(expected, dropped.toArray());
+		
+		ACETree tree = new ACETree(keys, CHECK_SEED, null);
+		deleteAll(tree, deletedRange, singles);
+		expectSame("deletes, in memory", expected, drain(new ACETreeSearch(tree, range)));
+		
+		File f = File.createTempFile("acetree-test", ".ace");
+		f.deleteOnExit();
+		try {
+			ACETreeFile.write(new ACETree(keys, CHECK_SEED, null), f);
+			ACETree opened = ACETreeFile.open(f);
+			try {
+				deleteAll(opened, deletedRange, singles);
+				expectSame("deletes, from a file", expected, drain(new ACETreeSearch(opened, range)));
+			} finally {
+				opened.close();
+			}
+		} finally {
+			f.delete();
+		}
+		
+		/* keys past the base's go to the delta - no merges, so the base stays the tree above */
+		MutableACETree mutable = new MutableACETree(keys, CHECK_SEED, 10.0, 1.0);
+		MutableACETree reference = new MutableACETree(keys, CHECK_SEED, 10.0, 1.0);
+		SampleBuffer deltaDropped = new SampleBuffer();
+		for( int i = 0; i < 20000; i++ ) {
+			mutable.insert(100000 + i);
+			reference.insert(100000 + i);
+			if( i % 3 == 0 ) 
+				deltaDropped.accept(100000 + i);
+		}
+		int found = 0;
+		for( int i = 0; i < singles.length; i++ ) 
+			found += mutable.delete(singles[i]) ? 1 : 0;
+		for( int i = 0; i < deltaDropped.size(); i++ ) 
+			found += mutable.delete(deltaDropped.get(i)) ? 1 : 0;
+		expect("deletes, mutable", found == singles.length + deltaDropped.size() && !mutable.delete(-1), 
+				String.format("%d of %d keys found", found, singles.length + deltaDropped.size()));
+		
+		Range mutableRange = new Range(0, 200000);
+		int mutableDropped[] = new int[singles.length + deltaDropped.size()];
+		System.arraycopy(singles, 0, mutableDropped, 0, singles.length);
+		System.arraycopy(deltaDropped.toArray(), 0, mutableDropped, singles.length, deltaDropped.size());
+		Arrays.sort(mutableDropped);
+		expectSame("deletes, mutable", without(drain(reference.search(mutableRange)), mutableDropped), drain(mutable.search(mutableRange)));
+		expect("deletes, mutable size", mutable.size() == reference.size() - mutableDropped.length, mutable.size() + " records");
+		mutable.close();
+		reference.close();
+	}
+	
+	/* "sorted" less one of each of "dropped" that it holds - both sorted */
+	static int[] minus(int sorted[], int dropped[]) {
+		SampleBuffer kept = new SampleBuffer();
+		int d = 0;
+		for( int value : sorted ) {
+			while( d < dropped.length && dropped[d] < value ) 
+				d++;
+			if( d < dropped.length && dropped[d] == value ) 
+				d++;
+			else 
+				kept.accept(value);
+		}
+		return kept.toArray();
+	}
+	
+	/*
+	 * what a search of "mutable" has to give once no merge is running, for distinct keys: the samples of its base as
+	 * the same tree without the deletes gives them, less the deleted records, and every live record of the delta.
+	 * "live" is flagged by key.  Fails if the base holds a record that is not live.
+	 */
+	static int[] expectedSamples(String check, MutableACETree mutable, boolean live[], Range range) {
+		SampleBuffer all = new SampleBuffer(), dead = new SampleBuffer(), liveKeys = new SampleBuffer();
+		ACETree base = mutable.getBase();
+		for( int i = 0; base != null && i < base.numLeaves; i++ ) {
+			for( LeafSection section : base.getLeaf(i).sections ) {
+				for( int k = 0; k < section.size(); k++ ) {
+					all.accept(section.key(k));
+					if( LeafSection.isDead(section.dead, k) ) 
+						dead.accept(section.key(k));
+				}
+			}
+		}
+		for( int key = 0; key < live.length; key++ ) {
+			if( live[key] ) 
+				liveKeys.accept(key);
+		}
+		int allKeys[] = all.toArray(), deadKeys[] = dead.toArray();
+		Arrays.sort(allKeys);
+		Arrays.sort(deadKeys);
+		int baseLive[] = minus(allKeys, deadKeys);
+		int delta[] = minus(liveKeys.toArray(), baseLive);
+		expect(check + ", base", baseLive.length + delta.length == liveKeys.size(), 
+				String.format("%d live records in the base, %d in the delta", baseLive.length, delta.length));
+		
+		SampleBuffer expected = new SampleBuffer();
+		if( base != null ) {
+			for( int sample : minus(drain(new ACETreeSearch(new ACETree(allKeys, base.seed, null), range)), deadKeys) ) 
+				expected.accept(sample);
+		}
+		for( int key : delta ) {
+			if( range.includes(key) ) 
+				expected.accept(key);
+		}
+		int sorted[] = expected.toArray();
+		Arrays.sort(sorted);
+		return sorted;
+	}
+	
+	/*
+	 * a MutableACETree with the default merge fraction and compaction threshold, deleted from past the threshold over
+	 * and over - while merges run, so that deletes are replayed on the trees they publish - then down to too few records
+	 * for a tree, and back up by inserts.  After each awaitMerge() the samples and size() match the live records.
+	 */
+	public void checkCompaction() throws IOException, InterruptedException {
+		SplittableRandom random = new SplittableRandom(CHECK_SEED);
+		int keys[] = new int[20000];
+		for( int i = 0; i < keys.length; i++ ) 
+			keys[i] = 5 * i + random.nextInt(5);
+		for( int i = keys.length - 1; i > 0; i-- ) {
+			int j = random.nextInt(i + 1);
+			int swap = keys[i];
+			keys[i] = keys[j];
+			keys[j] = swap;
+		}
+		
+		Range range = new Range(0, 199999);
+		boolean live[] = new boolean[200000];
+		for( int key : keys ) 
+			live[key] = true;
+		MutableACETree mutable = new MutableACETree(keys, CHECK_SEED);
+		ACETree first = mutable.getBase();
+		try {
+			for( int i = 0; i < 15000; i++ ) {
+				mutable.delete(keys[i]);
+				live[keys[i]] = false;
+			}
+			mutable.awaitMerge();
+			expect("compaction", mutable.getBase() != first, mutable.getBase().size() + " records in the base");
+			expectSame("compaction", expectedSamples("compaction", mutable, live, range), drain(mutable.search(range)));
+			expect("compaction, size", mutable.size() == 5000, mutable.size() + " records");
+			
+			for( int i = 15000; i < keys.length - 500; i++ ) {
+				mutable.delete(keys[i]);
+				live[keys[i]] = false;
+			}
+			mutable.awaitMerge();
+			expect("compaction, too few for a tree", mutable.getBase() == null, mutable.deltaSize() + " records in the delta");
+			expectSame("compaction, too few for a tree", expectedSamples("compaction, too few for a tree", mutable, live, range), drain(mutable.search(range)));
+			expect("compaction, too few for a tree, size", mutable.size() == 500, mutable.size() + " records");
+			
+			for( int i = 0; i < 3000; i++ ) {
+				mutable.insert(100000 + i);
+				live[100000 + i] = true;
+				if( i % 4 == 0 ) {
+					mutable.delete(100000 + i / 2);
+					live[100000 + i / 2] = false;
+				}
+			}
+			for( int i = keys.length - 500; i < keys.length - 300; i++ ) {
+				mutable.delete(keys[i]);
+				live[keys[i]] = false;
+			}
+			mutable.awaitMerge();
+			expect("compaction, inserts", mutable.getBase() != null, mutable.getBase().size() + " records in the base");
+			expectSame("compaction, inserts", expectedSamples("compaction, inserts", mutable, live, range), drain(mutable.search(range)));
+			expect("compaction, inserts, size", mutable.size() == 300 + 3000 - 750, mutable.size() + " records");
+		} finally {
+			mutable.close();
+		}
+	}
+	
+	/*
+	 * inserts go to the delta, with the base left as it is, until the delta reaches the merge fraction of the base;
+	 * then a merge folds them into a new base.  Before and after, the samples and size() are those of the live records.
+	 */
+	public void checkInserts() throws IOException, InterruptedException {
+		SplittableRandom random = new SplittableRandom(CHECK_SEED);
+		int keys[] = new int[20000];
+		for( int i = 0; i < keys.length; i++ ) 
+			keys[i] = 10 * i + random.nextInt(10);
+		
+		Range range = new Range(50000, 249999);
+		boolean live[] = new boolean[300000];
+		for( int key : keys ) 
+			live[key] = true;
+		MutableACETree mutable = new MutableACETree(keys, CHECK_SEED, 0.25, 0.5);
+		ACETree first = mutable.getBase();
+		try {
+			for( int i = 0; i < 4999; i++ ) {
+				mutable.insert(200001 + 10 * i);
+				live[200001 + 10 * i] = true;
+			}
+			expect("inserts, delta", mutable.getBase() == first && mutable.deltaSize() == 4999, mutable.deltaSize() + " records in the delta");
+			expectSame("inserts, delta", expectedSamples("inserts, delta", mutable, live, range), drain(mutable.search(range)));
+			
+			mutable.insert(200000);
+			live[200000] = true;
+			mutable.awaitMerge();
+			expect("inserts, merged", mutable.getBase() != first && mutable.getBase().size() == 25000 && mutable.deltaSize() == 0, 
+					mutable.getBase().size() + " records in the base");
+			expectSame("inserts, merged", expectedSamples("inserts, merged", mutable, live, range), drain(mutable.search(range)));
+			expect("inserts, size", mutable.size() == 25000, mutable.size() + " records");
+		} finally {
+			mutable.close();
+		}
+	}
+	
+	/*
+	 * a tree file bulk loaded from a file of keys is the tree ACETree builds from them with the same seed and leaf size
+	 * - so the same samples.  A budget of 16KB sorts runs of 1024 keys, which takes two levels of merges here.
+	 */
+	public void checkBulkLoad() throws IOException {
+		int keys[] = checkKeys(200000, 50000, CHECK_SEED);
+		Range range = new Range(5000, 30000);
+		File input = File.createTempFile("acetree-test", ".keys");
+		File output = File.createTempFile("acetree-test", ".ace");
+		input.deleteOnExit();
+		output.deleteOnExit();
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(input)));
+			try {
+				for( int key : keys ) 
+					out.writeInt(key);
+			} finally {
+				out.close();
+			}
+			
+			for( int logLeafSize : new int[] { ACETree.LOG_LEAF_SIZE, 7 } ) {
+				int expected[] = drain(new ACETreeSearch(new ACETree(keys, CHECK_SEED, null, logLeafSize), range));
+				for( long memoryBytes : new long[] { 16 << 10, 64 << 20 } ) {
+					ACETreeBulkLoader.load(input, output, memoryBytes, CHECK_SEED, logLeafSize);
+					ACETree loaded = ACETreeFile.open(output);
+					try {
+						expectSame(String.format("bulk load, log leaf size %d, %d bytes", logLeafSize, memoryBytes), expected, drain(new ACETreeSearch(loaded, range)));
+					} finally {
+						loaded.close();
+					}
+				}
+			}
+		} finally {
+			input.delete();
+			output.delete();
+		}
+	}
+	
+	/*
+	 * the keys of every section are sorted, and filterAndAdd's binary searches find what a look at every key finds - 
+	 * for a query inside the sections, one holding them whole, and one ending on keys of the tree.  The shuffle of each
+	 * stab is seeded from the tree and the query, so a search comes out in the same order every time, and not in key
+	 * order - on a MutableACETree with a delta as well.
+	 */
+	public void checkSortedSections() throws IOException {
+		int keys[] = checkKeys(200000, 100000, CHECK_SEED);
+		ACETree tree = new ACETree(keys, CHECK_SEED, null);
+		int sorted[] = Arrays.copyOf(keys, keys.length);
+		Arrays.sort(sorted);
+		Range queries[] = { new Range(30000, 30500), new Range(-1, 100000), new Range(sorted[1000], sorted[150000]) };
+		
+		int unsorted = 0;
+		for( int i = 0; i < tree.numLeaves; i++ ) {
+			for( LeafSection section : tree.getLeaf(i).sections ) {
+				int elements[] = section.toArray();
+				for( int j = 1; j < elements.length; j++ ) 
+					unsorted += elements[j - 1] > elements[j] ? 1 : 0;
+			}
+		}
+		expect("sorted sections", unsorted == 0, unsorted + " keys out of order");
+		
+		for( Range query : queries ) {
+			SampleBuffer filtered = new SampleBuffer();
+			SampleBuffer scanned = new SampleBuffer();
+			for( int i = 0; i < tree.numLeaves; i++ ) {
+				for( LeafSection section : tree.getLeaf(i).sections ) {
+					ACETreeSearch.filterAndAdd(query, section, filtered);
+					for( int key : section.toArray() ) {
+						if( query.includes(key) ) 
+							scanned.accept(key);
+					}
+				}
+			}
+			expectSame(String.format("sorted sections, filter [%d, %d]", query.begin, query.end), scanned.toArray(), filtered.toArray());
+		}
+		
+		Range range = new Range(10000, 60000);
+		int first[] = stream(new ACETreeSearch(tree, range));
+		int second[] = stream(new ACETreeSearch(new ACETree(keys, CHECK_SEED, null), range));
+		expect("sorted sections, same order", Arrays.equals(first, second), first.length + " samples");
+		int ascending = 0;
+		for( int i = 1; i < first.length; i++ ) 
+			ascending += first[i - 1] <= first[i] ? 1 : 0;
+		expect("sorted sections, shuffled", ascending < first.length * 3 / 4, String.format("%d of %d in key order", ascending, first.length - 1));
+		
+		MutableACETree mutable = new MutableACETree(keys, CHECK_SEED, 10.0, 1.0);
+		MutableACETree other = new MutableACETree(keys, CHECK_SEED, 10.0, 1.0);
+		for( int i = 0; i < 20000; i++ ) {
+			mutable.insert(50000 + 2 * i);
+			other.insert(50000 + 2 * i);
+		}
+		first = stream(mutable.search(range));
+		second = stream(other.search(range));
+		expect("sorted sections, same order with a delta", Arrays.equals(first, second), first.length + " samples");
+		mutable.close();
+		other.close();
+		
+		/* the long tree's sections are sorted too - its search (and so the double one) has to shuffle the same way */
+		long longKeys[] = new long[keys.length];
+		for( int i = 0; i < keys.length; i++ ) 
+			longKeys[i] = ((long)keys[i] - 50000) << 24;
+		LongACETree longTree = new LongACETree(longKeys, null, CHECK_SEED);
+		LongRange longRange = new LongRange(-40000L << 24, 10000L << 24);
+		long firstLong[][] = stream(new LongACETreeSearch(longTree, longRange));
+		long secondLong[][] = stream(new LongACETreeSearch(longTree, longRange));
+		expect("sorted sections, long keys, same order", Arrays.equals(firstLong[0], secondLong[0]) && Arrays.equals(firstLong[1], secondLong[1]), 
+				firstLong[0].length + " samples");
+		ascending = 0;
+		int outside = 0;
+		for( int i = 0; i < firstLong[0].length; i++ ) {
+			ascending += i > 0 && firstLong[0][i - 1] <= firstLong[0][i] ? 1 : 0;
+			outside += longRange.includes(firstLong[0][i]) ? 0 : 1;
+		}
+		expect("sorted sections, long keys, shuffled", ascending < firstLong[0].length * 3 / 4 && outside == 0, 
+				String.format("%d of %d in key order, %d out of the range", ascending, firstLong[0].length - 1, outside));
+	}
+	
+	/* the samples of a LongACETreeSearch in the order they came - the keys, then the payloads */
+	static long[][] stream(LongACETreeSearch search) {
+		final long samples[][] = { new long[16], new long[16] };
+		final int count[] = new int[1];
+		LongACETreeSearch.Sink sink = new LongACETreeSearch.Sink() {
+			public void accept(long key, long payload) {
+				if( count[0] == samples[0].length ) {
+					samples[0] = Arrays.copyOf(samples[0], 2 * count[0]);
+					samples[1] = Arrays.copyOf(samples[1], 2 * count[0]);
+				}
+				samples[0][count[0]] = key;
+				samples[1][count[0]++] = payload;
+			}
+		};
+		while( !search.done() ) 
+			search.search(sink);
+		return new long[][] { Arrays.copyOf(samples[0], count[0]), Arrays.copyOf(samples[1], count[0]) };
+	}
+
+	/* the samples of a DoubleACETreeSearch in the order they came - the bits of the keys, then the payloads */
+	static long[][] stream(DoubleACETreeSearch search) {
+		final long samples[][] = { new long[16], new long[16] };
+		final int count[] = new int[1];
+		DoubleACETreeSearch.Sink sink = new DoubleACETreeSearch.Sink() {
+			public void accept(double key, long payload) {
+				if( count[0] == samples[0].length ) {
+					samples[0] = Arrays.copyOf(samples[0], 2 * count[0]);
+					samples[1] = Arrays.copyOf(samples[1], 2 * count[0]);
+				}
+				samples[0][count[0]] = Double.doubleToRawLongBits(key);
+				samples[1][count[0]++] = payload;
+			}
+		};
+		while( !search.done() )
+			search.search(sink);
+		return new long[][] { Arrays.copyOf(samples[0], count[0]), Arrays.copyOf(samples[1], count[0]) };
+	}
+	
+	/*
+	 * "entries[i]" is the key of the record with row id i: every sample is in "range", has the key of its row, and no
+	 * row comes out twice.  Returns how many rows of "entries" are in the range.
+	 */
+	static int expectRows(String check, long entries[], LongRange range, long samples[][]) {
+		boolean seen[] = new boolean[entries.length];
+		int bad = 0;
+		for( int i = 0; i < samples[0].length; i++ ) {
+			long row = samples[1][i];
+			if( row < 0 || row >= entries.length || seen[(int)row] || entries[(int)row] != samples[0][i] || !range.includes(samples[0][i]) )
+				bad++;
+			else
+				seen[(int)row] = true;
+		}
+		int inRange = 0;
+		for( long entry : entries ) {
+			if( range.includes(entry) )
+				inRange++;
+		}
+		expect(check, bad == 0 && samples[0].length <= inRange,
+				String.format("%d samples of %d rows in range, %d wrong or repeated", samples[0].length, inRange, bad));
+		return inRange;
+	}
+	
+	/*
+	 * long and double keys.  The samples of a LongACETree are rows of its entries in the query range, each with its own
+	 * payload - row ids, or payloads given with the entries, whatever the order the build sorted them into - and a
+	 * range that falls in one leaf's section gives all its rows.  The keys go all over long, from MIN_VALUE to
+	 * MAX_VALUE, with duplicates.
+	 *
+	 * DoubleACETree.encode() sorts the same way the doubles do, with -0.0 and 0.0 the same key, and decode() undoes it;
+	 * NaN is turned away.  A DoubleACETreeSearch gives the samples of the LongACETreeSearch over the encoded keys, decoded.
+	 */
+	public void checkLongKeys() {
+		SplittableRandom random = new SplittableRandom(CHECK_SEED);
+		int n = 100000;
+		long entries[] = new long[n];
+		for( int i = 0; i < n; i++ )
+			entries[i] = i % 10 == 0 ? entries[random.nextInt(Math.max(i, 1))] : random.nextLong();
+		entries[1] = Long.MIN_VALUE;
+		entries[2] = Long.MAX_VALUE;
+		entries[3] = -1;
+		entries[4] = 0;
+		
+		LongACETree tree = new LongACETree(entries, null, CHECK_SEED);
+		LongRange ranges[] = { new LongRange(Long.MIN_VALUE, Long.MAX_VALUE), new LongRange(-1L << 62, 1L << 60),
+				new LongRange(Long.MIN_VALUE, -1), new LongRange(0, 0) };
+		for( LongRange range : ranges ) {
+			String check = String.format("long keys, [%d, %d]", range.begin, range.end);
+			expectRows(check, entries, range, stream(new LongACETreeSearch(tree, range)));
+		}
+		
+		/* a key that occurs many times: a range of that one key falls in a single section at the bottom */
+		long duplicated = entries[random.nextInt(n)];
+		for( int i = 0; i < 50; i++ )
+			entries[random.nextInt(n)] = duplicated;
+		tree = new LongACETree(entries, null, CHECK_SEED);
+		LongRange one = new LongRange(duplicated, duplicated);
+		long oneSamples[][] = stream(new LongACETreeSearch(tree, one));
+		int rows = expectRows("long keys, one key", entries, one, oneSamples);
+		expect("long keys, one key", oneSamples[0].length == rows, String.format("%d of %d rows", oneSamples[0].length, rows));
+		
+		/* payloads of their own - row i carries ~i * 3, which the build has to keep with its key */
+		long payloads[] = new long[n];
+		for( int i = 0; i < n; i++ )
+			payloads[i] = ~(3L * i);
+		LongACETree withPayloads = new LongACETree(entries, payloads, CHECK_SEED);
+		long samples[][] = stream(new LongACETreeSearch(withPayloads, ranges[1]));
+		for( int i = 0; i < samples[1].length; i++ )
+			samples[1][i] = ~samples[1][i] / 3;
+		expectRows("long keys, payloads", entries, ranges[1], samples);
+		
+		/* the edges of double, in order - encode keeps the order and decode undoes it */
+		double edges[] = { Double.NEGATIVE_INFINITY, -Double.MAX_VALUE, -1e300, -1.5, -Double.MIN_NORMAL, -Double.MIN_VALUE, -0.0, 0.0,
+				Double.MIN_VALUE, Double.MIN_NORMAL, 1.5, 1e300, Double.MAX_VALUE, Double.POSITIVE_INFINITY };
+		int misordered = 0;
+		for( int i = 0; i < edges.length; i++ ) {
+			if( DoubleACETree.decode(DoubleACETree.encode(edges[i])) != edges[i] )
+				misordered++;
+			if( i > 0 && Long.compare(DoubleACETree.encode(edges[i-1]), DoubleACETree.encode(edges[i])) != Double.compare(edges[i-1] + 0.0, edges[i] + 0.0) )
+				misordered++;
+		}
+		expect("double keys, encode", misordered == 0 && DoubleACETree.encode(-0.0) == DoubleACETree.encode(0.0)
+				&& Double.doubleToRawLongBits(DoubleACETree.decode(DoubleACETree.encode(-0.0))) == 0L,
+				String.format("%d of %d edges out of order", misordered, edges.length));
+		
+		boolean threw = false;
+		try {
+			new DoubleACETree(new double[] { 1, Double.NaN, 2 }, null, CHECK_SEED);
+		} catch(IllegalArgumentException e) {
+			threw = true;
+		}
+		expect("double keys, NaN", threw, "a NaN entry throws");
+		
+		/* the double search is the long search over the encoded keys */
+		double doubles[] = new double[n];
+		long encoded[] = new long[n];
+		for( int i = 0; i < n; i++ ) {
+			doubles[i] = i < edges.length ? edges[i] : (random.nextDouble() - 0.5) * Math.scalb(1.0, random.nextInt(-60, 60));
+			encoded[i] = DoubleACETree.encode(doubles[i]);
+		}
+		DoubleACETree doubleTree = new DoubleACETree(doubles, null, CHECK_SEED);
+		LongACETree encodedTree = new LongACETree(encoded, null, CHECK_SEED);
+		DoubleRange doubleRanges[] = { new DoubleRange(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY), new DoubleRange(-1e-3, 0.0),
+				new DoubleRange(-0.0, 1e6) };
+		for( DoubleRange range : doubleRanges ) {
+			String check = String.format("double keys, [%g, %g]", range.begin, range.end);
+			long doubleSamples[][] = stream(new DoubleACETreeSearch(doubleTree, range));
+			long expected[][] = stream(new LongACETreeSearch(encodedTree, range.toKeyRange()));
+			int differ = doubleSamples[0].length == expected[0].length ? 0 : 1;
+			for( int i = 0; i < doubleSamples[0].length && differ == 0; i++ ) {
+				double key = Double.longBitsToDouble(doubleSamples[0][i]);
+				long row = doubleSamples[1][i];
+				if( DoubleACETree.encode(key) != expected[0][i] || row != expected[1][i] || !range.includes(key) || key != doubles[(int)row] )
+					differ++;
+			}
+			expect(check, differ == 0, String.format("%d samples, the long search gave %d", doubleSamples[0].length, expected[0].length));
+		}
+	}
+	
+	/*
+	 * a tree written with its keys bit packed reads back as the same leaves, so the same samples - for small keys,
+	 * where the packing pays, and for keys over all of int, where a section can need all 32 bits.  The packed file is
+	 * the smaller one.
+	 */
+	public void checkPacked() throws IOException {
+		SplittableRandom random = new SplittableRandom(CHECK_SEED);
+		int wide[] = new int[100000];
+		for( int i = 0; i < wide.length; i++ ) 
+			wide[i] = random.nextInt();
+		int keySets[][] = { checkKeys(200000, 100000, CHECK_SEED), wide };
+		Range ranges[] = { new Range(10000, 60000), new Range(Integer.MIN_VALUE / 2, Integer.MAX_VALUE / 4) };
+		
+		File plain = File.createTempFile("acetree-test", ".ace");
+		File packed = File.createTempFile("acetree-test", ".ace");
+		plain.deleteOnExit();
+		packed.deleteOnExit();
+		try {
+			for( int k = 0; k < keySets.length; k++ ) {
+				String check = String.format("packed, %d keys up to %d", keySets[k].length, k == 0 ? 100000 : Integer.MAX_VALUE);
+				ACETree tree = new ACETree(keySets[k], CHECK_SEED, null);
+				ACETreeFile.write(tree, plain, false);
+				ACETreeFile.write(tree, packed, true);
+				if( k == 0 ) 
+					expect(check, packed.length() < plain.length(), String.format("%d bytes, %d unpacked", packed.length(), plain.length()));
+				
+				ACETree reopened = ACETreeFile.open(packed);
+				try {
+					int differ = 0;
+					for( int i = 0; i < tree.numLeaves; i++ ) {
+						ArrayList<LeafSection> expected = tree.getLeaf(i).sections, actual = reopened.getLeaf(i).sections;
+						for( int j = 0; j < expected.size(); j++ ) 
+							differ += Arrays.equals(expected.get(j).toArray(), actual.get(j).toArray()) ? 0 : 1;
+					}
+					expect(check, differ == 0, String.format("%d of %d leaves differ", differ, tree.numLeaves));
+					expectSame(check, drain(new ACETreeSearch(tree, ranges[k])), drain(new ACETreeSearch(reopened, ranges[k])));
+				} finally {
+					reopened.close();
+				}
+			}
+		} finally {
+			plain.delete();
+			packed.delete();
+		}
+	}
+	
+	/*
+	 * a tree copied off the heap gives the samples of the tree it was copied from, with the same deletes made on both,
+	 * and holds 4 bytes a key outside the heap.  Once closed, its leaves cannot be read.
+	 */
+	public void checkOffHeap() throws IOException {
+		int keys[] = checkKeys(200000, 100000, CHECK_SEED);
+		Range range = new Range(10000, 60000);
+		ACETree tree = new ACETree(keys, CHECK_SEED, null);
+		ACETree offHeap = OffHeapLeafStore.copyOf(tree);
+		try {
+			long bytes = ((OffHeapLeafStore)offHeap.leafStore).getBytes();
+			expect("off heap", bytes >= 4L * keys.length, String.format("%d bytes for %d keys", bytes, keys.length));
+			expectSame("off heap", drain(new ACETreeSearch(tree, range)), drain(new ACETreeSearch(offHeap, range)));
+			
+			deleteAll(tree, new Range(20000, 29999), new int[0]);
+			deleteAll(offHeap, new Range(20000, 29999), new int[0]);
+			expectSame("off heap, deletes", drain(new ACETreeSearch(tree, range)), drain(new ACETreeSearch(offHeap, range)));
+		} finally {
+			offHeap.close();
+		}
+		
+		boolean threw = false;
+		try {
+			offHeap.getLeaf(0);
+		} catch(IllegalStateException e) {
+			threw = true;
+		}
+		expect("off heap, closed", threw, "reading a leaf throws");
+		
+		/* closed under a pinned leaf: the keys stay until it is unpinned */
+		ACETree pinned = OffHeapLeafStore.copyOf(tree);
+		OffHeapLeafStore store = (OffHeapLeafStore)pinned.leafStore;
+		LeafNode leaf = pinned.pinLeaf(0);
+		pinned.close();
+		int held[] = leaf.sections.get(0).toArray();
+		expect("off heap, closed while pinned", store.getBytes() > 0 && Arrays.equals(tree.getLeaf(0).sections.get(0).toArray(), held),
+				String.format("%d bytes held for %d pinned leaf", store.getBytes(), store.getPinnedLeaves()));
+		pinned.unpinLeaf(leaf);
+		expect("off heap, unpinned", store.getBytes() == 0, String.format("%d bytes held after the last unpin", store.getBytes()));
+	}
+	
+	/* the samples of a forest search, in the order they came */
+	static int[] stream(ACETreeForest.Search search) {
+		SampleBuffer samples = new SampleBuffer();
+		while( !search.done() ) 
+			search.search(samples);
+		search.close();
+		return samples.toArray();
+	}
+	
+	/*
+	 * a forest gives the samples of its shards' trees put together: a tree over the keys of each shard, with the seed
+	 * build() gave it, searched on its own.  The same forest with every shard behind a loopback server gives them in
+	 * the same order.  And a tenth of the way in, each shard has given about its share of the whole stream.
+	 */
+	public void checkForest() throws IOException {
+		int keys[] = checkKeys(200000, 100000, CHECK_SEED);
+		int sorted[] = Arrays.copyOf(keys, keys.length);
+		Arrays.sort(sorted);
+		Range range = new Range(10000, 60000);
+		ACETreeForest forest = ACETreeForest.build(keys, 4, CHECK_SEED);
+		int numShards = forest.getNumShards();
+		
+		SampleBuffer expected = new SampleBuffer();
+		int splits[] = new int[numShards - 1];
+		for( int i = 0; i < numShards; i++ ) {
+			Range shardRange = forest.getShardRange(i);
+			if( i > 0 ) 
+				splits[i - 1] = shardRange.begin;
+			SampleBuffer shardKeys = new SampleBuffer();
+			for( int key : sorted ) {
+				if( shardRange.includes(key) ) 
+					shardKeys.accept(key);
+			}
+			for( int sample : drain(new ACETreeSearch(new ACETree(shardKeys.toArray(), CHECK_SEED + i, null), range)) ) 
+				expected.accept(sample);
+		}
+		int local[] = stream(forest.search(range));
+		int actual[] = Arrays.copyOf(local, local.length);
+		Arrays.sort(actual);
+		int expectedSamples[] = expected.toArray();
+		Arrays.sort(expectedSamples);
+		expectSame(String.format("forest, %d shards", numShards), expectedSamples, actual);
+		
+		int prefix = local.length / 10;
+		double worst = 0;
+		for( int i = 0; i < numShards; i++ ) {
+			Range shardRange = forest.getShardRange(i);
+			int count = 0, total = 0;
+			for( int j = 0; j < local.length; j++ ) {
+				if( shardRange.includes(local[j]) ) {
+					count += j < prefix ? 1 : 0;
+					total++;
+				}
+			}
+			worst = Math.max(worst, Math.abs((double)count / prefix - (double)total / local.length));
+		}
+		expect("forest, shares of a prefix", worst < 0.03, String.format("%d samples, off by %.4f at most", prefix, worst));
+		
+		ACETreeShardServer servers[] = new ACETreeShardServer[numShards];
+		ACETreeShard remotes[] = new ACETreeShard[numShards];
+		try {
+			for( int i = 0; i < numShards; i++ ) {
+				servers[i] = new ACETreeShardServer(forest.getShard(i));
+				remotes[i] = new RemoteACETreeShard("localhost", servers[i].getPort());
+			}
+			expect("forest, remote shards", Arrays.equals(local, stream(new ACETreeForest(remotes, splits, CHECK_SEED).search(range))), 
+					local.length + " samples in the same order");
+		} finally {
+			for( int i = 0; i < numShards; i++ ) {
+				if( remotes[i] != null ) 
+					remotes[i].close();
+				if( servers[i] != null ) 
+					servers[i].close();
+			}
+			forest.close();
+		}
+	}
+	
+	/*
+	 * a tree file reopens to the tree that was written - seed and deletes and all, so the same samples in the same order.
+	 * Writing a file again leaves a tree already opened from it reading the old one.  A page
+	 * with a byte changed fails verify() with an IOException naming it and fails the search that stabs it with an
+	 * IllegalStateException, rather than giving wrong samples; a header with a byte changed fails open().
+	 */
+	public void checkRestore() throws IOException {
+		int keys[] = checkKeys(200000, 100000, CHECK_SEED);
+		Range range = new Range(10000, 60000);
+		ACETree tree = new ACETree(keys, CHECK_SEED, null);
+		File f = File.createTempFile("acetree-test", ".ace");
+		f.deleteOnExit();
+		try {
+			ACETreeFile.write(tree, f);
+			ACETreeFile.verify(f);
+			ACETree reopened = ACETreeFile.open(f);
+			try {
+				int written[] = stream(new ACETreeSearch(tree, range));
+				expect("restore, same order", Arrays.equals(written, stream(new ACETreeSearch(reopened, range))), 
+						String.format("seed %d, %d leaves", reopened.seed, reopened.numLeaves));
+				
+				/* written again, with deletes, over the file "reopened" still has mapped - it goes on reading the old one */
+				deleteAll(tree, new Range(20000, 29999), new int[0]);
+				ACETreeFile.write(tree, f);
+				expect("restore, rewritten under a reader", Arrays.equals(written, stream(new ACETreeSearch(reopened, range))), 
+						String.format("%d samples", written.length));
+			} finally {
+				reopened.close();
+			}
+			
+			/* the deletes come back with the tree - and a tree opened from the file can be written over its own file */
+			for( int pass = 0; pass < 2; pass++ ) {
+				reopened = ACETreeFile.open(f);
+				try {
+					String check = pass == 0 ? "restore, deletes" : "restore, written over itself";
+					expect(check, reopened.getDeadCount() == tree.getDeadCount() && reopened.maxDeadRatio() == tree.maxDeadRatio(), 
+							String.format("%d deleted, %d written", reopened.getDeadCount(), tree.getDeadCount()));
+					expect(check, Arrays.equals(stream(new ACETreeSearch(tree, range)), stream(new ACETreeSearch(reopened, range))), 
+							"same samples in the same order");
+					if( pass == 0 ) 
+						ACETreeFile.write(reopened, f);
+				} finally {
+					reopened.close();
+				}
+			}
+			
+			/* the page size and leaf region offset are at bytes 20 and 24 of the header */
+			int bad = tree.numLeaves / 2;
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				raf.seek(20);
+				int pageSize = raf.readInt();
+				long leafOffset = raf.readLong();
+				flipByte(raf, leafOffset + (long)bad * pageSize + pageSize / 4);
+			} finally {
+				raf.close();
+			}
+			
+			String failure = null;
+			try {
+				ACETreeFile.verify(f);
+			} catch(IOException e) {
+				failure = e.getMessage();
+			}
+			expect("restore, damaged page", failure != null && failure.contains("page " + bad), "verify: " + failure);
+			
+			failure = null;
+			reopened = ACETreeFile.open(f);
+			try {
+				drain(new ACETreeSearch(reopened, new Range(-1, 100000)));
+			} catch(IllegalStateException e) {
+				failure = e.getMessage();
+			} finally {
+				reopened.close();
+			}
+			expect("restore, damaged page", failure != null && failure.contains("page " + bad), "search: " + failure);
+			
+			ACETreeFile.write(tree, f);
+			raf = new RandomAccessFile(f, "rw");
+			try {
+				flipByte(raf, ACETreeFile.HEADER_FIXED_SIZE + 8);
+			} finally {
+				raf.close();
+			}
+			failure = null;
+			try {
+				ACETreeFile.open(f).close();
+			} catch(IOException e) {
+				failure = e.getMessage();
+			}
+			expect("restore, damaged header", failure != null, "open: " + failure);
+		} finally {
+			f.delete();
+		}
+	}
+	
+	/*
+	 * a cache a quarter the size of the tree, with four threads searching through it at once: each search gives the
+	 * samples of the in-memory tree in the same order, whatever the other threads evicted under it.
+	 */
+	public void checkLeafCache() throws IOException, InterruptedException {
+		int keys[] = checkKeys(200000, 100000, CHECK_SEED);
+		ACETree tree = new ACETree(keys, CHECK_SEED, null);
+		final Range queries[] = { new Range(0, 99999), new Range(10000, 60000), new Range(40000, 45000), new Range(70000, 99999) };
+		final int expected[][] = new int[queries.length][];
+		for( int q = 0; q < queries.length; q++ ) 
+			expected[q] = stream(new ACETreeSearch(tree, queries[q]));
+		
+		File f = File.createTempFile("acetree-test", ".ace");
+		f.deleteOnExit();
+		try {
+			ACETreeFile.write(tree, f);
+			final ACETree cached = LeafCache.wrap(ACETreeFile.open(f), keys.length);
+			final AtomicInteger searches = new AtomicInteger();
+			final AtomicInteger differ = new AtomicInteger();
+			Thread threads[] = new Thread[4];
+			try {
+				for( int t = 0; t < threads.length; t++ ) {
+					final int first = t;
+					threads[t] = new Thread(new Runnable() {
+						public void run() {
+							for( int i = 0; i < 3 * queries.length; i++ ) {
+								int q = (first + i) % queries.length;
+								if( !Arrays.equals(expected[q], stream(new ACETreeSearch(cached, queries[q]))) ) 
+									differ.incrementAndGet();
+								searches.incrementAndGet();
+							}
+						}
+					});
+					threads[t].start();
+				}
+				for( Thread thread : threads ) 
+					thread.join();
+				
+				LeafCache cache = (LeafCache)cached.leafStore;
+				expect("leaf cache, evicting", cache.getEvictions() > 0, cache.toString());
+				expect("leaf cache, " + threads.length + " threads", searches.get() == threads.length * 3 * queries.length && differ.get() == 0, 
+						String.format("%d of %d searches differ", differ.get(), searches.get()));
+			} finally {
+				cached.close();
+			}
+		} finally {
+			f.delete();
+		}
+	}
+	
+	/*
+	 * a batch of overlapping queries: each gives the samples of its own search, in the same order, and every leaf any
+	 * of them stabs is read once.  With a small bound on the leaves it keeps, the samples stay the same and some leaves
+	 * are read again.
+	 */
+	public void checkBatch() {
+		int keys[] = checkKeys(200000, 100000, CHECK_SEED);
+		ACETree tree = new ACETree(keys, CHECK_SEED, null);
+		SplittableRandom random = new SplittableRandom(CHECK_SEED);
+		List<Range> queries = new ArrayList<Range>();
+		for( int q = 0; q < 40; q++ ) {
+			int begin = random.nextInt(90000);
+			queries.add(new Range(begin, begin + 2000 + random.nextInt(8000)));
+		}
+		
+		int expected[][] = new int[queries.size()][];
+		boolean stabbed[] = new boolean[tree.numLeaves];
+		int distinct = 0;
+		for( int q = 0; q < queries.size(); q++ ) {
+			expected[q] = stream(new ACETreeSearch(tree, queries.get(q)));
+			ACETreeSearch search = new ACETreeSearch(tree, queries.get(q));
+			while( !search.done() ) {
+				int leafIndex = search.nextStab();
+				if( leafIndex != -1 && !stabbed[leafIndex] ) {
+					stabbed[leafIndex] = true;
+					distinct++;
+				}
+			}
+		}
+		
+		for( int maxCachedLeaves : new int[] { Integer.MAX_VALUE, 8 } ) {
+			ACETreeBatchSearch batch = new ACETreeBatchSearch(tree, queries, maxCachedLeaves);
+			SampleBuffer actual[] = new SampleBuffer[queries.size()];
+			for( int q = 0; q < queries.size(); q++ )
+				actual[q] = new SampleBuffer();
+			while( !batch.done() ) {
+				ArrayList<ArrayList<Integer>> results = batch.search();
+				for( int q = 0; q < queries.size(); q++ ) {
+					for( int value : results.get(q) )
+						actual[q].accept(value);
+				}
+			}
+		
+			String check = maxCachedLeaves == Integer.MAX_VALUE ? "batch" : "batch, " + maxCachedLeaves + " leaves kept";
+			int differ = 0;
+			for( int q = 0; q < queries.size(); q++ ) {
+				if( !Arrays.equals(expected[q], actual[q].toArray()) )
+					differ++;
+			}
+			expect(check, differ == 0, String.format("%d of %d searches differ", differ, queries.size()));
+			expect(check, batch.getCachedLeaves() == 0, batch.getCachedLeaves() + " leaves still kept");
+			boolean reads = maxCachedLeaves == Integer.MAX_VALUE ? batch.getLeavesRead() == distinct : batch.getLeavesRead() > distinct;
+			expect(check, reads, String.format("%d leaves read for %d distinct, %d stabs", batch.getLeavesRead(), distinct, batch.getStabs()));
+		}
+	}
+
+	private static void flipByte(RandomAccessFile raf, long position) throws IOException {
+		raf.seek(position);
+		int b = raf.read();
+		raf.seek(position);
+		raf.write(b ^ 0xff);
+	}
+	
+	private static void deleteAll(ACETree tree, Range range, int singles[]) {
+		tree.delete(range);
+		for( int key : singles ) {
+			if( !tree.delete(key) ) 
+				throw new IllegalStateException("no record with key " + key);
+		}
+	}
+	
+	private static boolean selected(String args[], String check) {
+		if( args.length == 0 ) 
+			return true;
+		for( String arg : args ) {
+			if( arg.equals(check) ) 
+				return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * ACETreeTest [check ...]		(the checks above, then the distribution test - all of them by default)
+	 */
+	public static void main(String args[]) throws IOException, InterruptedException {
 		ACETreeTest aceTreeTest = new ACETreeTest();
+		if( selected(args, "spill") ) 
+			aceTreeTest.checkSpill();
+		if( selected(args, "streams") ) 
+			aceTreeTest.checkStreams();
+		if( selected(args, "sink") ) 
+			aceTreeTest.checkSink();
+		if( selected(args, "metrics") ) 
+			aceTreeTest.checkMetrics();
+		if( selected(args, "deletes") ) 
+			aceTreeTest.checkDeletes();
+		if( selected(args, "inserts") ) 
+			aceTreeTest.checkInserts();
+		if( selected(args, "compaction") ) 
+			aceTreeTest.checkCompaction();
+		if( selected(args, "bulkload") ) 
+			aceTreeTest.checkBulkLoad();
+		if( selected(args, "long") ) 
+			aceTreeTest.checkLongKeys();
+		if( selected(args, "sorted") ) 
+			aceTreeTest.checkSortedSections();
+		if( selected(args, "packed") ) 
+			aceTreeTest.checkPacked();
+		if( selected(args, "offheap") ) 
+			aceTreeTest.checkOffHeap();
+		if( selected(args, "forest") ) 
+			aceTreeTest.checkForest();
+		if( selected(args, "restore") ) 
+			aceTreeTest.checkRestore();
+		if( selected(args, "cache") ) 
+			aceTreeTest.checkLeafCache();
+		if( selected(args, "batch") ) 
+			aceTreeTest.checkBatch();
+		
 		//aceTreeTest.doTest( RandomSample );
 		//aceTreeTest.doTest( ACETreeSample );
-		aceTreeTest.doTest2();
+		if( selected(args, "distribution") ) 
+			aceTreeTest.doTest2();
 	}
 }
@@ -0,0 +1,54 @@
+/*
+ * ACE Tree over double keys, each record carrying a long payload.
+ *
+ * The keys are stored as longs in a LongACETree: encode() maps a double to a long that sorts the same way (flip the
+ * magnitude bits of the negatives), so the build and the search only ever compare longs.  NaN has no place in that
+ * order and is rejected; -0.0 is stored as 0.0.
+ */
+
+package tools;
+
+public class DoubleACETree {
+	protected final LongACETree tree;
+
+	/*
+	 * the payload of each key is its position in "entries".
+	 */
+	public DoubleACETree(double entries[]) {
+		this(entries, null, System.nanoTime());
+	}
+
+	public DoubleACETree(double entries[], long payloads[]) {
+		this(entries, payloads, System.nanoTime());
+	}
+
+	public DoubleACETree(double entries[], long payloads[], long seed) {
+		long keys[] = new long[entries.length];
+		for( int i = 0; i < entries.length; i++ ) {
+			if( Double.isNaN(entries[i]) )
+				throw new IllegalArgumentException(String.format("entry %d is NaN", i));
+			keys[i] = encode(entries[i]);
+		}
+		this.tree = new LongACETree(keys, payloads, seed);
+	}
+
+	public int size() {
+		return tree.size();
+	}
+
+	public int getHeight() {
+		return tree.getHeight();
+	}
+
+	/* order preserving: a < b exactly when encode(a) < encode(b) */
+	static long encode(double d) {
+		if( d == 0.0 )
+			d = 0.0;
+		long bits = Double.doubleToRawLongBits(d);
+		return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+	}
+
+	static double decode(long key) {
+		return Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+	}
+}
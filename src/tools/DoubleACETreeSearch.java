@@ -0,0 +1,44 @@
+package tools;
+
+/*
+ * One range sampling session over a DoubleACETree.
+ *
+ * This is a LongACETreeSearch over the encoded keys - the samples are decoded on their way to the sink.  Not thread
+ * safe, one per thread.
+ */
+public class DoubleACETreeSearch {
+	/* receives the samples */
+	public interface Sink {
+		void accept(double key, long payload);
+	}
+
+	private final LongACETreeSearch search;
+
+	/* the sink of the current search(Sink) call, and the adapter that decodes into it */
+	private Sink sink;
+	private final LongACETreeSearch.Sink decoder = new LongACETreeSearch.Sink() {
+		public void accept(long key, long payload) {
+			sink.accept(DoubleACETree.decode(key), payload);
+		}
+	};
+
+	public DoubleACETreeSearch(DoubleACETree tree, DoubleRange queryRange) {
+		this.search = new LongACETreeSearch(tree.tree, queryRange.toKeyRange());
+	}
+
+	/*
+	 * One stab - pushes its samples into "sink" and returns how many there were.  Call repeatedly until done().
+	 */
+	public int search(Sink sink) {
+		this.sink = sink;
+		try {
+			return search.search(decoder);
+		} finally {
+			this.sink = null;
+		}
+	}
+
+	public boolean done() {
+		return search.done();
+	}
+}
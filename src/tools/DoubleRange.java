@@ -0,0 +1,34 @@
+package tools;
+/*
+ * Range over double keys - inclusive on both ends, like Range.
+ *
+ * The search does not compare doubles: toKeyRange() maps the ends to the long keys DoubleACETree stores, which sort
+ * the same way the doubles do.
+ */
+
+public class DoubleRange {
+	protected double begin;
+	protected double end;
+	public DoubleRange(double begin, double end) {
+		if( Double.isNaN(begin) || Double.isNaN(end) )
+			throw new IllegalArgumentException("NaN is not a valid range end");
+		this.begin = begin;
+		this.end = end;
+	}
+	
+	public boolean overlaps(DoubleRange that) {
+		return that.begin <= this.end && that.end >= this.begin;
+	}
+	
+	public boolean encapsulates(DoubleRange that) {
+		return this.begin <= that.begin && this.end >= that.end;
+	}
+	
+	public boolean includes(double d) {
+		return d >= this.begin && d <= this.end;
+	}
+	
+	LongRange toKeyRange() {
+		return new LongRange(DoubleACETree.encode(begin), DoubleACETree.encode(end));
+	}
+}
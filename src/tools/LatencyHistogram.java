@@ -0,0 +1,88 @@
+package tools;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Latencies in nanoseconds, counted in power of two buckets - bucket i holds the times in [2^(i-1), 2^i), bucket 0
+ * holds 0.  That is coarse (a percentile is only right to within a factor of two) but recording is two atomic adds
+ * and no allocation, and any number of threads can record at once.
+ *
+ * The getters are read by JMX (see SearchMetricsMXBean) - they add up the buckets as they are at the time of the call.
+ */
+public class LatencyHistogram {
+	private static final int NUM_BUCKETS = 64;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final LongAdder totalNanos = new LongAdder();
+
+	void record(long nanos) {
+		if( nanos < 0 )
+			nanos = 0;
+		counts.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+		totalNanos.add(nanos);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for( int i = 0; i < NUM_BUCKETS; i++ )
+			count += counts.get(i);
+		return count;
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.sum();
+	}
+
+	public double getMeanNanos() {
+		long count = getCount();
+		return count == 0 ? 0 : (double)getTotalNanos() / count;
+	}
+
+	public long getMedianNanos() {
+		return percentile(0.5);
+	}
+
+	public long getP99Nanos() {
+		return percentile(0.99);
+	}
+
+	/* the upper end of the highest bucket with anything in it */
+	public long getMaxNanos() {
+		return percentile(1);
+	}
+
+	/*
+	 * the upper end of the bucket that holds the "fraction" point of the recorded times.
+	 */
+	public long percentile(double fraction) {
+		long snapshot[] = new long[NUM_BUCKETS];
+		long count = 0;
+		for( int i = 0; i < NUM_BUCKETS; i++ ) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if( count == 0 )
+			return 0;
+
+		long rank = Math.max(1, (long)Math.ceil(fraction * count));
+		long seen = 0;
+		for( int i = 0; i < NUM_BUCKETS; i++ ) {
+			seen += snapshot[i];
+			if( seen >= rank )
+				return i == 0 ? 0 : i == 63 ? Long.MAX_VALUE : (1L << i) - 1;
+		}
+		return Long.MAX_VALUE;
+	}
+
+	void reset() {
+		for( int i = 0; i < NUM_BUCKETS; i++ )
+			counts.set(i, 0);
+		totalNanos.reset();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count %d mean %.0fns p50 %dns p99 %dns max %dns", getCount(), getMeanNanos(), getMedianNanos(), getP99Nanos(), getMaxNanos());
+	}
+}
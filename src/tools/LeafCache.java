@@ -0,0 +1,259 @@
+package tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import tools.ACETree.LeafNode;
+import tools.ACETree.LeafSection;
+
+/*
+ * Keeps the hot leaves of a tree on disk (ACETreeFile) in memory, up to a budget of bytes - so queries that keep coming
+ * back to the same part of the key space read their leaves once, and do not decode them again.
+ *
+ * wrap() puts a cache in front of the store of a tree and gives back a tree that reads through it.  The cache takes
+ * the store over: use and close the tree it returns from then on, not the one passed in.
+ *
+ * The leaves are held in frames, one per cached leaf, looked up by leaf index.  A frame takes a slot of a ring that
+ * the CLOCK hand goes round: a frame that was used since the hand last passed gets its reference bit cleared and is
+ * passed over, one that was not is evicted - unless it is pinned.  A stab pins its leaf for the length of combineTuples
+ * (see ACETreeSearch), so a leaf in use is never evicted under a search.  If everything the hand comes to is pinned or
+ * in use, a new leaf is handed out without being cached rather than waiting.
+ *
+ * Nothing takes a lock.  The lookup is an atomic array, pins and eviction meet on a compare and set of the pin count
+ * (a frame is evicted by moving it from 0 pins to EVICTED, which no pin can then undo), and the slots are taken with
+ * compare and set.  Two threads that miss on the same leaf both read it, and only one copy is kept.
+ *
+ * A frame is charged the bytes of its keys plus an overhead per section (leafBytes).  The ring has a slot for twice as
+ * many leaves of average size as the budget holds, so it is the budget that limits the cache unless the leaves vary a
+ * lot in size.
+ *
+ * Sizing: a search that runs to the end stabs every leaf of the tree, in an order fixed by its query.  Repeating such
+ * searches only hits if the budget holds about the whole tree - a smaller one sees the same leaves come round again
+ * after they were evicted.  Searches that stop early (a stream with a limit, a dashboard that wants a few thousand
+ * samples) touch the first leaves of that order over and over, and those a small budget keeps.
+ *
+ * Deletes made after a leaf was cached still show: the tombstones live on the tree's skeleton, and a hit picks up
+ * the current ones.
+ */
+public class LeafCache implements LeafStore {
+	private static final int EVICTED = -1;
+	private static final int SECTION_OVERHEAD = 48;
+	private static final int LEAF_OVERHEAD = 64;
+
+	static final class Frame {
+		final LeafNode leaf;
+		final long bytes;
+
+		/* how many stabs are using the leaf - EVICTED once it is out of the cache */
+		final AtomicInteger pins;
+
+		/* the CLOCK reference bit - set by every hit, cleared by the hand */
+		volatile boolean referenced = true;
+
+		Frame(LeafNode leaf, long bytes, int pins) {
+			this.leaf = leaf;
+			this.bytes = bytes;
+			this.pins = new AtomicInteger(pins);
+		}
+
+		boolean pin() {
+			while( true ) {
+				int pins = this.pins.get();
+				if( pins == EVICTED )
+					return false;
+				if( this.pins.compareAndSet(pins, pins + 1) )
+					return true;
+			}
+		}
+	}
+
+	private final LeafStore store;
+	private final ArrayList<LeafNode> skeleton;
+	private final long budgetBytes;
+
+	private final AtomicReferenceArray<Frame> byLeaf;
+	private final AtomicReferenceArray<Frame> slots;
+	private final AtomicInteger hand = new AtomicInteger();
+	private final AtomicLong usedBytes = new AtomicLong();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	private LeafCache(LeafStore store, ArrayList<LeafNode> skeleton, long budgetBytes, long averageLeafBytes) {
+		this.store = store;
+		this.skeleton = skeleton;
+		this.budgetBytes = budgetBytes;
+		this.byLeaf = new AtomicReferenceArray<Frame>(skeleton.size());
+		long numSlots = Math.min(skeleton.size(), 2 * budgetBytes / Math.max(averageLeafBytes, 1) + 1);
+		this.slots = new AtomicReferenceArray<Frame>((int)numSlots);
+	}
+
+	/*
+	 * a tree over the same file (or off heap store) as "tree", with up to "budgetBytes" of its leaves cached.  An in
+	 * memory tree has nothing to cache.
+	 */
+	public static ACETree wrap(ACETree tree, long budgetBytes) {
+		if( tree.leafStore == null )
+			throw new IllegalArgumentException("the tree is in memory - there is nothing to cache");
+		if( budgetBytes < 0 )
+			throw new IllegalArgumentException("negative cache budget " + budgetBytes);
+
+		long averageLeafBytes = LEAF_OVERHEAD + (long)tree.height * SECTION_OVERHEAD + 4L * tree.size() / tree.numLeaves;
+		LeafCache cache = new LeafCache(tree.leafStore, tree.leafNodes, budgetBytes, averageLeafBytes);
+		return new ACETree(tree.height, tree.logLeafSize, tree.seed, tree.root, tree.leafNodes, cache);
+	}
+
+	@Override
+	public LeafNode readLeaf(int leafIndex) {
+		return get(leafIndex, false);
+	}
+
+	@Override
+	public LeafNode pinLeaf(int leafIndex) {
+		return get(leafIndex, true);
+	}
+
+	/* a leaf that was handed out without being cached has no frame - nothing to do for it */
+	@Override
+	public void unpinLeaf(LeafNode leaf) {
+		Frame frame = byLeaf.get(leaf.leafIndex);
+		if( frame != null && frame.leaf == leaf ) {
+			int pins = frame.pins.decrementAndGet();
+			assert pins >= 0;
+		}
+	}
+
+	private LeafNode get(int leafIndex, boolean pin) {
+		Frame frame = byLeaf.get(leafIndex);
+
+		/* a frame on its way out still holds the leaf - good for a read, but it cannot be pinned */
+		if( frame != null && (!pin || frame.pin()) ) {
+			frame.referenced = true;
+			hits.increment();
+			return refresh(frame.leaf);
+		}
+
+		misses.increment();
+		LeafNode leaf = store.readLeaf(leafIndex);
+		Frame loaded = new Frame(leaf, leafBytes(leaf), pin ? 1 : 0);
+		if( loaded.bytes <= budgetBytes )
+			insert(loaded, leafIndex);
+		return leaf;
+	}
+
+	/* the tombstones of the leaf as of now - see above */
+	private LeafNode refresh(LeafNode leaf) {
+		ArrayList<LeafSection> current = skeleton.get(leaf.leafIndex).sections;
+		for( int s = 0; s < leaf.sections.size(); s++ ) {
+			LeafSection section = leaf.sections.get(s);
+			long dead[] = current.get(s).dead;
+			if( section.dead != dead )
+				section.dead = dead;
+		}
+		return leaf;
+	}
+
+	/*
+	 * publishes "frame", finds it a slot and evicts down to the budget.  If no slot comes free in two turns of the
+	 * hand, the frame is taken out again - the caller still has its leaf.
+	 */
+	private void insert(Frame frame, int leafIndex) {
+		if( !byLeaf.compareAndSet(leafIndex, null, frame) )
+			return;
+		usedBytes.addAndGet(frame.bytes);
+
+		boolean placed = false;
+		int n = slots.length();
+		for( int scanned = 0; scanned <= 2 * n && !placed; scanned++ ) {
+			int i = nextSlot();
+			Frame victim = slots.get(i);
+			if( victim == null )
+				placed = slots.compareAndSet(i, null, frame);
+			else if( evict(victim) )
+				placed = slots.compareAndSet(i, victim, frame);
+		}
+		if( !placed ) {
+			if( byLeaf.compareAndSet(leafIndex, frame, null) )
+				usedBytes.addAndGet(-frame.bytes);
+			return;
+		}
+
+		for( int scanned = 0; scanned <= 2 * n && usedBytes.get() > budgetBytes; scanned++ ) {
+			int i = nextSlot();
+			Frame victim = slots.get(i);
+			if( victim != null && victim != frame && evict(victim) )
+				slots.compareAndSet(i, victim, null);
+		}
+	}
+
+	/* one step of the hand at "victim" - true if it is now out of the cache, and its slot is the caller's to take */
+	private boolean evict(Frame victim) {
+		if( victim.pins.get() != 0 )
+			return false;
+		if( victim.referenced ) {
+			victim.referenced = false;
+			return false;
+		}
+		if( !victim.pins.compareAndSet(0, EVICTED) )
+			return false;
+
+		byLeaf.compareAndSet(victim.leaf.leafIndex, victim, null);
+		usedBytes.addAndGet(-victim.bytes);
+		evictions.increment();
+		return true;
+	}
+
+	private int nextSlot() {
+		return (hand.getAndIncrement() & Integer.MAX_VALUE) % slots.length();
+	}
+
+	/* what a cached leaf is charged - its keys, and the objects around them */
+	static long leafBytes(LeafNode leaf) {
+		long bytes = LEAF_OVERHEAD;
+		for( LeafSection section : leaf.sections )
+			bytes += SECTION_OVERHEAD + 4L * section.size();
+		return bytes;
+	}
+
+	public long getHits() { return hits.sum(); }
+	public long getMisses() { return misses.sum(); }
+	public long getEvictions() { return evictions.sum(); }
+
+	/* bytes of leaves cached now, against getBudgetBytes() */
+	public long getBytes() { return usedBytes.get(); }
+	public long getBudgetBytes() { return budgetBytes; }
+
+	/* the share of reads served from the cache */
+	public double getHitRatio() {
+		long hits = getHits(), total = hits + getMisses();
+		return total == 0 ? 0 : (double)hits / total;
+	}
+
+	public void resetCounters() {
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+	}
+
+	/* drops the cached leaves and closes the store underneath */
+	@Override
+	public void close() throws IOException {
+		for( int i = 0; i < slots.length(); i++ )
+			slots.set(i, null);
+		for( int i = 0; i < byLeaf.length(); i++ )
+			byLeaf.set(i, null);
+		usedBytes.set(0);
+		store.close();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("leaf cache: %d of %d bytes, %d hits %d misses (%.1f%%), %d evictions", getBytes(), budgetBytes,
+				getHits(), getMisses(), 100 * getHitRatio(), getEvictions());
+	}
+}
@@ -0,0 +1,29 @@
+package tools;
+
+import java.io.IOException;
+
+import tools.ACETree.LeafNode;
+
+/*
+ * Where the data of the leaves lives when it is not on the heap.
+ * 
+ * The tree keeps the internal nodes and the section ranges of each leaf in memory.  The search asks the store for one 
+ * leaf per stab.
+ */
+interface LeafStore {
+	/* returns the leaf with all its sections filled in */
+	public LeafNode readLeaf(int leafIndex);
+	
+	/* 
+	 * readLeaf() for a stab - the leaf stays put until unpinLeaf().  Only a store that keeps leaves around (LeafCache)
+	 * has anything to hold; it does not evict a pinned leaf.
+	 */
+	public default LeafNode pinLeaf(int leafIndex) {
+		return readLeaf(leafIndex);
+	}
+	
+	public default void unpinLeaf(LeafNode leaf) {
+	}
+	
+	public void close() throws IOException;
+}
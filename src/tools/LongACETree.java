@@ -0,0 +1,262 @@
+/*
+ * ACE Tree over long keys, each record carrying a long payload - a row id, a file offset ...
+ *
+ * It is the same tree as ACETree (median splits, records spread over random sections and random leaves), specialized
+ * for long so that neither the build nor the search boxes a key or goes through Comparable.  DoubleACETree maps its
+ * keys onto this one.
+ *
+ * There are no node objects - the tree is built straight into the flat layout the int tree searches on:
+ *
+ * - the skeleton is in heap order: root = 1, children of i = 2i and 2i+1, leaf j = numLeaves + j.
+ * - the records are held in two columns, "keys" and "payloads", grouped by leaf and then by section.  Section s of
+ *   leaf j is [sectionStart[j*height + s], sectionStart[j*height + s + 1]) and its range is that of the node at
+ *   depth s on the path to the leaf.  Within a section the keys are in sorted order.
+ *
+ * Threads: as with ACETree, nothing changes once the constructor returns, so one tree can serve any number of
+ * LongACETreeSearch objects on any number of threads.
+ */
+
+package tools;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+public class LongACETree {
+	/* the number of sections in a leaf - and of levels in the tree */
+	protected final int height;
+	protected final int numLeaves;
+
+	/* the seed the build was started with */
+	protected final long seed;
+
+	/* the skeleton, indexed by node id - the key is only set for the internal nodes */
+	protected final long nodeBegin[];
+	protected final long nodeEnd[];
+	protected final long nodeKey[];
+
+	/* the records, by leaf and section */
+	protected final int sectionStart[];
+	protected final long keys[];
+	protected final long payloads[];
+
+	/* runs this short are sorted by insertion before merging */
+	private static final int SORT_RUN = 32;
+
+	/*
+	 * the payload of each key is its position in "entries".
+	 */
+	public LongACETree(long entries[]) {
+		this(entries, null, System.nanoTime());
+	}
+
+	public LongACETree(long entries[], long payloads[]) {
+		this(entries, payloads, System.nanoTime());
+	}
+
+	/*
+	 * "payloads[i]" goes with "entries[i]" - null means use the row ids 0 .. n-1.  Neither array is modified.
+	 * "seed" drives every random choice of the build.
+	 */
+	public LongACETree(long entries[], long payloads[], long seed) {
+		if( entries.length == 0 )
+			throw new IllegalArgumentException("cannot build a tree with no entries");
+		if( payloads != null && payloads.length != entries.length )
+			throw new IllegalArgumentException(String.format("%d entries but %d payloads", entries.length, payloads.length));
+		this.seed = seed;
+
+		/* sort the records by key, carrying the payloads along */
+		long sortedKeys[] = Arrays.copyOf(entries, entries.length);
+		long sortedPayloads[] = new long[entries.length];
+		for( int i = 0; i < entries.length; i++ )
+			sortedPayloads[i] = payloads != null ? payloads[i] : i;
+		sortByKey(sortedKeys, sortedPayloads);
+
+		/* too few records for more than one leaf still gives a (one leaf, one section) tree */
+		this.height = Math.max(1, ACETree.getCeilingLog2(entries.length) - ACETree.LOG_LEAF_SIZE);
+		this.numLeaves = ACETree.twoPowerN(this.height-1);
+		Trace.event( Trace.Verbose, "size of arr [%d] height [%d]", entries.length, this.height );
+
+		/* Phase 1: the skeleton */
+		this.nodeBegin = new long[2 * numLeaves];
+		this.nodeEnd = new long[2 * numLeaves];
+		this.nodeKey = new long[numLeaves];
+		constructPhase1(1, sortedKeys, 0, sortedKeys.length - 1, sortedKeys[0], sortedKeys[sortedKeys.length-1]);
+
+		/* Phase 2: sections, then leaves */
+		SplittableRandom random = new SplittableRandom(seed);
+		int sections[] = new int[sortedKeys.length];
+		assignSections(sections, random.split());
+
+		int leafIDs[] = new int[sortedKeys.length];
+		int counts[] = new int[numLeaves * height];
+		assignLeaves(1, 0, 0, sortedKeys.length - 1, sortedKeys, sections, leafIDs, counts, random.split());
+
+		/* lay the columns out by leaf and section - going in key order keeps each section sorted */
+		this.sectionStart = new int[numLeaves * height + 1];
+		for( int i = 0; i < counts.length; i++ )
+			sectionStart[i+1] = sectionStart[i] + counts[i];
+
+		this.keys = new long[sortedKeys.length];
+		this.payloads = new long[sortedKeys.length];
+		int cursor[] = Arrays.copyOf(sectionStart, counts.length);
+		for( int i = 0; i < sortedKeys.length; i++ ) {
+			int position = cursor[leafIDs[i] * height + sections[i]]++;
+			this.keys[position] = sortedKeys[i];
+			this.payloads[position] = sortedPayloads[i];
+		}
+	}
+
+	public int size() {
+		return keys.length;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/*
+	 * phase 1 - as ACETree.constructPhase1: split on the median, and give each child the range from just past the
+	 * previous key up to its last key so that the ranges have no gaps.
+	 */
+	private void constructPhase1(int node, long records[], int start, int end, long rangeBegin, long rangeEnd) {
+		nodeBegin[node] = rangeBegin;
+		nodeEnd[node] = rangeEnd;
+		if( node >= numLeaves )
+			return;
+
+		int keyIndex = start + (end-start)/2;
+		nodeKey[node] = records[keyIndex];
+
+		long leftBegin = start != 0 ? successor(records[start-1]) : records[start];
+		constructPhase1(2 * node, records, start, keyIndex, leftBegin, records[keyIndex]);
+		constructPhase1(2 * node + 1, records, keyIndex + 1, end, successor(records[keyIndex]), records[end]);
+	}
+
+	/* the next key up - Long.MAX_VALUE has none, and a range starting there holds nothing anyway */
+	private static long successor(long key) {
+		return key == Long.MAX_VALUE ? key : key + 1;
+	}
+
+	/*
+	 * as ACETree.assignSections - exact per section quotas, so that every section gets the same number of records
+	 * (give or take one).
+	 */
+	private void assignSections(int recordSections[], SplittableRandom random) {
+		int quota[] = new int[height];
+		for( int i = 0; i < height; i++ )
+			quota[i] = recordSections.length / height + (i < recordSections.length % height ? 1 : 0);
+
+		for( int i = 0; i < recordSections.length; i++ ) {
+			int randomSection;
+			do {
+				randomSection = random.nextInt(height);
+			} while( quota[randomSection] == 0 );
+			quota[randomSection]--;
+			recordSections[i] = randomSection;
+		}
+	}
+
+	/*
+	 * as ACETree.AssignLeavesTask: the records reaching "node" are the run [lo, hi] of the sorted keys.  Those whose
+	 * section is "depth" take a random leaf under the node, the rest are split on the node's key.
+	 */
+	private void assignLeaves(int node, int depth, int lo, int hi, long records[], int sections[], int leafIDs[], int counts[], SplittableRandom random) {
+		if( lo > hi )
+			return;
+
+		boolean internal = node < numLeaves;
+		SplittableRandom leftRandom = null, rightRandom = null;
+		if( internal ) {
+			leftRandom = random.split();
+			rightRandom = random.split();
+		}
+
+		/* the leaves under a node at "depth" */
+		int shift = height - 1 - depth;
+		int firstLeaf = (node << shift) - numLeaves;
+		int numUnder = ACETree.twoPowerN(shift);
+		for( int i = lo; i <= hi; i++ ) {
+			if( sections[i] != depth )
+				continue;
+			leafIDs[i] = firstLeaf + random.nextInt(numUnder);
+			counts[leafIDs[i] * height + depth]++;
+		}
+
+		if( !internal )
+			return;
+
+		int split = upperBound(records, lo, hi, nodeKey[node]);
+		assignLeaves(2 * node, depth+1, lo, split-1, records, sections, leafIDs, counts, leftRandom);
+		assignLeaves(2 * node + 1, depth+1, split, hi, records, sections, leafIDs, counts, rightRandom);
+	}
+
+	/* index of the first entry in keys[lo..hi] greater than "key" (hi+1 if there is none) */
+	private static int upperBound(long keys[], int lo, int hi, long key) {
+		int begin = lo, end = hi + 1;
+		while( begin < end ) {
+			int mid = (begin + end) >>> 1;
+			if( keys[mid] <= key )
+				begin = mid + 1;
+			else
+				end = mid;
+		}
+		return begin;
+	}
+
+	/*
+	 * stable merge sort of the (key, payload) pairs on the key - Arrays.sort cannot carry a second column along.
+	 */
+	private static void sortByKey(long keys[], long payloads[]) {
+		int n = keys.length;
+
+		for( int runStart = 0; runStart < n; runStart += SORT_RUN ) {
+			int runEnd = Math.min(runStart + SORT_RUN, n);
+			for( int i = runStart + 1; i < runEnd; i++ ) {
+				long key = keys[i], payload = payloads[i];
+				int j = i - 1;
+				for( ; j >= runStart && keys[j] > key; j-- ) {
+					keys[j+1] = keys[j];
+					payloads[j+1] = payloads[j];
+				}
+				keys[j+1] = key;
+				payloads[j+1] = payload;
+			}
+		}
+		if( n <= SORT_RUN )
+			return;
+
+		long srcKeys[] = keys, srcPayloads[] = payloads;
+		long dstKeys[] = new long[n], dstPayloads[] = new long[n];
+		for( int width = SORT_RUN; width < n; width *= 2 ) {
+			for( int lo = 0; lo < n; lo += 2 * width ) {
+				int mid = Math.min(lo + width, n), hi = Math.min(lo + 2 * width, n);
+				int i = lo, j = mid, k = lo;
+				while( i < mid && j < hi ) {
+					if( srcKeys[j] < srcKeys[i] ) {
+						dstKeys[k] = srcKeys[j];
+						dstPayloads[k++] = srcPayloads[j++];
+					} else {
+						dstKeys[k] = srcKeys[i];
+						dstPayloads[k++] = srcPayloads[i++];
+					}
+				}
+				for( ; i < mid; i++, k++ ) {
+					dstKeys[k] = srcKeys[i];
+					dstPayloads[k] = srcPayloads[i];
+				}
+				for( ; j < hi; j++, k++ ) {
+					dstKeys[k] = srcKeys[j];
+					dstPayloads[k] = srcPayloads[j];
+				}
+			}
+			long swapKeys[] = srcKeys, swapPayloads[] = srcPayloads;
+			srcKeys = dstKeys; srcPayloads = dstPayloads;
+			dstKeys = swapKeys; dstPayloads = swapPayloads;
+		}
+
+		if( srcKeys != keys ) {
+			System.arraycopy(srcKeys, 0, keys, 0, n);
+			System.arraycopy(srcPayloads, 0, payloads, 0, n);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package tools;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.SplittableRandom;
+
+/*
+ * One range sampling session over a LongACETree - ACETreeSearch for long keys.
+ *
+ * The samples come out as (key, payload) pairs through a Sink, so nothing is boxed.  As with ACETreeSearch, the
+ * search holds all the mutable state and is not thread safe - use one per thread.
+ *
+ * The sections are sorted, so the records of one in the query range are a run of it, found with two binary searches
+ * (runBegin, runEnd) and copied out whole.  They come out in key order that way - so the samples of a stab are
+ * collected in "batch" and shuffled before they go to the sink, seeded from the tree and the query as in ACETreeSearch.
+ */
+public class LongACETreeSearch {
+	/* receives the samples */
+	public interface Sink {
+		void accept(long key, long payload);
+	}
+
+	private final LongACETree tree;
+	private final LongRange queryRange;
+
+	/* which leaf each stab goes to */
+	private final Shuttle shuttle;
+
+	/* one per section, as in ACETreeSearch */
+	private final Bucket buckets[];
+
+	private static final int INITIAL_BUCKET_SIZE = 16;
+
+	/* the samples of the current stab, and the random source that shuffles them */
+	private long batchKeys[] = new long[INITIAL_BUCKET_SIZE];
+	private long batchPayloads[] = new long[INITIAL_BUCKET_SIZE];
+	private int batchSize;
+	private final SplittableRandom shuffleRandom;
+
+	/*
+	 * Collects the overlapping sections of one section index until they cover every node at that depth that the query
+	 * overlaps - see ACETreeSearch.Bucket.  The ranges of the bucket are the nodes at depth "bucketID", left to right,
+	 * so range i is node 2^bucketID + i of the tree.
+	 */
+	class Bucket {
+		private long keys[];
+		private long payloads[];
+		private int numElements;
+
+		/* the ranges we have a section for since the last flush */
+		private final BitSet obtained;
+		private final int totalNeeded;
+		private int totalObtained;
+		private final int bucketID;
+
+		Bucket(int bucketID) {
+			this.bucketID = bucketID;
+			this.keys = new long[INITIAL_BUCKET_SIZE];
+			this.payloads = new long[INITIAL_BUCKET_SIZE];
+
+			int numRanges = ACETree.twoPowerN(bucketID);
+			this.obtained = new BitSet(numRanges);
+			int needed = 0;
+			for( int node = numRanges; node < 2 * numRanges; node++ ) {
+				if( queryRange.overlaps(tree.nodeBegin[node], tree.nodeEnd[node]) )
+					needed++;
+			}
+			this.totalNeeded = needed;
+		}
+
+		/* adds the run [from, to) of a section of the leaf's columns - true once the bucket covers the query */
+		boolean addLeaf(int leafIndex, int from, int to) {
+			int rangeIndex = leafIndex >> (tree.height - 1 - bucketID);
+			if( !obtained.get(rangeIndex) ) {
+				obtained.set(rangeIndex);
+				totalObtained++;
+			}
+
+			int needed = numElements + (to - from);
+			if( needed > keys.length ) {
+				int size = Math.max(needed, 2 * keys.length);
+				keys = Arrays.copyOf(keys, size);
+				payloads = Arrays.copyOf(payloads, size);
+			}
+			System.arraycopy(tree.keys, from, keys, numElements, to - from);
+			System.arraycopy(tree.payloads, from, payloads, numElements, to - from);
+			numElements = needed;
+
+			return totalObtained == totalNeeded;
+		}
+
+		/* moves the elements to the batch - they are all in the query range - and resets the bucket, keeping its arrays */
+		int flushElements() {
+			int added = addToBatch(keys, payloads, 0, numElements);
+			numElements = 0;
+			totalObtained = 0;
+			obtained.clear();
+			return added;
+		}
+	}
+
+	public LongACETreeSearch(LongACETree tree, LongRange queryRange) {
+		this.tree = tree;
+		this.queryRange = queryRange;
+
+		/* the same tree and query give the same samples in the same order */
+		this.shuffleRandom = new SplittableRandom(tree.seed ^ Long.rotateLeft(queryRange.begin, 32) ^ queryRange.end);
+
+		final LongACETree t = tree;
+		final LongRange q = queryRange;
+		this.shuttle = new Shuttle(t.numLeaves, t.height) {
+			protected boolean overlaps(int node) {
+				return q.overlaps(t.nodeBegin[node], t.nodeEnd[node]);
+			}
+		};
+
+		this.buckets = new Bucket[tree.height];
+		for( int i = 0; i < tree.height; i++ )
+			this.buckets[i] = new Bucket(i);
+	}
+
+	/*
+	 * One stab - pushes its samples into "sink" and returns how many there were.  Call repeatedly until done().
+	 */
+	public int search(Sink sink) {
+		int leafIndex = shuttle.next();
+		if( leafIndex == -1 )
+			return 0;
+		batchSize = 0;
+		combineTuples(leafIndex);
+
+		for( int i = batchSize - 1; i > 0; i-- ) {
+			int j = shuffleRandom.nextInt(i + 1);
+			long key = batchKeys[i], payload = batchPayloads[i];
+			batchKeys[i] = batchKeys[j];
+			batchPayloads[i] = batchPayloads[j];
+			batchKeys[j] = key;
+			batchPayloads[j] = payload;
+		}
+		for( int i = 0; i < batchSize; i++ )
+			sink.accept(batchKeys[i], batchPayloads[i]);
+		return batchSize;
+	}
+
+	/*
+	 * Terminating condition for the search
+	 */
+	public boolean done() {
+		return shuttle.done();
+	}
+
+	/*
+	 * as ACETreeSearch.combineTuples - the run of a section whose range holds the whole query goes straight out, that of
+	 * one that only overlaps it goes to its bucket.
+	 */
+	private int combineTuples(int leafIndex) {
+		int added = 0;
+		int leafNode = tree.numLeaves + leafIndex;
+		int first = leafIndex * tree.height;
+
+		for( int sectionIndex = 0; sectionIndex < tree.height; sectionIndex++ ) {
+			int node = leafNode >> (tree.height - 1 - sectionIndex);
+			long sectionBegin = tree.nodeBegin[node], sectionEnd = tree.nodeEnd[node];
+			int from = tree.sectionStart[first + sectionIndex];
+			int to = tree.sectionStart[first + sectionIndex + 1];
+
+			if( sectionBegin <= queryRange.begin && sectionEnd >= queryRange.end ) {
+				added += addToBatch(tree.keys, tree.payloads, runBegin(from, to, sectionBegin, sectionEnd), runEnd(from, to, sectionBegin, sectionEnd));
+			} else if( queryRange.overlaps(sectionBegin, sectionEnd) ) {
+				Bucket b = buckets[sectionIndex];
+				if( b.addLeaf(leafIndex, runBegin(from, to, sectionBegin, sectionEnd), runEnd(from, to, sectionBegin, sectionEnd)) )
+					added += b.flushElements();
+			}
+		}
+
+		return added;
+	}
+
+	/*
+	 * the records of the sorted section [from, to) of the columns in the query range are [runBegin, runEnd) - with
+	 * nothing to search for when the query holds the section's whole range [sectionBegin, sectionEnd].
+	 */
+	private int runBegin(int from, int to, long sectionBegin, long sectionEnd) {
+		if( queryRange.begin <= sectionBegin && queryRange.end >= sectionEnd )
+			return from;
+		long key = queryRange.begin;
+		while( from < to ) {
+			int mid = (from + to) >>> 1;
+			if( tree.keys[mid] < key )
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		return from;
+	}
+
+	private int runEnd(int from, int to, long sectionBegin, long sectionEnd) {
+		if( queryRange.begin <= sectionBegin && queryRange.end >= sectionEnd )
+			return to;
+		long key = queryRange.end;
+		while( from < to ) {
+			int mid = (from + to) >>> 1;
+			if( tree.keys[mid] <= key )
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		return from;
+	}
+
+	private int addToBatch(long keys[], long payloads[], int from, int to) {
+		int needed = batchSize + (to - from);
+		if( needed > batchKeys.length ) {
+			int size = Math.max(needed, 2 * batchKeys.length);
+			batchKeys = Arrays.copyOf(batchKeys, size);
+			batchPayloads = Arrays.copyOf(batchPayloads, size);
+		}
+		System.arraycopy(keys, from, batchKeys, batchSize, to - from);
+		System.arraycopy(payloads, from, batchPayloads, batchSize, to - from);
+		batchSize = needed;
+		return to - from;
+	}
+}
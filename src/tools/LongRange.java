@@ -0,0 +1,34 @@
+package tools;
+/*
+ * Range over long keys - inclusive on both ends, like Range.
+ *
+ * used in:
+ * - the query of a LongACETreeSearch.
+ * - DoubleRange, once its ends are mapped to long keys.
+ */
+
+public class LongRange {
+	protected long begin;
+	protected long end;
+	public LongRange(long begin, long end) {
+		this.begin = begin;
+		this.end = end;
+	}
+	
+	public boolean overlaps(LongRange that) {
+		return overlaps(that.begin, that.end);
+	}
+	
+	/* for a range that is not held in a LongRange object (the flat node arrays in LongACETree) */
+	public boolean overlaps(long thatBegin, long thatEnd) {
+		return thatBegin <= this.end && thatEnd >= this.begin;
+	}
+	
+	public boolean encapsulates(LongRange that) {
+		return this.begin <= that.begin && this.end >= that.end;
+	}
+	
+	public boolean includes(long i) {
+		return i >= this.begin && i <= this.end;
+	}
+}
@@ -0,0 +1,506 @@
+/*
+ * An ACE Tree that takes inserts.
+ *
+ * An ACETree cannot change once built, so this keeps one built tree (the "base") and puts new records in a delta next
+ * to it - an append-only array.  A search stabs the base as usual and hands out the delta's records in the query range
+ * alongside, in proportion to how much of the base has come out (see ACETreeSearch), so the samples stay uniform
+ * over everything inserted so far.
+ *
+ * Once the delta reaches "mergeFraction" of the base, it is frozen and a background thread builds a fresh tree from
+ * the base and the frozen delta, LSM style, while inserts go to a new delta.  Until the new tree is published, searches
+ * see the old base plus both deltas.
+ *
+ * Deletes mark the record dead in the base (see ACETree.delete) or in a delta - each delta has a bitmap of dead
+ * entries, and an index from key to its live entries so that a delete finds one without a scan.  Once some leaf of the
+ * base has "compactionThreshold" of its records dead, the base is rebuilt without them - by the same background merge.
+ *
+ * A tree needs a leaf's worth of records (MIN_BASE_SIZE).  With fewer live records than that - to start with, or after
+ * a merge that dropped most of them - there is no base and they all sit in the delta, until enough come in for one.
+ * A merge that fails leaves things as they were before it started, with the delta it was merging back in the delta.
+ *
+ * "seed" is the seed of the first base, and each merge derives the seed of the next base from the one before - so the
+ * same seed, inserts and deletes give the same trees, and the same samples from a snapshot.
+ *
+ * Threads: the state is an immutable Snapshot behind a volatile reference.  A search takes the snapshot once, at the
+ * start, and is not affected by the inserts or merges that come after.  Inserts are serialized on the tree.
+ */
+
+package tools;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import tools.ACETree.LeafNode;
+import tools.ACETree.LeafSection;
+
+public class MutableACETree {
+	/*
+	 * What a search sees: the base, the delta being merged into the next base (if any) and the current delta.
+	 *
+	 * The delta arrays are only ever appended to, past the lengths recorded here - so a snapshot's entries never change.
+	 * Deletes set bits in "mergingDead" and "deltaDead" in place, the way a delete in the base shows to the searches
+	 * already running; the "...Deleted" counts are as of the snapshot.
+	 *
+	 * "base" is null while there are too few records for a tree.  "seed" is the base's, or the one the searches use
+	 * when there is no base.
+	 */
+	static class Snapshot {
+		final ACETree base;
+		final long seed;
+		final int merging[];
+		final AtomicLongArray mergingDead;
+		final int mergingLength;
+		final int mergingDeleted;
+		final int delta[];
+		final AtomicLongArray deltaDead;
+		final int deltaLength;
+		final int deltaDeleted;
+
+		Snapshot(ACETree base, long seed, int merging[], AtomicLongArray mergingDead, int mergingLength, int mergingDeleted,
+				int delta[], AtomicLongArray deltaDead, int deltaLength, int deltaDeleted) {
+			this.base = base;
+			this.seed = seed;
+			this.merging = merging;
+			this.mergingDead = mergingDead;
+			this.mergingLength = mergingLength;
+			this.mergingDeleted = mergingDeleted;
+			this.delta = delta;
+			this.deltaDead = deltaDead;
+			this.deltaLength = deltaLength;
+			this.deltaDeleted = deltaDeleted;
+		}
+	}
+
+	/*
+	 * Where the live entries of a delta are, by key - an open addressing table from key to the last entry with that
+	 * key, and a chain from each entry to the one with the same key before it.  A delete takes the head off the chain.
+	 * Only touched with the lock held.
+	 */
+	static final class DeltaIndex {
+		private static final int EMPTY = -2;
+
+		private int keys[] = new int[16];
+		private int heads[] = filled(16);
+		private int numKeys;
+		private int previous[] = new int[INITIAL_DELTA_SIZE];
+
+		/* entry "position" of the delta holds "key" - positions come in order, each once */
+		void add(int key, int position) {
+			if( position == previous.length )
+				previous = Arrays.copyOf(previous, 2 * previous.length);
+			int slot = slot(key);
+			if( heads[slot] == EMPTY ) {
+				keys[slot] = key;
+				heads[slot] = -1;
+				if( ++numKeys > keys.length / 2 ) {
+					rehash();
+					slot = slot(key);
+				}
+			}
+			previous[position] = heads[slot];
+			heads[slot] = position;
+		}
+
+		/* the position of a live entry with "key", now taken out of the index - or -1 if there is none */
+		int remove(int key) {
+			int slot = slot(key);
+			int position = heads[slot];
+			if( position < 0 )
+				return -1;
+			heads[slot] = previous[position];
+			return position;
+		}
+
+		private int slot(int key) {
+			int mask = keys.length - 1;
+			int hash = key * 0x9E3779B9;
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			while( heads[slot] != EMPTY && keys[slot] != key )
+				slot = (slot + 1) & mask;
+			return slot;
+		}
+
+		private void rehash() {
+			int oldKeys[] = keys, oldHeads[] = heads;
+			keys = new int[2 * oldKeys.length];
+			heads = filled(keys.length);
+			for( int i = 0; i < oldKeys.length; i++ ) {
+				if( oldHeads[i] != EMPTY ) {
+					int slot = slot(oldKeys[i]);
+					keys[slot] = oldKeys[i];
+					heads[slot] = oldHeads[i];
+				}
+			}
+		}
+
+		private static int[] filled(int length) {
+			int array[] = new int[length];
+			Arrays.fill(array, EMPTY);
+			return array;
+		}
+	}
+
+	private volatile Snapshot snapshot;
+
+	/* merge once the delta has this many records for every record in the base */
+	private final double mergeFraction;
+
+	/* rebuild the base once a leaf has this share of its records deleted */
+	private final double compactionThreshold;
+
+	private final ExecutorService merger;
+	private Future<?> pendingMerge;
+
+	/* the live entries of the delta and the merging delta, by key - see DeltaIndex */
+	private DeltaIndex deltaIndex = new DeltaIndex();
+	private DeltaIndex mergingIndex;
+
+	/*
+	 * the keys deleted from the base or the merging delta while a merge is running.  The merge only sees the deletes
+	 * made before it started, so these are done again on the new base when it is published.
+	 */
+	private final SampleBuffer deletedDuringMerge = new SampleBuffer();
+
+	private static final double DEFAULT_MERGE_FRACTION = 0.125;
+	private static final double DEFAULT_COMPACTION_THRESHOLD = 0.25;
+	private static final int INITIAL_DELTA_SIZE = 1024;
+
+	/* the fewest records an ACETree can be built from - one of height 1 */
+	static final int MIN_BASE_SIZE = 1 << ACETree.LOG_LEAF_SIZE;
+
+	/* with fewer than MIN_BASE_SIZE initial records, they go in the delta */
+	public MutableACETree(int entries[]) {
+		this(entries, System.nanoTime());
+	}
+
+	public MutableACETree(int entries[], long seed) {
+		this(entries, seed, DEFAULT_MERGE_FRACTION, DEFAULT_COMPACTION_THRESHOLD);
+	}
+
+	public MutableACETree(int entries[], double mergeFraction, double compactionThreshold) {
+		this(entries, System.nanoTime(), mergeFraction, compactionThreshold);
+	}
+
+	public MutableACETree(int entries[], long seed, double mergeFraction, double compactionThreshold) {
+		if( !(mergeFraction > 0) )
+			throw new IllegalArgumentException(String.format("merge fraction %f must be positive", mergeFraction));
+		if( !(compactionThreshold > 0) )
+			throw new IllegalArgumentException(String.format("compaction threshold %f must be positive", compactionThreshold));
+		this.mergeFraction = mergeFraction;
+		this.compactionThreshold = compactionThreshold;
+		if( entries.length >= MIN_BASE_SIZE ) {
+			this.snapshot = new Snapshot(new ACETree(entries, seed, null), seed, null, null, 0, 0,
+					new int[INITIAL_DELTA_SIZE], newDead(INITIAL_DELTA_SIZE), 0, 0);
+		} else {
+			Snapshot empty = new Snapshot(null, seed, null, null, 0, 0, new int[0], null, 0, 0);
+			this.snapshot = withDelta(null, seed, entries, entries.length, empty);
+		}
+		this.merger = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "acetree-merge");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public synchronized void insert(int key) {
+		Snapshot s = snapshot;
+		int delta[] = s.delta;
+		AtomicLongArray deltaDead = s.deltaDead;
+		if( s.deltaLength == delta.length ) {
+			delta = Arrays.copyOf(delta, 2 * delta.length);
+			deltaDead = grow(deltaDead, delta.length);
+		}
+		delta[s.deltaLength] = key;
+		deltaIndex.add(key, s.deltaLength);
+		snapshot = new Snapshot(s.base, s.seed, s.merging, s.mergingDead, s.mergingLength, s.mergingDeleted,
+				delta, deltaDead, s.deltaLength + 1, s.deltaDeleted);
+
+		if( s.merging == null && deltaFull(s.base, s.deltaLength + 1 - s.deltaDeleted) )
+			startMerge();
+	}
+
+	/* time to fold the delta into the base - or, with no base, to build one from it */
+	private boolean deltaFull(ACETree base, int deltaRecords) {
+		if( base == null )
+			return deltaRecords >= MIN_BASE_SIZE;
+		return deltaRecords >= mergeFraction * base.size();
+	}
+
+	/*
+	 * deletes one record with this key - from the base, the delta being merged or the current delta, whichever has one.
+	 * Returns false if there is none.
+	 */
+	public synchronized boolean delete(int key) {
+		Snapshot s = snapshot;
+
+		if( s.base != null && s.base.delete(key) ) {
+			if( s.merging != null )
+				deletedDuringMerge.accept(key);
+			else if( s.base.maxDeadRatio() >= compactionThreshold )
+				startMerge();
+			return true;
+		}
+
+		int i = mergingIndex != null ? mergingIndex.remove(key) : -1;
+		if( i != -1 ) {
+			/* the merge works from the entries as they were when it started - the delete is done again on its tree */
+			setDead(s.mergingDead, i);
+			snapshot = new Snapshot(s.base, s.seed, s.merging, s.mergingDead, s.mergingLength, s.mergingDeleted + 1,
+					s.delta, s.deltaDead, s.deltaLength, s.deltaDeleted);
+			deletedDuringMerge.accept(key);
+			return true;
+		}
+
+		i = deltaIndex.remove(key);
+		if( i != -1 ) {
+			setDead(s.deltaDead, i);
+			snapshot = new Snapshot(s.base, s.seed, s.merging, s.mergingDead, s.mergingLength, s.mergingDeleted,
+					s.delta, s.deltaDead, s.deltaLength, s.deltaDeleted + 1);
+			return true;
+		}
+		return false;
+	}
+
+	static boolean isDead(AtomicLongArray dead, int i) {
+		return dead != null && (dead.get(i >>> 6) & (1L << i)) != 0;
+	}
+
+	/* called with the lock held - the only writer, so a get and a set are enough */
+	private static void setDead(AtomicLongArray dead, int i) {
+		dead.set(i >>> 6, dead.get(i >>> 6) | (1L << i));
+	}
+
+	private static AtomicLongArray newDead(int capacity) {
+		return new AtomicLongArray((capacity + 63) >>> 6);
+	}
+
+	/* a bitmap for "capacity" entries holding the bits of "dead" - the snapshots still holding the old one keep it */
+	private static AtomicLongArray grow(AtomicLongArray dead, int capacity) {
+		AtomicLongArray grown = newDead(capacity);
+		for( int i = 0; i < dead.length(); i++ )
+			grown.set(i, dead.get(i));
+		return grown;
+	}
+
+	/*
+	 * a search over everything inserted before the call.
+	 */
+	public ACETreeSearch search(Range queryRange) {
+		return search(queryRange, Long.MAX_VALUE);
+	}
+
+	public ACETreeSearch search(Range queryRange, long bucketBudget) {
+		Snapshot s = snapshot;
+		if( s.merging == null )
+			return new ACETreeSearch(s.base, s.seed, queryRange, bucketBudget, s.delta, s.deltaDead, s.deltaLength);
+
+		/* both deltas as one, without their dead entries */
+		int delta[] = new int[s.mergingLength + s.deltaLength];
+		int deltaLength = 0;
+		for( int i = 0; i < s.mergingLength; i++ ) {
+			if( !isDead(s.mergingDead, i) )
+				delta[deltaLength++] = s.merging[i];
+		}
+		for( int i = 0; i < s.deltaLength; i++ ) {
+			if( !isDead(s.deltaDead, i) )
+				delta[deltaLength++] = s.delta[i];
+		}
+		return new ACETreeSearch(s.base, s.seed, queryRange, bucketBudget, delta, null, deltaLength);
+	}
+
+	/* the live records */
+	public synchronized int size() {
+		Snapshot s = snapshot;
+		int baseRecords = s.base != null ? s.base.size() - s.base.getDeadCount() : 0;
+		return baseRecords + s.mergingLength - s.mergingDeleted + s.deltaLength - s.deltaDeleted;
+	}
+
+	/* the live records not in the base yet */
+	public int deltaSize() {
+		Snapshot s = snapshot;
+		return s.mergingLength - s.mergingDeleted + s.deltaLength - s.deltaDeleted;
+	}
+
+	/*
+	 * the current base tree - e.g. to write it out with ACETreeFile, which keeps its tombstones: the tree opened from
+	 * the file has the same records deleted.  The delta (and a merge in progress) is not in the base, so it is not in
+	 * the file either.  null while there are too few records for a base.
+	 */
+	public ACETree getBase() {
+		return snapshot.base;
+	}
+
+	/*
+	 * waits until no merge is in progress - a merge may start another one when it finishes, if the delta filled up.
+	 * Throws IllegalStateException if the merge it waited for failed; the tree is then as it was before that merge.
+	 */
+	public void awaitMerge() throws InterruptedException {
+		while( true ) {
+			Future<?> merge;
+			synchronized( this ) {
+				merge = pendingMerge;
+			}
+			if( merge == null )
+				return;
+			try {
+				merge.get();
+			} catch(ExecutionException e) {
+				throw new IllegalStateException("merge failed", e.getCause());
+			}
+		}
+	}
+
+	/*
+	 * stops the merge thread - a merge in progress is finished first.  The tree can still be searched and inserted
+	 * into, but the delta is no longer merged.
+	 */
+	public void close() throws IOException {
+		merger.shutdown();
+		ACETree base = snapshot.base;
+		if( base != null )
+			base.close();
+	}
+
+	/* called with the lock held: freeze the delta and fold it in in the background */
+	private void startMerge() {
+		if( merger.isShutdown() )
+			return;
+
+		final Snapshot frozen = snapshot;
+		final long tombstones[][][] = frozen.base != null ? frozen.base.captureTombstones() : null;
+		final AtomicLongArray frozenDead = grow(frozen.deltaDead, frozen.delta.length);
+
+		/* the next seed follows from this one - see above */
+		final long seed = new SplittableRandom(frozen.seed).nextLong();
+		snapshot = new Snapshot(frozen.base, frozen.seed, frozen.delta, frozen.deltaDead, frozen.deltaLength, frozen.deltaDeleted,
+				new int[INITIAL_DELTA_SIZE], newDead(INITIAL_DELTA_SIZE), 0, 0);
+		mergingIndex = deltaIndex;
+		deltaIndex = new DeltaIndex();
+		deletedDuringMerge.clear();
+		pendingMerge = merger.submit(new Runnable() {
+			public void run() {
+				merge(frozen.base, tombstones, frozen.delta, frozenDead, frozen.deltaLength, seed);
+			}
+		});
+	}
+
+	/*
+	 * the live records of the base and the delta, going by "tombstones" and "deltaDead" as they were when the merge
+	 * started, go into a new tree - or back into the delta, if there are too few of them for one.  If anything fails
+	 * before the result is published, the merge is undone (rollBack) and the failure goes to awaitMerge().
+	 */
+	private void merge(ACETree base, long tombstones[][][], int delta[], AtomicLongArray deltaDead, int deltaLength, long seed) {
+		boolean published = false;
+		try {
+			int keys[] = new int[(base != null ? base.size() : 0) + deltaLength];
+			int n = 0;
+			for( int i = 0; base != null && i < base.numLeaves; i++ ) {
+				LeafNode leaf = base.getLeaf(i);
+				for( int j = 0; j < leaf.sections.size(); j++ ) {
+					LeafSection section = leaf.sections.get(j);
+					long dead[] = tombstones[i][j];
+					for( int k = 0; k < section.size(); k++ ) {
+						if( !LeafSection.isDead(dead, k) )
+							keys[n++] = section.key(k);
+					}
+				}
+			}
+			for( int i = 0; i < deltaLength; i++ ) {
+				if( !isDead(deltaDead, i) )
+					keys[n++] = delta[i];
+			}
+
+			ACETree merged = n >= MIN_BASE_SIZE ? new ACETree(Arrays.copyOf(keys, n), seed, null) : null;
+			Trace.event( Trace.Verbose, "merged %d inserted records into %d", deltaLength, n );
+
+			synchronized( this ) {
+				Snapshot s = snapshot;
+				if( merged != null ) {
+					for( int i = 0; i < deletedDuringMerge.size(); i++ )
+						merged.delete(deletedDuringMerge.get(i));
+					snapshot = new Snapshot(merged, seed, null, null, 0, 0, s.delta, s.deltaDead, s.deltaLength, s.deltaDeleted);
+				} else {
+					n = without(keys, n, deletedDuringMerge.toArray());
+					snapshot = withDelta(null, seed, keys, n, s);
+				}
+				deletedDuringMerge.clear();
+				mergingIndex = null;
+				pendingMerge = null;
+				published = true;
+
+				/* the delta may have filled up again while we were at it, or the replayed deletes pushed a leaf over */
+				s = snapshot;
+				if( deltaFull(s.base, s.deltaLength - s.deltaDeleted) || (s.base != null && s.base.maxDeadRatio() >= compactionThreshold) )
+					startMerge();
+			}
+		} catch(RuntimeException e) {
+			if( !published )
+				rollBack();
+			throw e;
+		} catch(Error e) {
+			if( !published )
+				rollBack();
+			throw e;
+		}
+	}
+
+	/* a merge failed: the base stays, and the live entries of the delta it was merging go back in the delta */
+	private synchronized void rollBack() {
+		Snapshot s = snapshot;
+		int merging[] = new int[s.mergingLength];
+		int n = 0;
+		for( int i = 0; i < s.mergingLength; i++ ) {
+			if( !isDead(s.mergingDead, i) )
+				merging[n++] = s.merging[i];
+		}
+
+		/* the deletes made meanwhile are in the base's tombstones and the merging bitmap already */
+		snapshot = withDelta(s.base, s.seed, merging, n, s);
+		deletedDuringMerge.clear();
+		mergingIndex = null;
+		pendingMerge = null;
+	}
+
+	/*
+	 * called with the lock held: a snapshot of "base" with no merge going on, whose delta is the first "numRecords" of
+	 * "records" followed by the live entries of the delta of "s".  The delta index is built again to match.
+	 */
+	private Snapshot withDelta(ACETree base, long seed, int records[], int numRecords, Snapshot s) {
+		int delta[] = new int[Math.max(INITIAL_DELTA_SIZE, numRecords + s.deltaLength)];
+		System.arraycopy(records, 0, delta, 0, numRecords);
+		int length = numRecords;
+		for( int i = 0; i < s.deltaLength; i++ ) {
+			if( !isDead(s.deltaDead, i) )
+				delta[length++] = s.delta[i];
+		}
+
+		deltaIndex = new DeltaIndex();
+		for( int i = 0; i < length; i++ )
+			deltaIndex.add(delta[i], i);
+		return new Snapshot(base, seed, null, null, 0, 0, delta, newDead(delta.length), length, 0);
+	}
+
+	/* drops one of "keys[0 .. n)" for each of "deleted" - all of which are there - and returns how many are left */
+	private static int without(int keys[], int n, int deleted[]) {
+		Arrays.sort(keys, 0, n);
+		Arrays.sort(deleted);
+		int live = 0, d = 0;
+		for( int i = 0; i < n; i++ ) {
+			if( d < deleted.length && deleted[d] == keys[i] ) {
+				d++;
+				continue;
+			}
+			keys[live++] = keys[i];
+		}
+		return live;
+	}
+}
@@ -0,0 +1,305 @@
+package tools;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tools.ACETree.InternalNode;
+import tools.ACETree.LeafNode;
+import tools.ACETree.LeafSection;
+import tools.ACETree.Node;
+
+/*
+ * Keeps the keys of the leaves outside the heap, in direct buffers - for a tree too big to leave to the collector, or
+ * to keep out of the way of its pauses.
+ *
+ * copyOf() moves the keys of a built tree into direct memory and gives back a tree like ACETreeFile.open() does: the
+ * internal nodes and the section ranges on the heap, the leaves read from the store.  The keys of each leaf are laid
+ * out one section after the other, in native order, and a leaf never straddles two buffers (one is limited to 2GB).
+ *
+ * readLeaf() does not copy any keys - each section of the LeafNode it builds is an IntBuffer view of its keys
+ * (LeafSection.keys), which the search binary searches and bulk copies from in place.
+ *
+ * The memory is freed by close() (or ACETree.close()), not by the collector.  After that readLeaf() throws.  A stab
+ * holds its leaf with pinLeaf() until unpinLeaf(), and the store counts the pins: closed while a search still holds
+ * a leaf, it frees the memory when the last pin goes.  A leaf from readLeaf() (ACETree.getLeaf()) is not counted, so
+ * its views must not be used after close().
+ * Deletes made on the source tree are not carried over - unlike ACETreeFile, which writes them.
+ */
+public class OffHeapLeafStore implements LeafStore {
+	private static final int CHUNK_BYTES = 1 << 30;
+
+	private ACETree tree;
+
+	/* the leaves of the tree without their data - readLeaf() takes the section ranges from here */
+	private ArrayList<LeafNode> skeleton;
+
+	private ByteBuffer chunks[];
+	private IntBuffer chunkKeys[];
+
+	/* leaf i is at int offset leafOffset[i] of chunk leafChunk[i]; section s of it has sectionCounts[sectionBase[i] + s] keys */
+	private int leafChunk[];
+	private int leafOffset[];
+	private int sectionBase[];
+	private int sectionCounts[];
+
+	/* leaves handed out by pinLeaf() and not back yet - the memory is only freed once closed and none are out */
+	private final AtomicInteger pins = new AtomicInteger();
+	private volatile boolean closed;
+	private boolean freed;
+
+	private OffHeapLeafStore() {
+	}
+
+	/*
+	 * copies the keys of "tree" (in memory or opened from a file) into direct memory.  "tree" is left as it is.
+	 */
+	public static ACETree copyOf(ACETree tree) {
+		OffHeapLeafStore store = new OffHeapLeafStore();
+		try {
+			store.load(tree);
+		} catch(RuntimeException e) {
+			store.close();
+			throw e;
+		} catch(OutOfMemoryError e) {
+			/* out of direct memory, most likely - free what we did get */
+			store.close();
+			throw e;
+		}
+		return store.tree;
+	}
+
+	private void load(ACETree source) {
+		int numLeaves = source.leafNodes.size();
+		this.skeleton = new ArrayList<LeafNode>(Collections.<LeafNode>nCopies(numLeaves, null));
+		Node root = copyNode(source.root, new ArrayList<Range>());
+
+		/* lay the leaves out - a new chunk whenever the next one does not fit */
+		this.leafChunk = new int[numLeaves];
+		this.leafOffset = new int[numLeaves];
+		this.sectionBase = new int[numLeaves + 1];
+		int numSections = 0;
+		for( LeafNode leaf : skeleton )
+			numSections += leaf.sections.size();
+		this.sectionCounts = new int[numSections];
+
+		ArrayList<Integer> chunkSizes = new ArrayList<Integer>();
+		long chunkBytes = 0;
+		for( int i = 0; i < numLeaves; i++ ) {
+			LeafNode leaf = source.getLeaf(i);
+			long leafBytes = 0;
+			sectionBase[i + 1] = sectionBase[i] + leaf.sections.size();
+			for( int s = 0; s < leaf.sections.size(); s++ ) {
+				sectionCounts[sectionBase[i] + s] = leaf.sections.get(s).size();
+				leafBytes += 4L * leaf.sections.get(s).size();
+			}
+			if( leafBytes > CHUNK_BYTES )
+				throw new IllegalArgumentException(String.format("leaf %d takes %d bytes, more than a buffer holds", i, leafBytes));
+
+			if( chunkSizes.isEmpty() || chunkBytes + leafBytes > CHUNK_BYTES ) {
+				if( !chunkSizes.isEmpty() )
+					chunkSizes.set(chunkSizes.size() - 1, (int)chunkBytes);
+				chunkSizes.add(0);
+				chunkBytes = 0;
+			}
+			leafChunk[i] = chunkSizes.size() - 1;
+			leafOffset[i] = (int)(chunkBytes / 4);
+			chunkBytes += leafBytes;
+		}
+		if( !chunkSizes.isEmpty() )
+			chunkSizes.set(chunkSizes.size() - 1, (int)chunkBytes);
+
+		/* and fill them in */
+		this.chunks = new ByteBuffer[chunkSizes.size()];
+		this.chunkKeys = new IntBuffer[chunkSizes.size()];
+		for( int c = 0; c < chunks.length; c++ ) {
+			chunks[c] = ByteBuffer.allocateDirect(chunkSizes.get(c)).order(ByteOrder.nativeOrder());
+			chunkKeys[c] = chunks[c].asIntBuffer();
+		}
+		for( int i = 0; i < numLeaves; i++ ) {
+			LeafNode leaf = source.getLeaf(i);
+			IntBuffer keys = chunkKeys[leafChunk[i]];
+			int offset = leafOffset[i];
+			for( LeafSection section : leaf.sections ) {
+				keys.put(offset, section.toArray());
+				offset += section.size();
+			}
+		}
+
+		/* the store is complete before the tree can see it */
+		this.tree = new ACETree(source.height, source.logLeafSize, source.seed, root, skeleton, this);
+	}
+
+	/* the node tree of "n" with skeleton leaves - see ACETreeFile.readNode */
+	private Node copyNode(Node n, ArrayList<Range> rangeArray) {
+		if( n instanceof LeafNode ) {
+			LeafNode source = (LeafNode)n;
+			rangeArray.add(source.getDataRange());
+			LeafNode leaf = new LeafNode(source.leafIndex, rangeArray);
+			rangeArray.remove(rangeArray.size()-1);
+
+			skeleton.set(leaf.leafIndex, leaf);
+			return leaf;
+		}
+
+		InternalNode source = (InternalNode)n;
+		InternalNode copy = new InternalNode();
+		copy.r.begin = source.r.begin;
+		copy.r.end = source.r.end;
+		copy.key = source.key;
+		copy.key_index = source.key_index;
+		copy.countLeft = source.countLeft;
+		copy.countRight = source.countRight;
+
+		rangeArray.add(copy.r);
+		copy.left = copyNode(source.left, rangeArray);
+		copy.right = copyNode(source.right, rangeArray);
+		rangeArray.remove(rangeArray.size()-1);
+
+		copy.setLeafIndexes(copy.left);
+		copy.setLeafIndexes(copy.right);
+		return copy;
+	}
+
+	/*
+	 * one stab, one leaf - its sections are views of the keys, nothing is copied.
+	 *
+	 * Safe to call from many threads at once - the views are made with absolute slice(), which leaves the shared
+	 * buffer's position alone, and every call builds its own LeafNode.
+	 */
+	@Override
+	public LeafNode readLeaf(int leafIndex) {
+		if( closed )
+			throw new IllegalStateException("off heap leaf store is closed");
+
+		LeafNode skeletonLeaf = skeleton.get(leafIndex);
+		int numSections = skeletonLeaf.sections.size();
+		ArrayList<Range> rangeArray = new ArrayList<Range>(numSections);
+		for( LeafSection section : skeletonLeaf.sections )
+			rangeArray.add(section.r);
+		LeafNode leaf = new LeafNode(leafIndex, rangeArray);
+
+		IntBuffer keys = chunkKeys[leafChunk[leafIndex]];
+		int offset = leafOffset[leafIndex];
+		for( int s = 0; s < numSections; s++ ) {
+			int count = sectionCounts[sectionBase[leafIndex] + s];
+			LeafSection section = leaf.sections.get(s);
+			section.keys = keys.slice(offset, count);
+
+			/* the tree keeps the tombstones on the skeleton */
+			section.dead = skeletonLeaf.sections.get(s).dead;
+			offset += count;
+		}
+		return leaf;
+	}
+
+	/*
+	 * readLeaf() that holds off the free of the memory until unpinLeaf().  The pin is taken before looking at
+	 * "closed", and close() sets "closed" before looking at the pins - so either the stab sees the store closed, or
+	 * close() sees the pin and leaves the free to the last unpinLeaf().
+	 */
+	@Override
+	public LeafNode pinLeaf(int leafIndex) {
+		pins.incrementAndGet();
+		try {
+			return readLeaf(leafIndex);
+		} catch(RuntimeException e) {
+			unpin();
+			throw e;
+		}
+	}
+
+	@Override
+	public void unpinLeaf(LeafNode leaf) {
+		unpin();
+	}
+
+	private void unpin() {
+		int left = pins.decrementAndGet();
+		if( left < 0 )
+			throw new IllegalStateException("off heap leaf store unpinned more often than pinned");
+		if( left == 0 && closed )
+			freeChunks();
+	}
+
+	/* leaves pinned and not unpinned yet */
+	public int getPinnedLeaves() {
+		return pins.get();
+	}
+
+	/* bytes of direct memory held for the keys */
+	public synchronized long getBytes() {
+		long bytes = 0;
+		if( chunks != null ) {
+			for( ByteBuffer chunk : chunks ) {
+				if( chunk != null )
+					bytes += chunk.capacity();
+			}
+		}
+		return bytes;
+	}
+
+	/*
+	 * frees the keys now, rather than whenever the collector gets to the buffers - or, while stabs still hold leaves,
+	 * once the last of them is unpinned.  See above.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if( pins.get() == 0 )
+			freeChunks();
+	}
+
+	private synchronized void freeChunks() {
+		if( freed )
+			return;
+		freed = true;
+		if( chunks == null )
+			return;
+		for( int c = 0; c < chunks.length; c++ ) {
+			if( chunks[c] != null )
+				free(chunks[c]);
+			chunks[c] = null;
+			chunkKeys[c] = null;
+		}
+	}
+
+	/*
+	 * Unsafe.invokeCleaner is the only way to free a direct buffer before it is collected.  It is looked up by
+	 * reflection, so this builds without jdk.unsupported - if it is not there the buffer is left to the collector.
+	 */
+	private static final Method invokeCleaner;
+	private static final Object unsafe;
+
+	static {
+		Method method = null;
+		Object instance = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			instance = field.get(null);
+			method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			method = null;
+			instance = null;
+		}
+		invokeCleaner = method;
+		unsafe = instance;
+	}
+
+	private static void free(ByteBuffer buffer) {
+		if( invokeCleaner == null )
+			return;
+		try {
+			invokeCleaner.invoke(unsafe, buffer);
+		} catch(ReflectiveOperationException e) {
+			/* left to the collector */
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package tools;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Frame of reference + bit packing for the keys of a leaf section, used by the packed encoding of ACETreeFile.
+ *
+ * The keys of a section all lie in its range [begin, end], so each is stored as its offset from "begin" in just
+ * enough bits for (end - begin).  The offsets are laid end to end, low bits first, in 64 bit words - so a
+ * section of "count" keys takes words(count, width) longs.  A section whose range is a single value takes none.
+ *
+ * No delta coding on top - the sections are sorted, so it would pack tighter, but every key would then depend on
+ * the ones before it.
+ */
+final class PackedKeys {
+	private PackedKeys() {}
+
+	/* the bits an offset in [begin, end] needs - 0 to 32 */
+	static int width(int begin, int end) {
+		long span = (long)end - begin;
+		return span <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(span);
+	}
+
+	static int words(int count, int width) {
+		return (int)(((long)count * width + 63) >>> 6);
+	}
+
+	/* writes the keys, all in [begin, begin + 2^width), at "offset" of "page" - returns the bytes written */
+	static int pack(int keys[], int begin, int width, ByteBuffer page, int offset) {
+		if( width == 0 )
+			return 0;
+
+		long word = 0;
+		int bits = 0;
+		int position = offset;
+		long limit = 1L << width;
+		for( int key : keys ) {
+			long value = (long)key - begin;
+			if( value < 0 || value >= limit )
+				throw new IllegalArgumentException(String.format("key %d is outside [%d, %d + 2^%d)", key, begin, begin, width));
+			word |= value << bits;
+			bits += width;
+			if( bits >= 64 ) {
+				page.putLong(position, word);
+				position += 8;
+				bits -= 64;
+				/* the high bits of value that did not fit */
+				word = bits > 0 ? value >>> (width - bits) : 0;
+			}
+		}
+		if( bits > 0 ) {
+			page.putLong(position, word);
+			position += 8;
+		}
+		return position - offset;
+	}
+
+	/* reads "count" keys written by pack() into dest[0 .. count) */
+	static void unpack(ByteBuffer page, int offset, int count, int begin, int width, int dest[]) {
+		if( width == 0 ) {
+			Arrays.fill(dest, 0, count, begin);
+			return;
+		}
+
+		long mask = (1L << width) - 1;
+		long word = 0;
+		int bits = 0;
+		int position = offset;
+		for( int i = 0; i < count; i++ ) {
+			long value;
+			if( bits >= width ) {
+				value = word & mask;
+				word >>>= width;
+				bits -= width;
+			} else {
+				/* the low "bits" bits are left in word, the rest start the next one */
+				long next = page.getLong(position);
+				position += 8;
+				value = (word | (next << bits)) & mask;
+				word = next >>> (width - bits);
+				bits = 64 - (width - bits);
+			}
+			dest[i] = (int)(begin + value);
+		}
+	}
+}
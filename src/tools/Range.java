@@ -33,6 +33,11 @@ public class Range {
 	 * 
 	 */
 	public boolean overlaps(Range that) {
+		return overlaps(that.begin, that.end);
+	}
+	
+	/* same as above, for a range that is not held in a Range object (e.g. the flat node arrays in ACETree) */
+	public boolean overlaps(int thatBegin, int thatEnd) {
 		/* 
 		 * three cases:  (Need to see if I am missing a simple way of checking
 		 * 
@@ -49,13 +54,13 @@ public class Range {
 		 *             |---|  (that)        
 		 */
 		
-		if( that.end >= this.end && that.begin <= this.end ) 
+		if( thatEnd >= this.end && thatBegin <= this.end ) 
 			return true;
 		
-		if( that.end >= this.begin && that.begin <= this.begin )
+		if( thatEnd >= this.begin && thatBegin <= this.begin )
 			return true;
 		
-		if( that.end >= this.begin && that.end <= this.end )
+		if( thatEnd >= this.begin && thatEnd <= this.end )
 			return true;
 		
 		return false;
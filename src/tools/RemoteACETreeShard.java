@@ -0,0 +1,123 @@
+package tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.function.IntConsumer;
+
+/*
+ * A shard served by an ACETreeShardServer - see there for the protocol.
+ *
+ * One connection, one request at a time on it: the calls are synchronized on the shard, so the searches of one
+ * forest search (which stabs one shard at a time anyway) can share it.  Searches on many threads want a
+ * RemoteACETreeShard each.
+ *
+ * A connection that fails turns into an UncheckedIOException from the call that found out - estimateCount, open and
+ * search cannot throw IOException, as a local shard has no use for it.
+ */
+public class RemoteACETreeShard implements ACETreeShard {
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	public RemoteACETreeShard(String host, int port) throws IOException {
+		this.socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port));
+			socket.setTcpNoDelay(true);
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		} catch(IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public synchronized double estimateCount(Range range) {
+		try {
+			out.writeInt(ACETreeShardServer.OP_ESTIMATE);
+			out.writeInt(range.begin);
+			out.writeInt(range.end);
+			out.flush();
+			return in.readDouble();
+		} catch(IOException e) {
+			throw new UncheckedIOException("shard estimate failed", e);
+		}
+	}
+
+	@Override
+	public synchronized Search open(Range range) {
+		try {
+			out.writeInt(ACETreeShardServer.OP_OPEN);
+			out.writeInt(range.begin);
+			out.writeInt(range.end);
+			out.flush();
+			return new RemoteSearch(in.readInt(), in.readBoolean());
+		} catch(IOException e) {
+			throw new UncheckedIOException("could not open shard search", e);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		socket.close();
+	}
+
+	/* the search on the server, by its id - done() is what the server said after the last stab */
+	private class RemoteSearch implements Search {
+		private final int id;
+		private boolean done;
+		private boolean closed;
+
+		RemoteSearch(int id, boolean done) {
+			this.id = id;
+			this.done = done;
+		}
+
+		public int search(IntConsumer sink) {
+			synchronized( RemoteACETreeShard.this ) {
+				if( closed )
+					throw new IllegalStateException("shard search is closed");
+				try {
+					out.writeInt(ACETreeShardServer.OP_SEARCH);
+					out.writeInt(id);
+					out.flush();
+					int count = in.readInt();
+					for( int i = 0; i < count; i++ )
+						sink.accept(in.readInt());
+					done = in.readBoolean();
+					return count;
+				} catch(IOException e) {
+					throw new UncheckedIOException("shard search failed", e);
+				}
+			}
+		}
+
+		public boolean done() {
+			return done;
+		}
+
+		public void close() {
+			synchronized( RemoteACETreeShard.this ) {
+				if( closed )
+					return;
+				closed = true;
+				if( socket.isClosed() )
+					return;
+				try {
+					out.writeInt(ACETreeShardServer.OP_CLOSE);
+					out.writeInt(id);
+					out.flush();
+				} catch(IOException e) {
+					/* the server closes the searches of a connection that goes away */
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package tools;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/*
+ * A reusable, growable buffer of samples - an IntConsumer to pass to ACETreeSearch.search(IntConsumer).
+ *
+ * clear() keeps the array, so once it has grown to the size of a stab, filling it again does not allocate.
+ */
+public class SampleBuffer implements IntConsumer {
+	private int samples[];
+	private int size;
+
+	public SampleBuffer() {
+		this(16);
+	}
+
+	public SampleBuffer(int capacity) {
+		samples = new int[Math.max(capacity, 1)];
+		size = 0;
+	}
+
+	@Override
+	public void accept(int value) {
+		if( size == samples.length )
+			samples = Arrays.copyOf(samples, 2 * samples.length);
+		samples[size++] = value;
+	}
+
+	/* appends src[from .. to) */
+	public void addAll(int src[], int from, int to) {
+		int needed = size + (to - from);
+		if( needed > samples.length )
+			samples = Arrays.copyOf(samples, Math.max(needed, 2 * samples.length));
+		System.arraycopy(src, from, samples, size, to - from);
+		size = needed;
+	}
+
+	/* appends keys [from .. to) of a leaf section - copied straight out of it, wherever the keys are kept */
+	void addAll(ACETree.LeafSection section, int from, int to) {
+		int needed = size + (to - from);
+		if( needed > samples.length )
+			samples = Arrays.copyOf(samples, Math.max(needed, 2 * samples.length));
+		section.copyTo(from, to, samples, size);
+		size = needed;
+	}
+
+	public int size() { return size; }
+
+	public int get(int i) {
+		if( i >= size )
+			throw new IndexOutOfBoundsException(String.format("%d >= %d", i, size));
+		return samples[i];
+	}
+
+	public void clear() { size = 0; }
+
+	/* the backing array - only the first size() entries are valid, and it is replaced when the buffer grows */
+	public int[] array() { return samples; }
+
+	public int[] toArray() { return Arrays.copyOf(samples, size); }
+}
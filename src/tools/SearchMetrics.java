@@ -0,0 +1,108 @@
+package tools;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Counters and latency histograms for ACETreeSearch - for seeing what the searches of a service cost, and where.
+ *
+ * Give one to any number of searches (ACETreeSearch.setMetrics) and they all add to it - the counters and histograms
+ * take updates from many threads at once.  A search without one does not count anything, and does not read the clock.
+ *
+ * - stabs, emptyStabs         - shuttle calls, and those that came back without a leaf.
+ * - sectionsEncapsulated      - sections whose range held the query, filtered straight into the result.
+ * - sectionsOverlapped        - sections that only overlapped the query and went to their bucket.
+ * - bucketFlushes             - buckets that covered the query and were filtered into the result.
+ * - recordsFiltered/Accepted  - records in the sections the stabs touched, and those that came out as samples.
+ * - bytesBuffered/Spilled     - bytes taken into buckets (the records in the query range), and bytes of those that
+ *                               went out to a spill file.
+ *
+ * The histograms time the shuttle, combineTuples (one stab's leaf), and Bucket.addLeaf and flushElements.
+ *
+ * register() makes it visible through JMX; the getters are there to read it from code.
+ */
+public class SearchMetrics implements SearchMetricsMXBean {
+	final LongAdder stabs = new LongAdder();
+	final LongAdder emptyStabs = new LongAdder();
+	final LongAdder sectionsEncapsulated = new LongAdder();
+	final LongAdder sectionsOverlapped = new LongAdder();
+	final LongAdder bucketFlushes = new LongAdder();
+	final LongAdder recordsFiltered = new LongAdder();
+	final LongAdder recordsAccepted = new LongAdder();
+	final LongAdder bytesBuffered = new LongAdder();
+	final LongAdder bytesSpilled = new LongAdder();
+
+	final LatencyHistogram shuttleNanos = new LatencyHistogram();
+	final LatencyHistogram combineTuplesNanos = new LatencyHistogram();
+	final LatencyHistogram addLeafNanos = new LatencyHistogram();
+	final LatencyHistogram flushElementsNanos = new LatencyHistogram();
+
+	private ObjectName registeredName;
+
+	/*
+	 * registers with the platform MBean server as "tools:type=ACETreeSearch,name=<name>".
+	 */
+	public synchronized void register(String name) {
+		if( registeredName != null )
+			throw new IllegalStateException("already registered as " + registeredName);
+		try {
+			ObjectName objectName = new ObjectName("tools:type=ACETreeSearch,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			registeredName = objectName;
+		} catch(JMException e) {
+			throw new IllegalStateException("could not register search metrics " + name, e);
+		}
+	}
+
+	public synchronized void unregister() {
+		if( registeredName == null )
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(registeredName);
+		} catch(JMException e) {
+			/* somebody else took it down - nothing left to do */
+		}
+		registeredName = null;
+	}
+
+	public long getStabs() { return stabs.sum(); }
+	public long getEmptyStabs() { return emptyStabs.sum(); }
+	public long getSectionsEncapsulated() { return sectionsEncapsulated.sum(); }
+	public long getSectionsOverlapped() { return sectionsOverlapped.sum(); }
+	public long getBucketFlushes() { return bucketFlushes.sum(); }
+	public long getRecordsFiltered() { return recordsFiltered.sum(); }
+	public long getRecordsAccepted() { return recordsAccepted.sum(); }
+	public long getBytesBuffered() { return bytesBuffered.sum(); }
+	public long getBytesSpilled() { return bytesSpilled.sum(); }
+
+	public LatencyHistogram getShuttleNanos() { return shuttleNanos; }
+	public LatencyHistogram getCombineTuplesNanos() { return combineTuplesNanos; }
+	public LatencyHistogram getAddLeafNanos() { return addLeafNanos; }
+	public LatencyHistogram getFlushElementsNanos() { return flushElementsNanos; }
+
+	/* not atomic - updates made during the reset may or may not survive it */
+	public void reset() {
+		LongAdder counters[] = { stabs, emptyStabs, sectionsEncapsulated, sectionsOverlapped, bucketFlushes, recordsFiltered,
+				recordsAccepted, bytesBuffered, bytesSpilled };
+		for( LongAdder counter : counters )
+			counter.reset();
+		shuttleNanos.reset();
+		combineTuplesNanos.reset();
+		addLeafNanos.reset();
+		flushElementsNanos.reset();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("stabs %d (%d empty), sections %d encapsulated %d overlapped, %d bucket flushes, records %d filtered %d accepted, "
+				+ "bytes %d buffered %d spilled\nshuttle: %s\ncombineTuples: %s\naddLeaf: %s\nflushElements: %s",
+				getStabs(), getEmptyStabs(), getSectionsEncapsulated(), getSectionsOverlapped(), getBucketFlushes(),
+				getRecordsFiltered(), getRecordsAccepted(), getBytesBuffered(), getBytesSpilled(),
+				shuttleNanos, combineTuplesNanos, addLeafNanos, flushElementsNanos);
+	}
+}
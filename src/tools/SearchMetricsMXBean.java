@@ -0,0 +1,24 @@
+package tools;
+
+/*
+ * What SearchMetrics shows through JMX.  The histograms come out as composite data with the LatencyHistogram getters
+ * as their items.
+ */
+public interface SearchMetricsMXBean {
+	long getStabs();
+	long getEmptyStabs();
+	long getSectionsEncapsulated();
+	long getSectionsOverlapped();
+	long getBucketFlushes();
+	long getRecordsFiltered();
+	long getRecordsAccepted();
+	long getBytesBuffered();
+	long getBytesSpilled();
+
+	LatencyHistogram getShuttleNanos();
+	LatencyHistogram getCombineTuplesNanos();
+	LatencyHistogram getAddLeafNanos();
+	LatencyHistogram getFlushElementsNanos();
+
+	void reset();
+}
@@ -0,0 +1,137 @@
+package tools;
+
+import java.util.BitSet;
+
+/*
+ * The "shuttle" of a search - which leaf each stab goes to.
+ *
+ * It only needs the shape of the tree (the flat layout in ACETree: root = 1, children of i = 2i and 2i+1, leaves after
+ * the internal nodes) and whether the query overlaps a node, so the int, long and double keyed searches all share it.
+ * The searches say what "overlaps" means for their keys.
+ */
+abstract class Shuttle {
+	/*
+	 * "searchDone" - the subtree under the node has been searched.
+	 * "searchNextRight" - when the query overlaps both children, which side the next stab goes to.  Clear means left.
+	 */
+	private final BitSet searchDone;
+	private final BitSet searchNextRight;
+
+	/* the path of the current stab, used to back up - one entry per level */
+	private final int pathNodes[];
+	private final int pathModes[];
+
+	private static final int PATH_PLAIN = 0;
+	private static final int PATH_BOTH_LEFT = 1;
+	private static final int PATH_BOTH_RIGHT = 2;
+
+	private final int numLeaves;
+
+	Shuttle(int numLeaves, int height) {
+		this.numLeaves = numLeaves;
+		this.searchDone = new BitSet(2 * numLeaves);
+		this.searchNextRight = new BitSet(numLeaves);
+		this.pathNodes = new int[Math.max(height, 1)];
+		this.pathModes = new int[Math.max(height, 1)];
+	}
+
+	/* does the query overlap the key range of "node" */
+	protected abstract boolean overlaps(int node);
+
+	/* every leaf the query can reach has been stabbed */
+	boolean done() {
+		return searchDone.get(1);
+	}
+
+	/*
+	 * The "shuttle" name is borrowed from the Algorithm described in the paper.
+	 *
+	 * Please see algorithm described - we have tried to be true to it.
+	 *
+	 * Each stab touches one leaf node - we return the index of the leaf as soon as we reach one, and the caller reads
+	 * it and combines its tuples.  -1 means this stab came back empty.
+	 *
+	 * This walks the flat node arrays with a loop instead of recursing through the node objects.  At each internal node:
+	 *
+	 * - both children done -> mark the node done and back up.
+	 * - only one child left -> go there.
+	 * - the query overlaps only one child -> go there.
+	 * - otherwise go to the side recorded in searchNextRight.  If that side comes back empty, try the other side.
+	 *
+	 * Backing up happens when a node gets marked done.  We unwind the path to the nearest node where we had a choice
+	 * of sides and still have the other side to try.  If there is none, this stab returns nothing.
+	 */
+	int next() {
+		int depth = 0;
+		int node = 1;
+
+		while( true ) {
+			if( node >= numLeaves ) {
+				/* one stab done: */
+				searchDone.set(node);
+				return node - numLeaves;
+			}
+
+			int left = 2 * node;
+			int right = left + 1;
+			boolean leftDone = searchDone.get(left);
+			boolean rightDone = searchDone.get(right);
+
+			int next = -1;
+			int mode = PATH_PLAIN;
+			if( leftDone && rightDone ) {
+				searchDone.set(node);
+			} else if( leftDone ) {
+				/* only right is not done */
+				next = right;
+			} else if( rightDone ) {
+				/* only left is not done */
+				next = left;
+			} else {
+				/* both the children are not done: */
+				boolean overlapsLeft = overlaps(left);
+				boolean overlapsRight = overlaps(right);
+				if( overlapsLeft && !overlapsRight ) {
+					next = left;
+				} else if( overlapsRight && !overlapsLeft ) {
+					next = right;
+				} else if( !searchNextRight.get(node) ) {
+					/* overlaps both sides or none */
+					next = left;
+					mode = PATH_BOTH_LEFT;
+				} else {
+					next = right;
+					mode = PATH_BOTH_RIGHT;
+				}
+			}
+
+			if( next != -1 ) {
+				pathNodes[depth] = node;
+				pathModes[depth] = mode;
+				depth++;
+				node = next;
+				continue;
+			}
+
+			/* this node is done - back up */
+			while( true ) {
+				if( depth == 0 )
+					return -1;
+
+				depth--;
+				int parent = pathNodes[depth];
+				if( pathModes[depth] == PATH_BOTH_LEFT ) {
+					/* left came back empty - switch to the right */
+					searchNextRight.set(parent);
+					pathModes[depth] = PATH_BOTH_RIGHT;
+					depth++;
+					node = 2 * parent + 1;
+					break;
+				} else if( pathModes[depth] == PATH_BOTH_RIGHT ) {
+					/* right came back empty too - next time start on the left */
+					searchNextRight.clear(parent);
+				}
+			}
+		}
+	}
+}
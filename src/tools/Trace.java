@@ -0,0 +1,150 @@
+package tools;
+
+import java.io.PrintStream;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Tracing for the build and the search.
+ *
+ * An event is a format string with up to four long arguments (%d, %x ...).  There is one event() per number of
+ * arguments, so a call makes no varargs array and boxes nothing - an int argument just widens.  When the event's level
+ * is off, event() is a compare and a return; anything that would cost more than that (a loop over the elements, say)
+ * is done under isEnabled().
+ *
+ * Events that are on go to a ring buffer holding the last RING_SIZE of them, for a dump after something went wrong
+ * (dump()).  With "echo" set they are printed to stdout as they come as well, which is what the Minimal level is for.
+ *
+ * The ring is lock free.  A writer takes the next sequence number, fills in the slot it maps to and then stamps the
+ * slot with it; dump() skips a slot whose stamp changed while it was reading it.  The fields are plain arrays, so the
+ * fences keep them between the stamps: a writer's fields cannot show before its 0 stamp, and a reader's loads of them
+ * cannot move past its second look at the stamp.
+ */
+public class Trace {
+	public static final int None = 0;			/* I do not like this name */
+	public static final int Minimal = 1;
+	public static final int Verbose = 2;
+
+	/* volatile - searches on other threads read it on every event */
+	private static volatile int level = Trace.Minimal;
+	private static volatile boolean echo = true;
+
+	private static final int RING_SIZE = 1 << 14;
+	private static final int MAX_ARGS = 4;
+
+	private static final AtomicLong nextSequence = new AtomicLong();
+	private static final AtomicLongArray stamps = new AtomicLongArray(RING_SIZE);
+	private static final String formats[] = new String[RING_SIZE];
+	private static final int numArgs[] = new int[RING_SIZE];
+	private static final long args[] = new long[RING_SIZE * MAX_ARGS];
+	private static final long times[] = new long[RING_SIZE];
+	private static final long threads[] = new long[RING_SIZE];
+
+	private Trace() {}
+
+	public static int getLevel() {
+		return level;
+	}
+
+	public static void setLevel(int level) {
+		Trace.level = level;
+	}
+
+	/* print the events to stdout as well as keeping them */
+	public static void setEcho(boolean echo) {
+		Trace.echo = echo;
+	}
+
+	/* check this before work that is only there for the events - loops, string building ... */
+	public static boolean isEnabled(int level) {
+		return Trace.level >= level;
+	}
+
+	public static void event(int level, String format) {
+		if( Trace.level >= level )
+			record(format, 0, 0, 0, 0, 0);
+	}
+
+	public static void event(int level, String format, long a) {
+		if( Trace.level >= level )
+			record(format, 1, a, 0, 0, 0);
+	}
+
+	public static void event(int level, String format, long a, long b) {
+		if( Trace.level >= level )
+			record(format, 2, a, b, 0, 0);
+	}
+
+	public static void event(int level, String format, long a, long b, long c) {
+		if( Trace.level >= level )
+			record(format, 3, a, b, c, 0);
+	}
+
+	public static void event(int level, String format, long a, long b, long c, long d) {
+		if( Trace.level >= level )
+			record(format, 4, a, b, c, d);
+	}
+
+	@SuppressWarnings("deprecation")
+	private static void record(String format, int n, long a, long b, long c, long d) {
+		long sequence = nextSequence.getAndIncrement();
+		int slot = (int)(sequence & (RING_SIZE - 1));
+
+		/* 0 marks the slot as being written - a dump that sees it skips the slot */
+		stamps.set(slot, 0);
+		VarHandle.storeStoreFence();
+		formats[slot] = format;
+		numArgs[slot] = n;
+		args[slot * MAX_ARGS] = a;
+		args[slot * MAX_ARGS + 1] = b;
+		args[slot * MAX_ARGS + 2] = c;
+		args[slot * MAX_ARGS + 3] = d;
+		times[slot] = System.nanoTime();
+		threads[slot] = Thread.currentThread().getId();
+		stamps.set(slot, sequence + 1);
+
+		if( echo )
+			System.out.println(format(format, n, a, b, c, d));
+	}
+
+	/*
+	 * prints the events still in the ring, oldest first, one per line: "<nanoTime> [thread <id>] <event>".
+	 */
+	public static void dump(PrintStream out) {
+		long end = nextSequence.get();
+		long begin = Math.max(0, end - RING_SIZE);
+		for( long sequence = begin; sequence < end; sequence++ ) {
+			int slot = (int)(sequence & (RING_SIZE - 1));
+			if( stamps.get(slot) != sequence + 1 )
+				continue;
+
+			String format = formats[slot];
+			int n = numArgs[slot];
+			long a = args[slot * MAX_ARGS], b = args[slot * MAX_ARGS + 1], c = args[slot * MAX_ARGS + 2], d = args[slot * MAX_ARGS + 3];
+			long time = times[slot], thread = threads[slot];
+
+			/* overwritten while we read it */
+			VarHandle.loadLoadFence();
+			if( stamps.get(slot) != sequence + 1 )
+				continue;
+			out.printf( "%d [thread %d] %s\n", time, thread, format(format, n, a, b, c, d) );
+		}
+	}
+
+	/* forgets the events in the ring */
+	public static void clear() {
+		for( int i = 0; i < RING_SIZE; i++ )
+			stamps.set(i, 0);
+	}
+
+	private static String format(String format, int n, long a, long b, long c, long d) {
+		switch( n ) {
+		case 0: return format;
+		case 1: return String.format(format, a);
+		case 2: return String.format(format, a, b);
+		case 3: return String.format(format, a, b, c);
+		default: return String.format(format, a, b, c, d);
+		}
+	}
+}